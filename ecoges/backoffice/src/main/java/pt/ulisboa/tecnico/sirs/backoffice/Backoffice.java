@@ -13,8 +13,15 @@ import pt.ulisboa.tecnico.sirs.backoffice.grpc.PersonalInfo;
 import pt.ulisboa.tecnico.sirs.backoffice.grpc.PlanType;
 import pt.ulisboa.tecnico.sirs.backoffice.grpc.SolarPanel;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.RoleType;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.security.RecordCodec;
 import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.security.SessionCache;
 import pt.ulisboa.tecnico.sirs.backoffice.exceptions.*;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.AdminCredentials;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.AdminRepository;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.JdbcAdminRepository;
 import pt.ulisboa.tecnico.sirs.backoffice.grpc.*;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.*;
 
@@ -35,10 +42,17 @@ import java.util.List;
 import static pt.ulisboa.tecnico.sirs.backoffice.DatabaseQueries.*;
 
 public class Backoffice {
-    private final Connection dbConnection;
+    // clients are spread over shards
+    private final ShardRouter shards;
+    private final AdminRepository admins;
     private WebserverBackofficeServiceGrpc.WebserverBackofficeServiceBlockingStub webserver;
     private RbacServiceGrpc.RbacServiceBlockingStub rbacserver;
 
+    // Admin sessions, can be tuned with -Decoges.session.cache.ttl (milliseconds) and -Decoges.session.cache.size
+    private final SessionCache sessionCache = new SessionCache(
+            Long.getLong("ecoges.session.cache.ttl", SessionCache.DEFAULT_TTL_MILLIS),
+            Integer.getInteger("ecoges.session.cache.size", SessionCache.DEFAULT_MAX_ENTRIES));
+
     // TLS
     private static final String TRUST_STORE_FILE = "src/main/resources/backoffice.truststore";
     private static final String TRUST_STORE_PASSWORD = "mypassbackoffice";
@@ -52,8 +66,13 @@ public class Backoffice {
     private static final String KEY_STORE_ALIAS_ACCOUNT_MANAGEMENT = "accountManagement";
     private static final String KEY_STORE_ALIAS_ENERGY_MANAGEMENT = "energyManagement";
 
-    public Backoffice(Connection dbConnection, String webserverHost, int webserverPort, String rbacHost, int rbacPort) throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
-        this.dbConnection = dbConnection;
+    public Backoffice(ShardRouter shards, String webserverHost, int webserverPort, String rbacHost, int rbacPort) throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
+        this(shards, new JdbcAdminRepository(shards), webserverHost, webserverPort, rbacHost, rbacPort);
+    }
+
+    public Backoffice(ShardRouter shards, AdminRepository admins, String webserverHost, int webserverPort, String rbacHost, int rbacPort) throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
+        this.shards = shards;
+        this.admins = admins;
 
         String target = webserverHost + ":" + webserverPort;
         String targetRbac = rbacHost + ":" + rbacPort;
@@ -90,7 +109,7 @@ public class Backoffice {
     ------------------------------------------------
     */
 
-    public SecretKey requestCompartmentKey(String username, String clientEmail, CompartmentType compartment, String role,
+    public SecretKey requestCompartmentKey(String username, String clientEmail, CompartmentType compartment, RoleType role,
                                            Ticket ticket, ByteString signatureRBAC) throws
             NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidRoleException,
             KeyStoreException, IOException, CertificateException, UnrecoverableKeyException, SignatureException,
@@ -102,21 +121,21 @@ public class Backoffice {
         KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
         keyStore.load(Files.newInputStream(Paths.get(KEY_STORE_FILE)), KEY_STORE_PASSWORD.toCharArray());
 
-        if (role.equals(RoleType.ACCOUNT_MANAGER.toString())) {
+        if (role == RoleType.ACCOUNT_MANAGER) {
             privateKey = (PrivateKey) keyStore.getKey(KEY_STORE_ALIAS_ACCOUNT_MANAGEMENT, KEY_STORE_PASSWORD.toCharArray());
             certificate = (X509Certificate) keyStore.getCertificate(KEY_STORE_ALIAS_ACCOUNT_MANAGEMENT);
         }
-        else if (role.equals(RoleType.ENERGY_MANAGER.toString())) {
+        else if (role == RoleType.ENERGY_MANAGER) {
             privateKey = (PrivateKey) keyStore.getKey(KEY_STORE_ALIAS_ENERGY_MANAGEMENT, KEY_STORE_PASSWORD.toCharArray());
             certificate = (X509Certificate) keyStore.getCertificate(KEY_STORE_ALIAS_ENERGY_MANAGEMENT);
         }
         else {
-            throw new InvalidRoleException(role);
+            throw new InvalidRoleException(String.valueOf(role));
         }
 
         GetCompartmentKeyRequest.RequestData data = GetCompartmentKeyRequest.RequestData.newBuilder()
                 .setUsername(username)
-                .setRole(RoleType.valueOf(role))
+                .setRole(role)
                 .setCompartment(compartment)
                 .setCertificate(ByteString.copyFrom(certificate.getEncoded()))
                 .build();
@@ -156,46 +175,36 @@ public class Backoffice {
     */
 
     public String setAdminSession(String username) throws NoSuchAlgorithmException, SQLException {
-
-        PreparedStatement st;
-
         String token = Security.generateToken();
         String hashedToken = Security.hash(token);
 
-        st = dbConnection.prepareStatement(UPDATE_ADMIN_TOKEN);
-        st.setString(1, hashedToken);
-        st.setString(2, username);
-        st.executeUpdate();
-        st.close();
+        long load = sessionCache.beginLoad();
+        admins.updateToken(username, hashedToken);
 
+        sessionCache.put(username, hashedToken, load);
         return hashedToken;
     }
 
     public void validateSession(String username, String hashedToken)
             throws SQLException, AdminDoesNotExistException, InvalidSessionTokenException {
+        String storedHashedToken;
 
-        PreparedStatement st;
-        ResultSet rs;
-
-        st = dbConnection.prepareStatement(READ_ADMIN_COUNT);
-        st.setString(1, username);
-        rs = st.executeQuery();
-
-        if (rs.next() && rs.getInt(1) == 0){
-            throw new AdminDoesNotExistException(username);
+        if (sessionCache.isValid(username, hashedToken)) {
+            return;
         }
-        st.close();
-
-        st = dbConnection.prepareStatement(READ_ADMIN_TOKEN);
-        st.setString(1, username);
-        rs = st.executeQuery();
 
-        if (rs.next()){
-            String dbHashedToken = rs.getString(1);
-            if (!dbHashedToken.equals(hashedToken))
-                throw new InvalidSessionTokenException();
+        // a missing admin means it does not exist, so a single lookup is enough
+        long load = sessionCache.beginLoad();
+        try {
+            storedHashedToken = admins.readToken(username);
+        } catch (AdminDoesNotExistException e) {
+            sessionCache.invalidate(username);
+            throw e;
         }
-        st.close();
+
+        sessionCache.put(username, storedHashedToken, load);
+        if (!storedHashedToken.equals(hashedToken))
+            throw new InvalidSessionTokenException();
     }
 
     /*
@@ -206,120 +215,75 @@ public class Backoffice {
 
     public void register(String username, String password, String role)
             throws SQLException, AdminAlreadyExistsException, NoSuchAlgorithmException {
-
-        PreparedStatement st;
-        ResultSet rs;
-
-        // check if username is already registered
-        st = dbConnection.prepareStatement(READ_ADMIN_COUNT);
-        st.setString(1, username);
-
-        rs = st.executeQuery();
-
-        if (rs.next() && rs.getInt(1) != 0){
-            throw new AdminAlreadyExistsException(username);
-        }
-
-        st.close();
-
         byte[] salt = Security.generateRandom();
         String hashedPassword = Security.hashWithSalt(password, salt);
 
-        // register username
-        st = dbConnection.prepareStatement(CREATE_ADMIN);
-
-        st.setString(1, username);
-        st.setString(2, hashedPassword);
-        st.setBytes(3, salt);
-        st.setString(4, role);
-
-        st.executeUpdate();
-
-
-        st.close();
+        // the username is unique, there is no need to check if it is already registered
+        admins.create(username, hashedPassword, salt, RoleType.valueOf(role));
     }
 
     public List<String> login(String username, String password)
             throws AdminDoesNotExistException, SQLException, WrongPasswordException,
             NoSuchAlgorithmException, SignatureException, InvalidKeyException {
         List<String> response = new ArrayList<>();
-        PreparedStatement st;
-        ResultSet rs;
-        String role;
-
-        st = dbConnection.prepareStatement(READ_ADMIN_PASSWORD_SALT_ROLE);
-        st.setString(1, username);
-
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            String dbHashedPassword = rs.getString(1);
-            byte[] salt = rs.getBytes(2);
-            role = rs.getString(3);
 
-            String hashedPassword = Security.hashWithSalt(password, salt);
-            if (!hashedPassword.equals(dbHashedPassword)) {
-                st.close();
-                throw new WrongPasswordException();
-            }
-        }
-        else {
-            throw new AdminDoesNotExistException(username);
+        AdminCredentials credentials = admins.readCredentials(username);
+        String hashedPassword = Security.hashWithSalt(password, credentials.getSalt());
+        if (!hashedPassword.equals(credentials.getHashedPassword())) {
+            throw new WrongPasswordException();
         }
-        st.close();
 
         String hashedToken = setAdminSession(username);
-        response.add(role);
+        response.add(credentials.getRole().name());
         response.add(hashedToken);
         return response;
     }
 
     public boolean logout(String username, String hashedToken)
             throws SQLException, AdminDoesNotExistException, InvalidSessionTokenException {
-
-        PreparedStatement st;
-
         validateSession(username, hashedToken);
 
-        st = dbConnection.prepareStatement(UPDATE_ADMIN_TOKEN);
-        st.setString(1, "");
-        st.setString(2, username);
+        admins.updateToken(username, "");
+        sessionCache.invalidate(username);
         return true;
     }
 
     public List<Client> listClients(String username, String hashedToken)
             throws SQLException, AdminDoesNotExistException, InvalidSessionTokenException {
-        Statement st;
-        ResultSet rs;
-
-        List<Client> clients = new ArrayList<>();
-
         validateSession(username, hashedToken);
 
-        st = dbConnection.createStatement();
-        rs = st.executeQuery(READ_ALL_CLIENTS_NAME_EMAIL);
-
-        while(rs.next()) {
-            String name = rs.getString(1);
-            String email = rs.getString(2);
-
-            Client client = Client.newBuilder()
-                    .setName(name)
-                    .setEmail(email)
-                    .build();
-
-            clients.add(client);
+        List<Client> clients = new ArrayList<>();
+        for (ConnectionPool shard : shards.all()) {
+            // a client registered a moment ago may still be missing from a replica, which is fine for a listing
+            try (Connection dbConnection = shard.getReadConnection(true)) {
+                Statement st;
+                ResultSet rs;
+
+                st = dbConnection.createStatement();
+                rs = st.executeQuery(READ_ALL_CLIENTS_NAME_EMAIL);
+
+                while(rs.next()) {
+                    String name = rs.getString(1);
+                    String email = rs.getString(2);
+
+                    Client client = Client.newBuilder()
+                            .setName(name)
+                            .setEmail(email)
+                            .build();
+
+                    clients.add(client);
+                }
+                st.close();
+            }
         }
-        st.close();
-
         return clients;
     }
 
-    public ValidatePermissionResponse validatePermission(String username, String role, CompartmentType permission)
+    public ValidatePermissionResponse validatePermission(String username, RoleType role, CompartmentType permission)
     {
         ValidatePermissionRequest request = ValidatePermissionRequest.newBuilder()
             .setUsername(username)
-            .setRole(RoleType.valueOf(role))
+            .setRole(role)
             .setPermission(permission)
             .build();
 
@@ -332,42 +296,29 @@ public class Backoffice {
             NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, UnrecoverableKeyException,
             CertificateException, KeyStoreException, IOException, SignatureException, StatusRuntimeException,
             InvalidAlgorithmParameterException, BadPaddingException {
-
         PersonalInfo personalInfo;
         PreparedStatement st;
         ResultSet rs;
-        String role;
 
         validateSession(username, hashedToken);
-
-        st = dbConnection.prepareStatement(READ_ADMIN_ROLE);
-        st.setString(1, username);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            role = rs.getString(1);
-        }
-        else {
-            st.close();
-            throw new AdminDoesNotExistException(username);
-        }
+        RoleType role = admins.readRole(username);
 
         ValidatePermissionResponse response = validatePermission(username, role, CompartmentType.PERSONAL_DATA);
 
         SecretKey temporaryKey = requestCompartmentKey(username, clientEmail, CompartmentType.PERSONAL_DATA, role, response.getData(), response.getSignature());
 
-        try {
-            byte[] iv = getIv(clientEmail, CompartmentType.PERSONAL_DATA);
+        try (Connection clientConnection = shards.forClient(clientEmail).getConnection()) {
+            byte[] iv = getIv(clientConnection, clientEmail, CompartmentType.PERSONAL_DATA);
 
             // get personal info
-            st = dbConnection.prepareStatement(READ_CLIENT_PERSONAL_INFO);
+            st = clientConnection.prepareStatement(READ_CLIENT_PERSONAL_INFO);
             st.setString(1, clientEmail);
             rs = st.executeQuery();
 
             if (rs.next()) {
                 String name = rs.getString(1);
                 String email = rs.getString(2);
-                String plan = rs.getString(3);
+                PlanType plan = PlanType.forNumber(rs.getInt(3));
 
                 String address = new String(Security.decryptData(rs.getBytes(4), temporaryKey, iv));
                 String iban = new String(Security.decryptData(rs.getBytes(5), temporaryKey, iv));
@@ -377,18 +328,18 @@ public class Backoffice {
                         .setEmail(email)
                         .setAddress(address)
                         .setIBAN(iban)
-                        .setPlan(PlanType.valueOf(plan))
+                        .setPlan(plan)
                         .build();
             } else {
                 st.close();
                 throw new ClientDoesNotExistException(clientEmail);
             }
+            st.close();
         } catch (Exception e) {
             ackCompartmentKey(clientEmail, CompartmentType.PERSONAL_DATA);
             throw e;
         }
 
-        st.close();
         ackCompartmentKey(clientEmail, CompartmentType.PERSONAL_DATA);
         return personalInfo;
     }
@@ -398,60 +349,39 @@ public class Backoffice {
             InvalidRoleException, PermissionDeniedException, CompartmentKeyException, IllegalBlockSizeException,
             NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, UnrecoverableKeyException,
             CertificateException, KeyStoreException, IOException, SignatureException, StatusRuntimeException, InvalidAlgorithmParameterException, BadPaddingException {
-
         EnergyPanel energyPanel;
         List<Appliance> appliances;
         List<SolarPanel> solarPanels;
         PreparedStatement st;
         ResultSet rs;
-        String role;
 
         validateSession(username, hashedToken);
-        
-        st = dbConnection.prepareStatement(READ_ADMIN_ROLE);
-        st.setString(1, username);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            role = rs.getString(1);
-        }
-        else {
-            st.close();
-            throw new AdminDoesNotExistException(username);
-        }
+        RoleType role = admins.readRole(username);
 
         ValidatePermissionResponse response = validatePermission(username, role, CompartmentType.ENERGY_DATA);
 
         SecretKey temporaryKey = requestCompartmentKey(username, clientEmail, CompartmentType.ENERGY_DATA, role, response.getData(), response.getSignature());
 
-        try {
-            byte[] iv = getIv(clientEmail, CompartmentType.ENERGY_DATA);
+        try (Connection clientConnection = shards.forClient(clientEmail).getConnection()) {
+            byte[] iv = getIv(clientConnection, clientEmail, CompartmentType.ENERGY_DATA);
 
-            int clientId = getClientId(clientEmail);
+            int clientId = getClientId(clientConnection, clientEmail);
 
-            appliances = getAppliances(clientId, temporaryKey);
-            solarPanels = getSolarPanels(clientId, temporaryKey);
+            appliances = getAppliances(clientConnection, clientId, temporaryKey);
+            solarPanels = getSolarPanels(clientConnection, clientId, temporaryKey);
 
-            st = dbConnection.prepareStatement(READ_CLIENT_ENERGY_PANEL);
+            st = clientConnection.prepareStatement(READ_CLIENT_ENERGY_PANEL);
             st.setString(1, clientEmail);
             rs = st.executeQuery();
 
             if (rs.next()) {
-                byte[] energyConsumedBytes = Security.decryptData(rs.getBytes(1), temporaryKey, iv);
-                byte[] energyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(2), temporaryKey, iv);
-                byte[] energyConsumedNightBytes = Security.decryptData(rs.getBytes(3), temporaryKey, iv);
-                byte[] energyProducedBytes = Security.decryptData(rs.getBytes(4), temporaryKey, iv);
-
-                float energyConsumed = Float.parseFloat(new String(energyConsumedBytes));
-                float energyConsumedDaytime = Float.parseFloat(new String(energyConsumedDaytimeBytes));
-                float energyConsumedNight = Float.parseFloat(new String(energyConsumedNightBytes));
-                float energyProduced = Float.parseFloat(new String(energyProducedBytes));
+                float[] energy = decryptEnergy(rs, 1, 4, temporaryKey, iv);
 
                 energyPanel = EnergyPanel.newBuilder()
-                        .setEnergyConsumed(energyConsumed)
-                        .setEnergyConsumedDaytime(energyConsumedDaytime)
-                        .setEnergyConsumedNight(energyConsumedNight)
-                        .setEnergyProduced(energyProduced)
+                        .setEnergyConsumed(energy[0])
+                        .setEnergyConsumedDaytime(energy[1])
+                        .setEnergyConsumedNight(energy[2])
+                        .setEnergyProduced(energy[3])
                         .addAllAppliances(appliances)
                         .addAllSolarPanels(solarPanels)
                         .build();
@@ -459,12 +389,12 @@ public class Backoffice {
                 st.close();
                 throw new ClientDoesNotExistException(clientEmail);
             }
+            st.close();
         } catch (Exception e) {
             ackCompartmentKey(clientEmail, CompartmentType.ENERGY_DATA);
             throw e;
         }
 
-        st.close();
         ackCompartmentKey(clientEmail, CompartmentType.ENERGY_DATA);
         return energyPanel;
     }
@@ -475,7 +405,7 @@ public class Backoffice {
     ------------------------------------------------------
     */
 
-    public byte[] getIv(String email, CompartmentType compartment) throws SQLException, ClientDoesNotExistException {
+    public byte[] getIv(Connection dbConnection, String email, CompartmentType compartment) throws SQLException, ClientDoesNotExistException {
         PreparedStatement st;
         ResultSet rs;
         byte[] iv;
@@ -502,7 +432,7 @@ public class Backoffice {
         return iv;
     }
 
-    public int getClientId(String email) throws SQLException, ClientDoesNotExistException {
+    public int getClientId(Connection dbConnection, String email) throws SQLException, ClientDoesNotExistException {
         PreparedStatement st;
         ResultSet rs;
         int client_id;
@@ -524,7 +454,7 @@ public class Backoffice {
         return client_id;
         }
 
-        public List<Appliance> getAppliances(int clientId, SecretKey energyPanelKey) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        public List<Appliance> getAppliances(Connection dbConnection, int clientId, SecretKey energyPanelKey) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
         PreparedStatement st;
         ResultSet rs;
         List<Appliance> appliances = new ArrayList<>();
@@ -538,20 +468,14 @@ public class Backoffice {
             String name = rs.getString(2);
             String brand = rs.getString(3);
 
-            byte[] energyConsumedBytes = Security.decryptData(rs.getBytes(4), energyPanelKey, iv);
-            byte[] energyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(5), energyPanelKey, iv);
-            byte[] energyConsumedNightBytes = Security.decryptData(rs.getBytes(6), energyPanelKey, iv);
-
-            float energyConsumed = Float.parseFloat(new String(energyConsumedBytes));
-            float energyConsumedDaytime = Float.parseFloat(new String(energyConsumedDaytimeBytes));
-            float energyConsumedNight = Float.parseFloat(new String(energyConsumedNightBytes));
+            float[] energy = decryptEnergy(rs, 4, 3, energyPanelKey, iv);
 
             Appliance appliance = Appliance.newBuilder()
                     .setName(name)
                     .setBrand(brand)
-                    .setEnergyConsumed(energyConsumed)
-                    .setEnergyConsumedDaytime(energyConsumedDaytime)
-                    .setEnergyConsumedNight(energyConsumedNight)
+                    .setEnergyConsumed(energy[0])
+                    .setEnergyConsumedDaytime(energy[1])
+                    .setEnergyConsumedNight(energy[2])
                     .build();
             appliances.add(appliance);
         }
@@ -560,7 +484,7 @@ public class Backoffice {
         return appliances;
     }
 
-    public List<SolarPanel> getSolarPanels(int clientId, SecretKey energyPanelKey) throws SQLException,
+    public List<SolarPanel> getSolarPanels(Connection dbConnection, int clientId, SecretKey energyPanelKey) throws SQLException,
             InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
             NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
 
@@ -577,8 +501,7 @@ public class Backoffice {
             String name = rs.getString(2);
             String brand = rs.getString(3);
 
-            byte[] energyProducedBytes = Security.decryptData(rs.getBytes(4), energyPanelKey, iv);
-            float energyProduced = Float.parseFloat(new String(energyProducedBytes));
+            float energyProduced = decryptEnergy(rs, 4, 1, energyPanelKey, iv)[0];
 
             SolarPanel solarPanel = SolarPanel.newBuilder()
                     .setName(name)
@@ -591,4 +514,23 @@ public class Backoffice {
 
         return solarPanels;
     }
+
+    /**
+     * Decrypts the energy record at the given column, or the values encrypted on their own in the columns that follow it
+     * for rows the webserver has not packed into a record yet.
+     */
+    private static float[] decryptEnergy(ResultSet rs, int column, int values, SecretKey key, byte[] iv) throws SQLException,
+            InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        byte[] record = rs.getBytes(column);
+        if (record != null) {
+            return RecordCodec.decrypt(key, iv, record);
+        }
+
+        byte[][] legacy = new byte[values][];
+        for (int i = 0; i < values; i++) {
+            legacy[i] = rs.getBytes(column + 1 + i);
+        }
+        return RecordCodec.decryptLegacy(key, iv, legacy);
+    }
 }
@@ -7,6 +7,8 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.grpc.Server;
 import io.grpc.netty.GrpcSslContexts;
@@ -14,6 +16,14 @@ import io.grpc.netty.NettyServerBuilder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.WebserverBackofficeServiceGrpc;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.MetricsEndpoint;
+import pt.ulisboa.tecnico.sirs.database.QueryMetrics;
+import pt.ulisboa.tecnico.sirs.database.SchemaMigrator;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.AdminRepository;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.InMemoryAdminRepository;
+import pt.ulisboa.tecnico.sirs.backoffice.storage.JdbcAdminRepository;
 
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
@@ -37,16 +47,38 @@ public class BackofficeMain {
 	private static final String TRUST_STORE_PASSWORD = "mypassbackoffice";
 	private static final String TRUST_STORE_ALIAS_CA = "ca";
 
+	// Admins, stored on MySQL unless -Decoges.storage=memory (client data is always read from MySQL)
+	private static final boolean IN_MEMORY_STORAGE = "memory".equals(System.getProperty("ecoges.storage"));
+
 	// Database
-	private static Connection dbConnection = null;
+	private static ConnectionPool dbPool = null;
+	private static ShardRouter shards = null;
 
 	private static final String DATABASE_USER = "ecoges";
 	private static final String DATABASE_PASSWORD = "admin";
 
 	private static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
 
+	private static final String SCHEMA_COMPONENT = "backoffice";
+
 	private static String dbUrl = "jdbc:mysql://localhost:3306/clientdb"; // default value
 
+	// Connection pool sizing, can be tuned with -Decoges.db.pool.min, -Decoges.db.pool.max and -Decoges.db.pool.timeout
+	private static final int DATABASE_POOL_MIN_CONNECTIONS = Integer.getInteger("ecoges.db.pool.min", 2);
+	private static final int DATABASE_POOL_MAX_CONNECTIONS = Integer.getInteger("ecoges.db.pool.max", 16);
+	private static final long DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS = Long.getLong("ecoges.db.pool.timeout", 5000);
+	private static final int DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS = 5;
+
+	// Read replicas, given as a comma-separated list of host:port with -Decoges.db.replicas
+	private static final String DATABASE_REPLICAS = System.getProperty("ecoges.db.replicas", "");
+
+	// Additional shards, given as a comma-separated list of host:port with -Decoges.db.shards
+	private static final String DATABASE_SHARDS = System.getProperty("ecoges.db.shards", "");
+
+	// Queries slower than -Decoges.db.slowquery milliseconds are logged, the metrics are served on -Decoges.metrics.port
+	private static final long DATABASE_SLOW_QUERY_MILLIS = Long.getLong("ecoges.db.slowquery", 100);
+	private static final Integer METRICS_PORT = Integer.getInteger("ecoges.metrics.port");
+
 	// Webserver
 	private static String webserverHost = "localhost";
 	private static int webserverPort = 8000;
@@ -100,8 +132,21 @@ public class BackofficeMain {
 			// Database
 			System.out.println("Setting up database connection on " + dbUrl);
 			Class.forName(DATABASE_DRIVER);
-			dbConnection = DriverManager.getConnection(dbUrl, DATABASE_USER, DATABASE_PASSWORD);
-			if (dbConnection != null) setupDatabase();
+			dbPool = new ConnectionPool(dbUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+					DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS);
+			addReplicas();
+			shards = new ShardRouter(openShards());
+			instrumentQueries();
+
+			AdminRepository admins;
+			if (IN_MEMORY_STORAGE) {
+				System.out.println("Using in-memory storage for admins");
+				admins = new InMemoryAdminRepository();
+			}
+			else {
+				setupDatabase();
+				admins = new JdbcAdminRepository(shards);
+			}
 
 			// Setup ssl context
 			SslContext sslContext = GrpcSslContexts.configure(SslContextBuilder
@@ -109,7 +154,7 @@ public class BackofficeMain {
 					.trustManager(CACertificate)).build();
 
 			// Services
-			Backoffice backofficeServer = new Backoffice(dbConnection, webserverHost, webserverPort, rbacHost, rbacPort);
+			Backoffice backofficeServer = new Backoffice(shards, admins, webserverHost, webserverPort, rbacHost, rbacPort);
 			Server server = NettyServerBuilder.forPort(serverPort).sslContext(sslContext)
 					.addService(new BackofficeServiceImpl(backofficeServer))
 					.build();
@@ -155,20 +200,77 @@ public class BackofficeMain {
 		System.out.println("Successfully loaded key pairs from Java Keystore!");
 	}
 
+	private static void addReplicas() throws SQLException {
+		// replicas are attached to the first shard only, the other shards would silently be read from their primary
+		if (!DATABASE_REPLICAS.trim().isEmpty() && !DATABASE_SHARDS.trim().isEmpty()) {
+			throw new SQLException("Read replicas cannot be used together with shards");
+		}
+
+		for (String replica : DATABASE_REPLICAS.split(",")) {
+			if (replica.trim().isEmpty()) continue;
+
+			String replicaUrl = "jdbc:mysql://" + replica.trim() + "/clientdb";
+			try {
+				dbPool.addReplica(new ConnectionPool(replicaUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+						DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS));
+				System.out.println("Using read replica on " + replicaUrl);
+			} catch (SQLException e) {
+				System.out.println("WARNING: Could not connect to read replica on " + replicaUrl + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private static List<ConnectionPool> openShards() throws SQLException {
+		List<ConnectionPool> shardPools = new ArrayList<>();
+		shardPools.add(dbPool);
+
+		for (String shard : DATABASE_SHARDS.split(",")) {
+			if (shard.trim().isEmpty()) continue;
+
+			String shardUrl = "jdbc:mysql://" + shard.trim() + "/clientdb";
+			System.out.println("Setting up database shard on " + shardUrl);
+			shardPools.add(new ConnectionPool(shardUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+					DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS));
+		}
+		return shardPools;
+	}
+
+	private static void instrumentQueries() {
+		QueryMetrics queryMetrics = new QueryMetrics(DATABASE_SLOW_QUERY_MILLIS);
+		queryMetrics.registerQueries(DatabaseQueries.class);
+		for (ConnectionPool shard : shards.all()) {
+			shard.setQueryMetrics(queryMetrics);
+		}
+
+		if (METRICS_PORT != null) {
+			try {
+				MetricsEndpoint metricsEndpoint = new MetricsEndpoint(METRICS_PORT, shards.all(), queryMetrics);
+				metricsEndpoint.start();
+				System.out.println("Serving database metrics on http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+			} catch (IOException e) {
+				System.out.println("WARNING: Could not serve database metrics: " + e.getMessage());
+			}
+		}
+	}
+
+	// admins are not spread over shards, they are stored in the first one and kept across restarts
 	private static void setupDatabase() {
-		Statement statement;
+		SchemaMigrator migrator = new SchemaMigrator(SCHEMA_COMPONENT, SCHEMA_MIGRATIONS);
 
 		try {
-			boolean reachable = dbConnection.isValid(25);
-			if (!reachable) {
-				throw new SQLException("Unreachable database connection.");
+			try (Connection dbConnection = shards.global().getConnection()) {
+				boolean reachable = dbConnection.isValid(25);
+				if (!reachable) {
+					throw new SQLException("Unreachable database connection.");
+				}
 			}
 
-			statement = dbConnection.createStatement();
-			statement.execute(DROP_ADMIN_TABLE);
-			statement.execute(CREATE_ADMIN_TABLE);
+			int migrated = migrator.migrate(shards.global());
+			if (migrated > 0) {
+				System.out.println("Applied " + migrated + " schema migrations on " + shards.global());
+			}
 
-			System.out.println("Database is ready!");
+			System.out.println("Database is ready at schema version " + migrator.getLatestVersion() + "!");
 		} catch (SQLException e) {
 			System.out.println("Could not set up database: "+ e.getMessage());
 			System.exit(1);
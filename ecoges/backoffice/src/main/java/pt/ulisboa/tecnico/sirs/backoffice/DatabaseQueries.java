@@ -1,10 +1,12 @@
 package pt.ulisboa.tecnico.sirs.backoffice;
 
-public class DatabaseQueries {
-    public static final String DROP_ADMIN_TABLE = "DROP TABLE IF EXISTS admin";
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+public class DatabaseQueries {
     public static final String CREATE_ADMIN_TABLE =
-        "CREATE TABLE admin (id INTEGER NOT NULL AUTO_INCREMENT, " +
+        "CREATE TABLE IF NOT EXISTS admin (id INTEGER NOT NULL AUTO_INCREMENT, " +
         "username VARCHAR(150) NOT NULL," +
         "password VARCHAR(150) NOT NULL," +
         "token VARCHAR(64) DEFAULT ''," +
@@ -13,24 +15,44 @@ public class DatabaseQueries {
         "UNIQUE (username)," +
         "PRIMARY KEY (id))";
 
+    // run in order by the SchemaMigrator of the backoffice, new versions are appended and released ones never changed
+    public static final List<String[]> SCHEMA_MIGRATIONS = Collections.unmodifiableList(Arrays.<String[]>asList(
+            // 1: a table created before versioning started is kept as it is
+            new String[] { CREATE_ADMIN_TABLE },
+            // 2: compact layout, the role is stored as the number of its RoleType
+            new String[] {
+                    "UPDATE admin SET role = CASE CAST(role AS CHAR) WHEN 'ACCOUNT_MANAGER' THEN '0' WHEN 'ENERGY_MANAGER' THEN '1' ELSE role END",
+                    "ALTER TABLE admin MODIFY role TINYINT NOT NULL, MODIFY salt VARBINARY(16)"
+            }
+    ));
+
     public static final String CREATE_ADMIN = "INSERT INTO admin(username, password, salt, role) VALUES(?, ?, ?, ?)";
 
     public static final String READ_ADMIN_PASSWORD_SALT_ROLE = "SELECT password, salt, role FROM admin WHERE username = ?";
     public static final String READ_ADMIN_ROLE = "SELECT role FROM admin WHERE username = ?";
 
+    private static final String CLIENT_ID_OF_EMAIL = "(SELECT id FROM client WHERE email = ?)";
+
+    // a ciphertext column of the client tables with the CBC version added when the webserver marked its row as stored
+    // before ciphertexts started with a version (see the webserver schema version 4)
+    private static String versioned(String column) {
+        String table = column.substring(0, column.indexOf('.') + 1);
+        return "IF(" + table + "unversioned_ciphertexts, CONCAT(x'01', " + column + "), " + column + ")";
+    }
+
     public static final String READ_CLIENT_ID = "SELECT id FROM client WHERE email = ?";
-    public static final String READ_CLIENT_ENERGY_PANEL = "SELECT energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced FROM client WHERE email = ? ";
-    public static final String READ_CLIENT_IV_PERSONAL_DATA = "SELECT iv_personal_data FROM client WHERE email = ?";
-    public static final String READ_CLIENT_IV_ENERGY_DATA = "SELECT iv_energy_data FROM client WHERE email = ?";
+    public static final String READ_CLIENT_ENERGY_PANEL = "SELECT " + versioned("energy") + ", energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced FROM client_energy_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String READ_CLIENT_IV_PERSONAL_DATA = "SELECT iv_personal_data FROM client_personal_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String READ_CLIENT_IV_ENERGY_DATA = "SELECT iv_energy_data FROM client_energy_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
 
     public static final String READ_ADMIN_TOKEN = "SELECT token FROM admin WHERE username = ?";
 
-    public static final String READ_APPLIANCES = "SELECT iv, name, brand, energyConsumed, energyConsumedDaytime, energyConsumedNight FROM appliance WHERE client_id = ? ";
-    public static final String READ_SOLAR_PANELS = "SELECT iv, name, brand, energyProduced FROM solarpanel WHERE client_id = ? ";
+    public static final String READ_APPLIANCES = "SELECT iv, name, brand, " + versioned("energy") + ", energyConsumed, energyConsumedDaytime, energyConsumedNight FROM appliance WHERE client_id = ? ";
+    public static final String READ_SOLAR_PANELS = "SELECT iv, name, brand, " + versioned("energy") + ", energyProduced FROM solarpanel WHERE client_id = ? ";
 
-    public static final String READ_CLIENT_PERSONAL_INFO = "SELECT name, email, plan, address, iban FROM client WHERE email = ?";
+    public static final String READ_CLIENT_PERSONAL_INFO = "SELECT c.name, c.email, c.plan, " + versioned("p.address") + ", " + versioned("p.iban") + " " +
+            "FROM client c JOIN client_personal_data p ON p.client_id = c.id WHERE c.email = ?";
 
-    public static final String READ_ADMIN_COUNT = "SELECT COUNT(*) FROM admin WHERE username = ?";
     public static final String READ_ALL_CLIENTS_NAME_EMAIL = "SELECT name, email FROM client";
 
     public static final String UPDATE_ADMIN_TOKEN = "UPDATE admin SET token = ? WHERE username = ?";
@@ -0,0 +1,30 @@
+package pt.ulisboa.tecnico.sirs.backoffice.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.RoleType;
+
+/**
+ * Salted password hash and role of an admin.
+ */
+public class AdminCredentials {
+    private final String hashedPassword;
+    private final byte[] salt;
+    private final RoleType role;
+
+    public AdminCredentials(String hashedPassword, byte[] salt, RoleType role) {
+        this.hashedPassword = hashedPassword;
+        this.salt = salt;
+        this.role = role;
+    }
+
+    public String getHashedPassword() {
+        return hashedPassword;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public RoleType getRole() {
+        return role;
+    }
+}
@@ -0,0 +1,23 @@
+package pt.ulisboa.tecnico.sirs.backoffice.storage;
+
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.RoleType;
+
+import java.sql.SQLException;
+
+/**
+ * Admins of the backoffice, on MySQL ({@link JdbcAdminRepository}) or in the process memory ({@link InMemoryAdminRepository}).
+ */
+public interface AdminRepository {
+
+    void create(String username, String hashedPassword, byte[] salt, RoleType role) throws SQLException, AdminAlreadyExistsException;
+
+    AdminCredentials readCredentials(String username) throws SQLException, AdminDoesNotExistException;
+
+    RoleType readRole(String username) throws SQLException, AdminDoesNotExistException;
+
+    String readToken(String username) throws SQLException, AdminDoesNotExistException;
+
+    void updateToken(String username, String hashedToken) throws SQLException;
+}
@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.sirs.backoffice.storage;
+
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.RoleType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Admins kept in the process memory, lost when the backoffice exits.
+ */
+public class InMemoryAdminRepository implements AdminRepository {
+
+    private final Map<String, StoredAdmin> admins = new ConcurrentHashMap<>();
+
+    @Override
+    public void create(String username, String hashedPassword, byte[] salt, RoleType role) throws AdminAlreadyExistsException {
+        if (admins.putIfAbsent(username, new StoredAdmin(new AdminCredentials(hashedPassword, salt, role))) != null) {
+            throw new AdminAlreadyExistsException(username);
+        }
+    }
+
+    @Override
+    public AdminCredentials readCredentials(String username) throws AdminDoesNotExistException {
+        return find(username).credentials;
+    }
+
+    @Override
+    public RoleType readRole(String username) throws AdminDoesNotExistException {
+        return find(username).credentials.getRole();
+    }
+
+    @Override
+    public String readToken(String username) throws AdminDoesNotExistException {
+        return find(username).token;
+    }
+
+    @Override
+    public void updateToken(String username, String hashedToken) {
+        StoredAdmin admin = admins.get(username);
+        if (admin != null) {
+            admin.token = hashedToken;
+        }
+    }
+
+    private StoredAdmin find(String username) throws AdminDoesNotExistException {
+        StoredAdmin admin = admins.get(username);
+        if (admin == null) {
+            throw new AdminDoesNotExistException(username);
+        }
+        return admin;
+    }
+
+    private static class StoredAdmin {
+        private final AdminCredentials credentials;
+        private volatile String token = "";
+
+        StoredAdmin(AdminCredentials credentials) {
+            this.credentials = credentials;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package pt.ulisboa.tecnico.sirs.backoffice.storage;
+
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.backoffice.exceptions.AdminDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.RoleType;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static pt.ulisboa.tecnico.sirs.backoffice.DatabaseQueries.*;
+
+/**
+ * Admins are not spread over shards, they are stored in the first one.
+ */
+public class JdbcAdminRepository implements AdminRepository {
+
+    // MySQL error code for an insert violating a unique constraint
+    private static final int ER_DUP_ENTRY = 1062;
+
+    private final ShardRouter shards;
+
+    public JdbcAdminRepository(ShardRouter shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public void create(String username, String hashedPassword, byte[] salt, RoleType role) throws SQLException, AdminAlreadyExistsException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(CREATE_ADMIN);
+            st.setString(1, username);
+            st.setString(2, hashedPassword);
+            st.setBytes(3, salt);
+            st.setInt(4, role.getNumber());
+
+            // the username is unique, there is no need to check if it is already registered
+            try {
+                st.executeUpdate();
+            } catch (SQLException e) {
+                if (e.getErrorCode() == ER_DUP_ENTRY) {
+                    throw new AdminAlreadyExistsException(username);
+                }
+                throw e;
+            } finally {
+                st.close();
+            }
+        }
+    }
+
+    @Override
+    public AdminCredentials readCredentials(String username) throws SQLException, AdminDoesNotExistException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_ADMIN_PASSWORD_SALT_ROLE);
+            st.setString(1, username);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new AdminDoesNotExistException(username);
+            }
+            AdminCredentials credentials = new AdminCredentials(rs.getString(1), rs.getBytes(2), RoleType.forNumber(rs.getInt(3)));
+            st.close();
+            return credentials;
+        }
+    }
+
+    @Override
+    public RoleType readRole(String username) throws SQLException, AdminDoesNotExistException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_ADMIN_ROLE);
+            st.setString(1, username);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new AdminDoesNotExistException(username);
+            }
+            RoleType role = RoleType.forNumber(rs.getInt(1));
+            st.close();
+            return role;
+        }
+    }
+
+    @Override
+    public String readToken(String username) throws SQLException, AdminDoesNotExistException {
+        return readString(READ_ADMIN_TOKEN, username);
+    }
+
+    @Override
+    public void updateToken(String username, String hashedToken) throws SQLException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_ADMIN_TOKEN);
+            st.setString(1, hashedToken);
+            st.setString(2, username);
+            st.executeUpdate();
+            st.close();
+        }
+    }
+
+    private String readString(String query, String username) throws SQLException, AdminDoesNotExistException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(query);
+            st.setString(1, username);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new AdminDoesNotExistException(username);
+            }
+            String value = rs.getString(1);
+            st.close();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections.
+ * Callers borrow a connection per request with {@link #getConnection()} and give it back by closing it,
+ * so that concurrent requests run on different database sessions instead of sharing a single one.
+ * Read-only queries that tolerate stale data can be sent to replicas with {@link #getReadConnection(boolean)}.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // connections returned less than this long ago are handed out again without a validation round trip
+    private static final long VALIDATION_INTERVAL_MILLIS = 30000;
+
+    // prepared statements kept open per physical connection
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    // a replica that could not be reached is skipped for this long before being tried again
+    private static final long REPLICA_RETRY_MILLIS = 5000;
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final int minConnections;
+    private final int maxConnections;
+    private final long acquireTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+
+    // Replicas
+    private final List<ConnectionPool> replicas = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private volatile long unavailableUntil = 0; // when this pool is a replica of another one
+
+    private volatile QueryMetrics queryMetrics = null;
+
+    // Metrics
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong acquiredCount = new AtomicLong();
+    private final AtomicLong acquireTimeoutCount = new AtomicLong();
+    private final AtomicLong acquireWaitNanos = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private final AtomicLong replicaReadCount = new AtomicLong();
+    private final AtomicLong replicaFallbackCount = new AtomicLong();
+    private final AtomicInteger openStatements = new AtomicInteger();
+    private final AtomicInteger openResultSets = new AtomicInteger();
+    private final AtomicLong leakedStatementCount = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password, int minConnections, int maxConnections,
+                          long acquireTimeoutMillis, int validationTimeoutSeconds) throws SQLException {
+        this(url, user, password, minConnections, maxConnections, acquireTimeoutMillis, validationTimeoutSeconds,
+                DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public ConnectionPool(String url, String user, String password, int minConnections, int maxConnections,
+                          long acquireTimeoutMillis, int validationTimeoutSeconds, int statementCacheSize) throws SQLException {
+        if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+            throw new IllegalArgumentException("Invalid pool size: min = " + minConnections + ", max = " + maxConnections);
+        }
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid statement cache size: " + statementCacheSize);
+        }
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxConnections, true);
+
+        // open the minimum number of connections upfront so the first requests do not pay the handshake
+        for (int i = 0; i < minConnections; i++) {
+            idleConnections.offerLast(open());
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting at most the acquisition timeout for one to be available.
+     * The returned connection must be closed to give it back to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                acquireTimeoutCount.incrementAndGet();
+                throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMillis +
+                        " ms waiting for a database connection (" + activeConnections.get() + "/" + maxConnections + " in use).");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+
+        try {
+            PooledConnection pooled = takeIdleConnection();
+            if (pooled == null) {
+                pooled = open();
+            }
+
+            acquireWaitNanos.addAndGet(System.nanoTime() - start);
+            acquiredCount.incrementAndGet();
+            activeConnections.incrementAndGet();
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a pool of connections to a read replica of this database, used by {@link #getReadConnection(boolean)}.
+     * Closing this pool also closes its replicas.
+     */
+    public void addReplica(ConnectionPool replica) {
+        if (replica == this) {
+            throw new IllegalArgumentException("A connection pool cannot be its own replica.");
+        }
+        if (queryMetrics != null && replica.queryMetrics == null) {
+            replica.setQueryMetrics(queryMetrics);
+        }
+        replicas.add(replica);
+    }
+
+    /**
+     * Records the queries run on this pool and on its replicas, null (the default) records nothing.
+     */
+    public void setQueryMetrics(QueryMetrics queryMetrics) {
+        this.queryMetrics = queryMetrics;
+        for (ConnectionPool replica : replicas) {
+            replica.setQueryMetrics(queryMetrics);
+        }
+    }
+
+    QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * Borrows a connection for read-only queries.
+     * When stale reads are allowed the connection comes from one of the replicas, chosen in turn, and from this
+     * pool otherwise or when no replica can be reached. Queries that must see the latest writes (e.g. right after
+     * updating a row) must not allow stale reads.
+     */
+    public Connection getReadConnection(boolean staleReadsAllowed) throws SQLException {
+        if (!staleReadsAllowed || replicas.isEmpty()) {
+            return getConnection();
+        }
+
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            ConnectionPool replica = replicas.get((start + i) % replicas.size());
+            if (replica.unavailableUntil > System.currentTimeMillis()) {
+                continue;
+            }
+            try {
+                Connection connection = replica.getConnection();
+                replicaReadCount.incrementAndGet();
+                return connection;
+            } catch (SQLTransientConnectionException e) {
+                // the replica is only busy, try the next one
+            } catch (SQLException e) {
+                replica.unavailableUntil = System.currentTimeMillis() + REPLICA_RETRY_MILLIS;
+            }
+        }
+
+        replicaFallbackCount.incrementAndGet();
+        return getConnection();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        for (ConnectionPool replica : replicas) {
+            replica.close();
+        }
+
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        openConnections.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(this, connection, statementCacheSize);
+    }
+
+    private PooledConnection takeIdleConnection() {
+        PooledConnection pooled;
+
+        // most recently returned connections first, they are the least likely to have been dropped by the server
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            if (pooled.isUsable(VALIDATION_INTERVAL_MILLIS, validationTimeoutSeconds)) {
+                return pooled;
+            }
+            discard(pooled);
+        }
+        return null;
+    }
+
+    void release(PooledConnection pooled) {
+        activeConnections.decrementAndGet();
+        try {
+            if (!closed && pooled.reset()) {
+                idleConnections.offerFirst(pooled);
+            }
+            else {
+                discard(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    void recordStatementCacheHit() {
+        statementCacheHits.incrementAndGet();
+    }
+
+    void recordStatementCacheMiss() {
+        statementCacheMisses.incrementAndGet();
+    }
+
+    void recordStatementOpened() {
+        openStatements.incrementAndGet();
+    }
+
+    void recordStatementClosed() {
+        openStatements.decrementAndGet();
+    }
+
+    void recordLeakedStatement() {
+        leakedStatementCount.incrementAndGet();
+    }
+
+    void recordResultSetOpened() {
+        openResultSets.incrementAndGet();
+    }
+
+    void recordResultSetClosed() {
+        openResultSets.decrementAndGet();
+    }
+
+    private void discard(PooledConnection pooled) {
+        openConnections.decrementAndGet();
+        discardedCount.incrementAndGet();
+        pooled.closePhysical();
+    }
+
+    /*
+    ------------------------------------------------
+    -------------------- METRICS -------------------
+    ------------------------------------------------
+    */
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    public int getPendingRequests() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    public long getAcquireTimeoutCount() {
+        return acquireTimeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    public double getStatementCacheHitRatio() {
+        long hits = statementCacheHits.get();
+        long total = hits + statementCacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Statements currently held by borrowers, cached statements sitting idle in the cache are not counted.
+     */
+    public int getOpenStatements() {
+        return openStatements.get();
+    }
+
+    public int getOpenResultSets() {
+        return openResultSets.get();
+    }
+
+    /**
+     * Statements that were still open when their connection was given back, and were closed by the pool.
+     */
+    public long getLeakedStatementCount() {
+        return leakedStatementCount.get();
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    public long getReplicaReadCount() {
+        return replicaReadCount.get();
+    }
+
+    public long getReplicaFallbackCount() {
+        return replicaFallbackCount.get();
+    }
+
+    public double getAverageAcquireMillis() {
+        long acquired = acquiredCount.get();
+        return acquired == 0 ? 0 : acquireWaitNanos.get() / 1e6 / acquired;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConnectionPool[active=%d, idle=%d, open=%d, max=%d, pending=%d, acquired=%d, " +
+                        "timeouts=%d, created=%d, discarded=%d, avgAcquire=%.3f ms, statementHits=%d, statementMisses=%d, " +
+                        "openStatements=%d, openResultSets=%d, leakedStatements=%d, " +
+                        "replicas=%d, replicaReads=%d, replicaFallbacks=%d]",
+                getActiveConnections(), getIdleConnections(), getOpenConnections(), maxConnections,
+                getPendingRequests(), getAcquiredCount(), getAcquireTimeoutCount(), getCreatedCount(),
+                getDiscardedCount(), getAverageAcquireMillis(), getStatementCacheHits(), getStatementCacheMisses(),
+                getOpenStatements(), getOpenResultSets(), getLeakedStatementCount(),
+                getReplicaCount(), getReplicaReadCount(), getReplicaFallbackCount());
+    }
+}
@@ -0,0 +1,69 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain-text HTTP endpoint for operators, serving the pool gauges and the query metrics on /metrics.
+ * It only listens on the loopback interface, the metrics are not meant to leave the machine.
+ */
+public class MetricsEndpoint {
+
+    private final HttpServer server;
+    private final List<ConnectionPool> pools;
+    private final QueryMetrics queryMetrics;
+
+    public MetricsEndpoint(int port, List<ConnectionPool> pools, QueryMetrics queryMetrics) throws IOException {
+        this.pools = new ArrayList<>(pools);
+        this.queryMetrics = queryMetrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < pools.size(); i++) {
+            report.append("shard ").append(i).append(": ").append(pools.get(i)).append('\n');
+        }
+        report.append('\n').append(queryMetrics.report());
+        return report.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
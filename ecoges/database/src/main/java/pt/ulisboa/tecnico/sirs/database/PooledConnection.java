@@ -0,0 +1,509 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Physical connection owned by a {@link ConnectionPool}.
+ * Each borrower gets its own handle, whose close() gives the physical connection back to the pool.
+ *
+ * Statements prepared with prepareStatement(sql) are kept open and handed out again the next time the
+ * same SQL is prepared on this connection, so the hot queries are only parsed once per physical connection.
+ *
+ * Every statement and result set handed to a borrower is tracked, and the ones still open when the connection
+ * is given back are closed by the pool (and counted as leaked), so a borrower that forgets to close them, or
+ * fails before doing so, does not leave cursors open on the database for the lifetime of the physical connection.
+ */
+class PooledConnection {
+
+    // settings of a cached statement restored when it is given back, so they do not reach the next borrower
+    private static final Set<String> RESTORED_SETTINGS = new HashSet<>(Arrays.asList(
+            "setMaxRows", "setLargeMaxRows", "setFetchSize", "setQueryTimeout", "setMaxFieldSize", "setFetchDirection"));
+    // settings that cannot be undone, a cached statement changed by them is closed instead of given back
+    private static final Set<String> PERMANENT_SETTINGS = new HashSet<>(Arrays.asList(
+            "setEscapeProcessing", "setPoolable", "setCursorName", "closeOnCompletion"));
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final int statementCacheSize;
+    private long lastReleasedAt;
+    private boolean broken = false;
+
+    // least recently used first
+    private final LinkedHashMap<String, CachedStatement> statementCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statementCacheSize = statementCacheSize;
+        this.lastReleasedAt = System.currentTimeMillis();
+    }
+
+    Connection lease() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new Handle());
+    }
+
+    boolean isUsable(long validationIntervalMillis, int validationTimeoutSeconds) {
+        if (System.currentTimeMillis() - lastReleasedAt < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return connection.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Restores the session defaults before the connection is handed to the next borrower.
+     * Returns false if the connection can no longer be used.
+     */
+    boolean reset() {
+        if (broken) {
+            return false;
+        }
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback(); // never leak an unfinished transaction to the next borrower
+                connection.setAutoCommit(true);
+            }
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+            connection.clearWarnings();
+            lastReleasedAt = System.currentTimeMillis();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void closePhysical() {
+        statementCache.clear();
+        try {
+            connection.close(); // also closes the cached statements
+        } catch (SQLException e) {
+            // connection is being discarded anyway
+        }
+    }
+
+    /**
+     * Returns the cached statement of the given SQL, or null if a plain statement must be prepared instead.
+     */
+    private CachedStatement prepareCached(String sql) throws SQLException {
+        if (statementCacheSize == 0) {
+            pool.recordStatementCacheMiss();
+            return null;
+        }
+
+        CachedStatement cached = statementCache.get(sql);
+        if (cached != null && cached.inUse) {
+            // same query already open by this borrower (e.g. nested loops), fall back to a plain statement
+            pool.recordStatementCacheMiss();
+            return null;
+        }
+
+        if (cached != null) {
+            pool.recordStatementCacheHit();
+        }
+        else {
+            pool.recordStatementCacheMiss();
+            cached = new CachedStatement(connection.prepareStatement(sql));
+            statementCache.put(sql, cached);
+            evictIdleStatements();
+        }
+
+        cached.inUse = true;
+        return cached;
+    }
+
+    private void evictIdleStatements() {
+        Iterator<CachedStatement> it = statementCache.values().iterator();
+        while (statementCache.size() > statementCacheSize && it.hasNext()) {
+            CachedStatement cached = it.next();
+            if (!cached.inUse) {
+                it.remove();
+                cached.closePhysical();
+            }
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private boolean closed = false;
+        private final List<StatementHandle> openStatements = new ArrayList<>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        // statements the borrower did not close are closed together with the connection
+                        for (StatementHandle statement : new ArrayList<>(openStatements)) {
+                            pool.recordLeakedStatement();
+                            statement.release();
+                        }
+                        pool.release(PooledConnection.this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + connection + (closed ? ", returned" : "") + "]";
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+
+            try {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        CachedStatement cached = args.length == 1 ? prepareCached((String) args[0]) : null;
+                        if (cached != null) {
+                            return track((Connection) proxy, method, cached.statement, cached, (String) args[0]);
+                        }
+                        return track((Connection) proxy, method, (Statement) method.invoke(connection, args), null, (String) args[0]);
+                    case "prepareCall":
+                        return track((Connection) proxy, method, (Statement) method.invoke(connection, args), null, (String) args[0]);
+                    case "createStatement":
+                        // the SQL is only known when it is executed
+                        return track((Connection) proxy, method, (Statement) method.invoke(connection, args), null, null);
+                    default:
+                        return method.invoke(connection, args);
+                }
+            } catch (InvocationTargetException e) {
+                throw failed(e.getCause());
+            } catch (SQLException e) {
+                throw failed(e);
+            }
+        }
+
+        private Statement track(Connection handle, Method method, Statement statement, CachedStatement cached, String sql) {
+            StatementHandle tracked = new StatementHandle(this, handle, statement, cached, sql);
+            openStatements.add(tracked);
+            pool.recordStatementOpened();
+            return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                    new Class<?>[] { method.getReturnType() }, tracked);
+        }
+    }
+
+    private Throwable failed(Throwable cause) {
+        // SQL state class 08 means the connection itself failed, so it must not be reused
+        if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                && ((SQLException) cause).getSQLState().startsWith("08")) {
+            broken = true;
+        }
+        return cause;
+    }
+
+    /**
+     * Prepared statement kept open across borrowers.
+     * Closing a leased statement only clears its parameters, pending batch and current result set,
+     * and restores the settings the borrower changed (e.g. the maximum number of rows or the query timeout).
+     */
+    private class CachedStatement {
+        private final PreparedStatement statement;
+        private boolean inUse = false;
+
+        // settings of the statement as prepared
+        private final int maxRows;
+        private final int fetchSize;
+        private final int queryTimeout;
+        private final int maxFieldSize;
+        private final int fetchDirection;
+        private boolean settingsChanged = false;
+        private boolean permanentlyChanged = false;
+
+        CachedStatement(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.maxRows = statement.getMaxRows();
+            this.fetchSize = statement.getFetchSize();
+            this.queryTimeout = statement.getQueryTimeout();
+            this.maxFieldSize = statement.getMaxFieldSize();
+            this.fetchDirection = statement.getFetchDirection();
+        }
+
+        void changed(String setting) {
+            if (RESTORED_SETTINGS.contains(setting)) {
+                settingsChanged = true;
+            }
+            else if (PERMANENT_SETTINGS.contains(setting)) {
+                permanentlyChanged = true;
+            }
+        }
+
+        void giveBack() {
+            if (!inUse) {
+                return;
+            }
+            inUse = false;
+            try {
+                if (permanentlyChanged) {
+                    throw new SQLException("Statement settings cannot be restored.");
+                }
+                ResultSet rs = statement.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                if (settingsChanged) {
+                    statement.setMaxRows(maxRows);
+                    statement.setFetchSize(fetchSize);
+                    statement.setQueryTimeout(queryTimeout);
+                    statement.setMaxFieldSize(maxFieldSize);
+                    statement.setFetchDirection(fetchDirection);
+                    settingsChanged = false;
+                }
+            } catch (SQLException e) {
+                // statement is no longer usable, drop it from the cache
+                statementCache.values().remove(this);
+                closePhysical();
+            }
+        }
+
+        void closePhysical() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // statement is being discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Statement handed to a borrower, cached or not. Its result sets are closed when it is closed or executed again.
+     * Executions are timed when the pool records query metrics.
+     */
+    private class StatementHandle implements InvocationHandler {
+        private final Handle owner;
+        private final Connection handle;
+        private final Statement statement;
+        private final CachedStatement cached; // null for statements that are not cached
+        private final List<ResultSetHandle> openResultSets = new ArrayList<>(1);
+        private boolean closed = false;
+        private String sql; // of the last execution
+
+        StatementHandle(Handle owner, Connection handle, Statement statement, CachedStatement cached, String sql) {
+            this.owner = owner;
+            this.handle = handle;
+            this.statement = statement;
+            this.cached = cached;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return handle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return (cached != null ? "CachedStatement[" : "TrackedStatement[") + statement + (closed ? ", returned" : "") + "]";
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Statement has already been closed.");
+            }
+            if (cached != null) {
+                cached.changed(method.getName());
+            }
+
+            boolean execution = method.getName().startsWith("execute");
+            if (execution) {
+                // executing a statement again closes the result set of its previous execution
+                closeResultSets();
+                if (args != null && args.length > 0 && args[0] instanceof String) {
+                    sql = (String) args[0]; // plain statements are given their SQL when executed
+                }
+            }
+
+            QueryMetrics metrics = execution && sql != null ? pool.getQueryMetrics() : null;
+            long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                Object result = method.invoke(statement, args);
+                if (result instanceof ResultSet) {
+                    return track(proxy, (ResultSet) result);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw failed(e.getCause());
+            } finally {
+                if (metrics != null) {
+                    metrics.recordExecution(sql, System.nanoTime() - start);
+                }
+            }
+        }
+
+        private ResultSet track(Object proxy, ResultSet resultSet) {
+            for (ResultSetHandle open : openResultSets) {
+                if (open.resultSet == resultSet) {
+                    return open.proxy; // e.g. getResultSet() called twice
+                }
+            }
+            ResultSetHandle tracked = new ResultSetHandle(this, (Statement) proxy, resultSet, sql);
+            openResultSets.add(tracked);
+            pool.recordResultSetOpened();
+            return tracked.proxy;
+        }
+
+        void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeResultSets();
+            owner.openStatements.remove(this);
+            pool.recordStatementClosed();
+
+            if (cached != null) {
+                cached.giveBack();
+            }
+            else {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // statement is being discarded anyway
+                }
+            }
+        }
+
+        private void closeResultSets() {
+            for (ResultSetHandle resultSet : new ArrayList<>(openResultSets)) {
+                resultSet.release();
+            }
+        }
+    }
+
+    /**
+     * Result set handed to a borrower, counting the rows and bytes read from it for the query metrics.
+     */
+    private class ResultSetHandle implements InvocationHandler {
+        private final StatementHandle owner;
+        private final Statement statementProxy;
+        private final ResultSet resultSet;
+        private final ResultSet proxy;
+        private final String sql;
+        private boolean closed = false;
+        private long rows = 0;
+        private long bytes = 0;
+
+        ResultSetHandle(StatementHandle owner, Statement statementProxy, ResultSet resultSet, String sql) {
+            this.owner = owner;
+            this.statementProxy = statementProxy;
+            this.resultSet = resultSet;
+            this.sql = sql;
+            this.proxy = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getStatement":
+                    return statementProxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Result set has already been closed.");
+            }
+
+            try {
+                Object result = method.invoke(resultSet, args);
+                if (result instanceof byte[]) {
+                    bytes += ((byte[]) result).length;
+                }
+                else if (result instanceof String) {
+                    bytes += utf8Length((String) result);
+                }
+                else if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                    rows++;
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw failed(e.getCause());
+            }
+        }
+
+        // the size of the value as sent by the server (utf8mb4), without encoding it again
+        private long utf8Length(String value) {
+            long length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            owner.openResultSets.remove(this);
+            pool.recordResultSetClosed();
+
+            QueryMetrics metrics = pool.getQueryMetrics();
+            if (metrics != null && sql != null) {
+                metrics.recordFetch(sql, rows, bytes);
+            }
+            try {
+                resultSet.close();
+            } catch (SQLException e) {
+                // result set is being discarded anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Execution time, rows and bytes read of every query run through the pools it is set on
+ * (see {@link ConnectionPool#setQueryMetrics(QueryMetrics)}).
+ * Queries are reported by the name of the constant holding their SQL when it was registered with
+ * {@link #registerQueries(Class)}, and by their SQL otherwise.
+ *
+ * The execution time only covers the execute call: the time spent reading the rows is not included.
+ * The bytes are those of the values read by the caller: byte arrays as they are, strings in UTF-8.
+ */
+public class QueryMetrics {
+
+    // upper bounds of the latency histogram buckets, the last bucket has no bound
+    private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000 };
+
+    private final long slowQueryNanos;
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    private final Map<String, QueryStats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong slowQueryCount = new AtomicLong();
+
+    /**
+     * @param slowQueryMillis queries taking at least this long are logged, 0 disables the log
+     */
+    public QueryMetrics(long slowQueryMillis) {
+        this.slowQueryNanos = slowQueryMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowQueryMillis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Names the queries by the public String constants of the given class (e.g. a DatabaseQueries class).
+     */
+    public void registerQueries(Class<?> queries) {
+        for (Field field : queries.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+                try {
+                    names.putIfAbsent((String) field.get(null), field.getName());
+                } catch (IllegalAccessException e) {
+                    // public fields are always accessible
+                }
+            }
+        }
+    }
+
+    public String nameOf(String sql) {
+        String name = names.get(sql);
+        return name != null ? name : sql;
+    }
+
+    void recordExecution(String sql, long nanos) {
+        String name = nameOf(sql);
+        stats.computeIfAbsent(name, k -> new QueryStats()).recordExecution(nanos);
+
+        if (nanos >= slowQueryNanos) {
+            slowQueryCount.incrementAndGet();
+            System.out.println("[!] Slow query (" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms): " + name);
+        }
+    }
+
+    void recordFetch(String sql, long rows, long bytes) {
+        stats.computeIfAbsent(nameOf(sql), k -> new QueryStats()).recordFetch(rows, bytes);
+    }
+
+    public QueryStats getStats(String sql) {
+        return stats.get(nameOf(sql));
+    }
+
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    /**
+     * One line per query, the ones taking the most time overall first.
+     */
+    public String report() {
+        List<Map.Entry<String, QueryStats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().getTotalNanos(), a.getValue().getTotalNanos()));
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-50s %10s %12s %10s %10s %10s %10s %12s %14s%n",
+                "query", "count", "total ms", "avg ms", "p50 ms", "p99 ms", "max ms", "rows", "bytes"));
+        for (Map.Entry<String, QueryStats> entry : entries) {
+            QueryStats query = entry.getValue();
+            report.append(String.format("%-50s %10d %12.1f %10.3f %10s %10s %10.1f %12d %14d%n",
+                    entry.getKey(), query.getCount(), query.getTotalNanos() / 1e6, query.getAverageMillis(),
+                    bucketLabel(query.percentileBucket(0.50)), bucketLabel(query.percentileBucket(0.99)),
+                    query.getMaxNanos() / 1e6, query.getRows(), query.getBytes()));
+        }
+        report.append("slow queries: ").append(getSlowQueryCount()).append('\n');
+        return report.toString();
+    }
+
+    private static String bucketLabel(int bucket) {
+        if (bucket < 0) {
+            return "-";
+        }
+        return bucket < BUCKET_BOUNDS_MILLIS.length ? "<=" + BUCKET_BOUNDS_MILLIS[bucket] : ">" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1];
+    }
+
+    public static class QueryStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+        void recordExecution(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+        }
+
+        void recordFetch(long rows, long bytes) {
+            this.rows.addAndGet(rows);
+            this.bytes.addAndGet(bytes);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public double getAverageMillis() {
+            long executions = count.get();
+            return executions == 0 ? 0 : totalNanos.get() / 1e6 / executions;
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Returns the histogram bucket holding the given percentile of the execution times, -1 if there is none.
+         */
+        public int percentileBucket(double percentile) {
+            long executions = 0;
+            for (int i = 0; i < histogram.length(); i++) {
+                executions += histogram.get(i);
+            }
+            long rank = (long) Math.ceil(percentile * executions);
+
+            long seen = 0;
+            for (int i = 0; i < histogram.length(); i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
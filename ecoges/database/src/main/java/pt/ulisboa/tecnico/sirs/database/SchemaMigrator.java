@@ -0,0 +1,153 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Brings the tables of a component (webserver, backoffice, ...) up to date without touching the stored data.
+ * Migrations are numbered by their position in the list, starting at 1, and only the ones above the version
+ * recorded in the schema_version table are run, so a restart on an up-to-date database runs none of them.
+ * Migrations must therefore only be appended, never changed once released.
+ *
+ * Every statement of a migration should be idempotent (CREATE TABLE IF NOT EXISTS, ...): MySQL commits DDL
+ * statements on its own, so a migration interrupted halfway is run again from its first statement.
+ * Adding a column that already exists is not an error, so ALTER TABLE ... ADD COLUMN can be run again too.
+ *
+ * A database with no version recorded may still hold the tables of a server from before versioning started, in a
+ * layout the first migration knows nothing about. The legacy statements given to the migrator (e.g. dropping those
+ * tables) are run on such a database before its first migration.
+ */
+public class SchemaMigrator {
+
+    private static final String CREATE_SCHEMA_VERSION_TABLE =
+            "CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "component VARCHAR(50) NOT NULL, " +
+                    "version INTEGER NOT NULL, " +
+                    "PRIMARY KEY (component))";
+
+    private static final String READ_SCHEMA_VERSION = "SELECT version FROM schema_version WHERE component = ?";
+    private static final String UPDATE_SCHEMA_VERSION = "INSERT INTO schema_version(component, version) VALUES(?, ?) " +
+            "ON DUPLICATE KEY UPDATE version = VALUES(version)";
+
+    // servers starting at the same time (e.g. during a rolling restart) migrate one after the other
+    private static final String ACQUIRE_LOCK = "SELECT GET_LOCK(?, ?)";
+    private static final String RELEASE_LOCK = "SELECT RELEASE_LOCK(?)";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    // MySQL has no ADD COLUMN IF NOT EXISTS, a column added by an interrupted migration is found already there
+    private static final int ER_DUP_FIELDNAME = 1060;
+
+    private final String component;
+    private final List<String[]> migrations;
+    private final String[] legacy;
+
+    public SchemaMigrator(String component, List<String[]> migrations) {
+        this(component, migrations, new String[0]);
+    }
+
+    public SchemaMigrator(String component, List<String[]> migrations, String[] legacy) {
+        this.component = component;
+        this.migrations = Collections.unmodifiableList(new ArrayList<>(migrations));
+        this.legacy = legacy.clone();
+    }
+
+    public int getLatestVersion() {
+        return migrations.size();
+    }
+
+    /**
+     * Runs the pending migrations on the given database and returns how many were run.
+     */
+    public int migrate(ConnectionPool dbPool) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            String lockName = "schema_version." + component;
+            acquireLock(dbConnection, lockName);
+            try {
+                return migrate(dbConnection);
+            } finally {
+                PreparedStatement st = dbConnection.prepareStatement(RELEASE_LOCK);
+                st.setString(1, lockName);
+                st.executeQuery().close();
+                st.close();
+            }
+        }
+    }
+
+    private int migrate(Connection dbConnection) throws SQLException {
+        Statement statement = dbConnection.createStatement();
+        statement.execute(CREATE_SCHEMA_VERSION_TABLE);
+
+        int version = readVersion(dbConnection);
+        if (version > migrations.size()) {
+            statement.close();
+            throw new SQLException("Database schema of " + component + " is at version " + version +
+                    ", newer than the latest known version " + migrations.size() + ".");
+        }
+
+        if (version == 0) {
+            // nothing was migrated yet: whatever is there was left by a server from before versioning started,
+            // or by a first migration interrupted before its version was recorded
+            for (String sql : legacy) {
+                statement.execute(sql);
+            }
+        }
+
+        for (int next = version + 1; next <= migrations.size(); next++) {
+            for (String sql : migrations.get(next - 1)) {
+                try {
+                    statement.execute(sql);
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != ER_DUP_FIELDNAME) {
+                        statement.close();
+                        throw e;
+                    }
+                }
+            }
+            updateVersion(dbConnection, next);
+        }
+        statement.close();
+        return migrations.size() - version;
+    }
+
+    public int readVersion(ConnectionPool dbPool) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement statement = dbConnection.createStatement();
+            statement.execute(CREATE_SCHEMA_VERSION_TABLE);
+            statement.close();
+            return readVersion(dbConnection);
+        }
+    }
+
+    private int readVersion(Connection dbConnection) throws SQLException {
+        PreparedStatement st = dbConnection.prepareStatement(READ_SCHEMA_VERSION);
+        st.setString(1, component);
+        ResultSet rs = st.executeQuery();
+
+        int version = rs.next() ? rs.getInt(1) : 0;
+        st.close();
+        return version;
+    }
+
+    private void updateVersion(Connection dbConnection, int version) throws SQLException {
+        PreparedStatement st = dbConnection.prepareStatement(UPDATE_SCHEMA_VERSION);
+        st.setString(1, component);
+        st.setInt(2, version);
+        st.executeUpdate();
+        st.close();
+    }
+
+    private void acquireLock(Connection dbConnection, String lockName) throws SQLException {
+        PreparedStatement st = dbConnection.prepareStatement(ACQUIRE_LOCK);
+        st.setString(1, lockName);
+        st.setInt(2, LOCK_TIMEOUT_SECONDS);
+        ResultSet rs = st.executeQuery();
+
+        boolean acquired = rs.next() && rs.getInt(1) == 1;
+        st.close();
+        if (!acquired) {
+            throw new SQLException("Timed out waiting for another server to migrate the schema of " + component + ".");
+        }
+    }
+}
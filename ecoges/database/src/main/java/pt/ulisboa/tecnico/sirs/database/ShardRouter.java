@@ -0,0 +1,74 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Spreads clients over several databases (shards) by a hash of their email.
+ * All the rows of a client (appliances, solar panels, invoices, ...) are stored in the shard of its email,
+ * so that every client request is served by a single database. Data not owned by any client, such as the
+ * compartment keys and the admins, is stored in the first shard.
+ * Clients are never moved between shards, so the list of shards must not change once data is stored.
+ */
+public class ShardRouter implements AutoCloseable {
+
+    private final List<ConnectionPool> shards;
+
+    public ShardRouter(ConnectionPool dbPool) {
+        this(Collections.singletonList(dbPool));
+    }
+
+    public ShardRouter(List<ConnectionPool> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+    }
+
+    /**
+     * Returns the index of the shard storing the client with the given email.
+     * Uses CRC32 instead of String.hashCode so that the placement does not depend on the JVM.
+     */
+    public int shardOf(String email) {
+        CRC32 crc = new CRC32();
+        crc.update(email.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shards.size());
+    }
+
+    public ConnectionPool forClient(String email) {
+        return shards.get(shardOf(email));
+    }
+
+    /**
+     * Returns the shard storing the data that is not owned by any client.
+     */
+    public ConnectionPool global() {
+        return shards.get(0);
+    }
+
+    /**
+     * Returns every shard, for the operations that go over all clients.
+     */
+    public List<ConnectionPool> all() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    @Override
+    public void close() {
+        for (ConnectionPool shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardRouter" + shards;
+    }
+}
@@ -0,0 +1,95 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Binds one connection and one transaction to a single request.
+ * The transaction is committed only if {@link #commit()} is called, closing the unit of work
+ * without committing rolls it back.
+ *
+ * A unit of work opened with {@link #join(Connection)} on a connection that is already inside a
+ * transaction takes part in it: commit and rollback are left to the unit of work that started it.
+ */
+public class UnitOfWork implements AutoCloseable {
+
+    private final Connection connection;
+    private final boolean ownsConnection;
+    private final boolean ownsTransaction;
+    private boolean completed = false;
+
+    private UnitOfWork(Connection connection, boolean ownsConnection) throws SQLException {
+        this.connection = connection;
+        this.ownsConnection = ownsConnection;
+        this.ownsTransaction = connection.getAutoCommit();
+
+        if (ownsTransaction) {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool and starts a transaction on it.
+     * The connection is given back to the pool when the unit of work is closed.
+     */
+    public static UnitOfWork begin(ConnectionPool pool) throws SQLException {
+        Connection connection = pool.getConnection();
+        try {
+            return new UnitOfWork(connection, true);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs on a connection owned by the caller, starting a transaction only if none is in progress.
+     */
+    public static UnitOfWork join(Connection connection) throws SQLException {
+        return new UnitOfWork(connection, false);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public boolean isOutermost() {
+        return ownsTransaction;
+    }
+
+    public void commit() throws SQLException {
+        if (completed) {
+            throw new SQLException("Unit of work has already been completed.");
+        }
+        if (ownsTransaction) {
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+        completed = true;
+    }
+
+    public void rollback() throws SQLException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        if (ownsTransaction) {
+            try {
+                connection.rollback();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            rollback();
+        } finally {
+            if (ownsConnection) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import org.junit.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+public class ConnectionPoolTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+
+    private static final String SELECT_ONE = "SELECT 1";
+    private static final String SELECT_TWO_ROWS = "SELECT 1 UNION ALL SELECT 2";
+
+    private static ConnectionPool dbPool;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 2, 200, 5);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        dbPool.close();
+    }
+
+    @Test
+    public void reuseConnectionTest() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Assert.assertTrue(dbConnection.isValid(5));
+        }
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Assert.assertTrue(dbConnection.isValid(5));
+        }
+        Assert.assertEquals(0, dbPool.getActiveConnections());
+        Assert.assertTrue(dbPool.getOpenConnections() <= dbPool.getMaxConnections());
+    }
+
+    @Test
+    public void exhaustedPoolTest() throws SQLException {
+        try (Connection first = dbPool.getConnection(); Connection second = dbPool.getConnection()) {
+            Assert.assertThrows(SQLTransientConnectionException.class, () -> dbPool.getConnection());
+        }
+        Assert.assertEquals(0, dbPool.getActiveConnections());
+    }
+
+    @Test
+    public void statementCacheTest() throws SQLException {
+        long hits = dbPool.getStatementCacheHits();
+
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_ONE);
+            st.executeQuery();
+            st.close();
+
+            // a second statement for the same query must reuse the first one
+            st = dbConnection.prepareStatement(SELECT_ONE);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals(1, rs.getInt(1));
+            st.close();
+
+            Assert.assertTrue(st.isClosed());
+            Assert.assertThrows(SQLException.class, st::executeQuery);
+        }
+        Assert.assertTrue(dbPool.getStatementCacheHits() > hits);
+    }
+
+    @Test
+    public void statementSettingsResetTest() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_TWO_ROWS);
+            st.setMaxRows(1);
+            st.setQueryTimeout(3);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertFalse(rs.next());
+            st.close();
+        }
+
+        // the next borrower of the cached statement does not inherit the settings
+        long hits = dbPool.getStatementCacheHits();
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_TWO_ROWS);
+            Assert.assertEquals(0, st.getMaxRows());
+            Assert.assertEquals(0, st.getQueryTimeout());
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertTrue(rs.next());
+            st.close();
+        }
+        Assert.assertTrue(dbPool.getStatementCacheHits() > hits);
+    }
+
+    @Test
+    public void leakedStatementTest() throws SQLException {
+        long leaked = dbPool.getLeakedStatementCount();
+        ResultSet cachedResult;
+        ResultSet plainResult;
+
+        try (Connection dbConnection = dbPool.getConnection()) {
+            // neither statement nor their result sets are closed by the borrower
+            cachedResult = dbConnection.prepareStatement(SELECT_ONE).executeQuery();
+            plainResult = dbConnection.createStatement().executeQuery(SELECT_ONE);
+
+            Assert.assertEquals(2, dbPool.getOpenStatements());
+            Assert.assertEquals(2, dbPool.getOpenResultSets());
+        }
+
+        Assert.assertTrue(cachedResult.isClosed());
+        Assert.assertTrue(plainResult.isClosed());
+        Assert.assertEquals(0, dbPool.getOpenStatements());
+        Assert.assertEquals(0, dbPool.getOpenResultSets());
+        Assert.assertEquals(leaked + 2, dbPool.getLeakedStatementCount());
+    }
+
+    @Test
+    public void resultSetClosedOnExecuteTest() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_ONE);
+            ResultSet first = st.executeQuery();
+            ResultSet second = st.executeQuery();
+
+            Assert.assertTrue(first.isClosed());
+            Assert.assertFalse(second.isClosed());
+            Assert.assertEquals(1, dbPool.getOpenResultSets());
+            Assert.assertSame(st, second.getStatement());
+
+            st.close();
+            Assert.assertTrue(second.isClosed());
+            Assert.assertEquals(0, dbPool.getOpenResultSets());
+        }
+    }
+
+    @Test
+    public void readReplicaTest() throws SQLException {
+        // the same database stands in for the replica
+        try (ConnectionPool primary = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5)) {
+            ConnectionPool replica = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5);
+            primary.addReplica(replica);
+
+            try (Connection dbConnection = primary.getReadConnection(true)) {
+                Assert.assertTrue(dbConnection.isValid(5));
+                Assert.assertEquals(1, replica.getActiveConnections());
+                Assert.assertEquals(0, primary.getActiveConnections());
+            }
+            try (Connection dbConnection = primary.getReadConnection(false)) {
+                Assert.assertEquals(1, primary.getActiveConnections());
+                Assert.assertEquals(0, replica.getActiveConnections());
+            }
+            Assert.assertEquals(1, primary.getReplicaReadCount());
+        }
+    }
+
+    @Test
+    public void unreachableReplicaTest() throws SQLException {
+        try (ConnectionPool primary = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5)) {
+            primary.addReplica(new ConnectionPool("jdbc:mysql://localhost:1/clientdb", DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5));
+
+            // reads fall back to the primary
+            try (Connection dbConnection = primary.getReadConnection(true)) {
+                Assert.assertTrue(dbConnection.isValid(5));
+                Assert.assertEquals(1, primary.getActiveConnections());
+            }
+            Assert.assertEquals(0, primary.getReplicaReadCount());
+            Assert.assertEquals(1, primary.getReplicaFallbackCount());
+        }
+    }
+
+    @Test
+    public void returnedConnectionTest() throws SQLException {
+        Connection dbConnection = dbPool.getConnection();
+        dbConnection.setAutoCommit(false);
+        dbConnection.close();
+
+        Assert.assertTrue(dbConnection.isClosed());
+        Assert.assertThrows(SQLException.class, dbConnection::createStatement);
+
+        // the next borrower must not inherit the previous session state
+        try (Connection next = dbPool.getConnection()) {
+            Assert.assertTrue(next.getAutoCommit());
+        }
+    }
+}
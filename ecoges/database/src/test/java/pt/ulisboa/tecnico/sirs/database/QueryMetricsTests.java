@@ -0,0 +1,113 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Collections;
+
+public class QueryMetricsTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+
+    // named by registerQueries
+    public static final String SELECT_TWO_ROWS = "SELECT 'abc' UNION ALL SELECT 'de'";
+    public static final String SELECT_ENCODED_ROW = "SELECT '\u00e9\u20ac', x'010203'";
+    public static final String SELECT_SLEEP = "SELECT SLEEP(0.05)";
+
+    private static ConnectionPool dbPool;
+    private static QueryMetrics queryMetrics;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 2, 1000, 5);
+        queryMetrics = new QueryMetrics(25);
+        queryMetrics.registerQueries(QueryMetricsTests.class);
+        dbPool.setQueryMetrics(queryMetrics);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        dbPool.close();
+    }
+
+    @Test
+    public void rowsAndBytesTest() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_TWO_ROWS);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                rs.getString(1);
+            }
+            st.close();
+        }
+
+        QueryMetrics.QueryStats stats = queryMetrics.getStats(SELECT_TWO_ROWS);
+        Assert.assertEquals("SELECT_TWO_ROWS", queryMetrics.nameOf(SELECT_TWO_ROWS));
+        Assert.assertEquals(1, stats.getCount());
+        Assert.assertEquals(2, stats.getRows());
+        Assert.assertEquals(5, stats.getBytes());
+        Assert.assertTrue(stats.percentileBucket(0.99) >= 0);
+    }
+
+    @Test
+    public void encodedBytesTest() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_ENCODED_ROW);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            rs.getString(1);
+            rs.getBytes(2);
+            st.close();
+        }
+
+        // two and three bytes for the characters of the string, one for each byte of the binary value
+        Assert.assertEquals(8, queryMetrics.getStats(SELECT_ENCODED_ROW).getBytes());
+    }
+
+    @Test
+    public void slowQueryTest() throws SQLException {
+        long slowQueries = queryMetrics.getSlowQueryCount();
+
+        // plain statements are named when executed
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            st.executeQuery(SELECT_SLEEP).close();
+            st.close();
+        }
+
+        Assert.assertEquals(slowQueries + 1, queryMetrics.getSlowQueryCount());
+        Assert.assertTrue(queryMetrics.getStats(SELECT_SLEEP).getMaxNanos() >= 25_000_000);
+        Assert.assertTrue(queryMetrics.report().contains("SELECT_SLEEP"));
+    }
+
+    @Test
+    public void metricsEndpointTest() throws SQLException, IOException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(SELECT_TWO_ROWS);
+            st.executeQuery();
+            st.close();
+        }
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(0, Collections.singletonList(dbPool), queryMetrics);
+        endpoint.start();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + endpoint.getPort() + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                Assert.assertTrue(body.contains("ConnectionPool["));
+                Assert.assertTrue(body.contains("SELECT_TWO_ROWS"));
+            }
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
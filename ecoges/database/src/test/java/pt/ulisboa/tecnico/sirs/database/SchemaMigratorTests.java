@@ -0,0 +1,124 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SchemaMigratorTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+
+    private static final String COMPONENT = "junit4-schema-migrator";
+
+    private static final String DROP_TEST_TABLE = "DROP TABLE IF EXISTS schema_migrator_test";
+    private static final String CREATE_TEST_TABLE = "CREATE TABLE IF NOT EXISTS schema_migrator_test (id INTEGER NOT NULL, PRIMARY KEY (id))";
+    private static final String INSERT_TEST_ROW = "INSERT INTO schema_migrator_test(id) VALUES(1)";
+    private static final String ADD_TEST_COLUMN = "ALTER TABLE schema_migrator_test ADD COLUMN name VARCHAR(50) DEFAULT 'migrated'";
+    private static final String READ_TEST_IDS = "SELECT id FROM schema_migrator_test";
+    private static final String READ_TEST_NAMES = "SELECT name FROM schema_migrator_test";
+    private static final String RESET_TEST_VERSION = "UPDATE schema_version SET version = 1 WHERE component = '" + COMPONENT + "'";
+    private static final String DELETE_TEST_VERSION = "DELETE FROM schema_version WHERE component = '" + COMPONENT + "'";
+
+    private static ConnectionPool dbPool;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 2, 1000, 5);
+    }
+
+    @AfterClass
+    public static void cleanup() throws SQLException {
+        reset();
+        dbPool.close();
+    }
+
+    @Before
+    public void init() throws SQLException {
+        reset();
+    }
+
+    @Test
+    public void migrateOnceTest() throws SQLException {
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, Collections.singletonList(new String[] { CREATE_TEST_TABLE }));
+        Assert.assertEquals(1, migrator.migrate(dbPool));
+        execute(INSERT_TEST_ROW);
+
+        // restarting keeps the stored rows
+        Assert.assertEquals(0, migrator.migrate(dbPool));
+        Assert.assertEquals(1, migrator.readVersion(dbPool));
+        Assert.assertEquals(1, readRows(READ_TEST_IDS).size());
+    }
+
+    @Test
+    public void migrateOnlyNewVersionsTest() throws SQLException {
+        List<String[]> migrations = new ArrayList<>();
+        migrations.add(new String[] { CREATE_TEST_TABLE });
+        new SchemaMigrator(COMPONENT, migrations).migrate(dbPool);
+        execute(INSERT_TEST_ROW);
+
+        migrations.add(new String[] { ADD_TEST_COLUMN });
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, migrations);
+        Assert.assertEquals(1, migrator.migrate(dbPool));
+        Assert.assertEquals(2, migrator.readVersion(dbPool));
+        Assert.assertEquals(Collections.singletonList("migrated"), readRows(READ_TEST_NAMES));
+    }
+
+    @Test
+    public void interruptedAddColumnTest() throws SQLException {
+        List<String[]> migrations = new ArrayList<>();
+        migrations.add(new String[] { CREATE_TEST_TABLE });
+        migrations.add(new String[] { ADD_TEST_COLUMN });
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, migrations);
+        migrator.migrate(dbPool);
+
+        // the column was added but the version was not recorded
+        execute(RESET_TEST_VERSION);
+        Assert.assertEquals(1, migrator.migrate(dbPool));
+        Assert.assertEquals(2, migrator.readVersion(dbPool));
+    }
+
+    @Test
+    public void newerSchemaTest() throws SQLException {
+        List<String[]> migrations = new ArrayList<>();
+        migrations.add(new String[] { CREATE_TEST_TABLE });
+        migrations.add(new String[] { ADD_TEST_COLUMN });
+        new SchemaMigrator(COMPONENT, migrations).migrate(dbPool);
+
+        // an older server must not run on a schema it does not know
+        SchemaMigrator older = new SchemaMigrator(COMPONENT, migrations.subList(0, 1));
+        Assert.assertThrows(SQLException.class, () -> older.migrate(dbPool));
+    }
+
+    private static void reset() throws SQLException {
+        execute(DROP_TEST_TABLE);
+        new SchemaMigrator(COMPONENT, Collections.emptyList()).readVersion(dbPool); // creates the version table
+        execute(DELETE_TEST_VERSION);
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            st.execute(sql);
+            st.close();
+        }
+    }
+
+    private static List<String> readRows(String sql) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            List<String> rows = new ArrayList<>();
+            Statement st = dbConnection.createStatement();
+            ResultSet rs = st.executeQuery(sql);
+            while (rs.next()) {
+                rows.add(rs.getString(1));
+            }
+            st.close();
+            return rows;
+        }
+    }
+}
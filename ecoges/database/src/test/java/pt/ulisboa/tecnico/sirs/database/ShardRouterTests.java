@@ -0,0 +1,57 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import org.junit.*;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ShardRouterTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+
+    private static ShardRouter shards;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        // pools to the same database are enough to check the routing
+        shards = new ShardRouter(Arrays.asList(
+                new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5),
+                new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5),
+                new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 0, 1, 200, 5)));
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        shards.close();
+    }
+
+    @Test
+    public void stablePlacementTest() {
+        for (int i = 0; i < 100; i++) {
+            String email = "junit-client" + i + "@ecoges.pt";
+            Assert.assertEquals(shards.shardOf(email), shards.shardOf(email));
+            Assert.assertSame(shards.all().get(shards.shardOf(email)), shards.forClient(email));
+        }
+    }
+
+    @Test
+    public void spreadClientsTest() {
+        int[] clients = new int[shards.size()];
+        for (int i = 0; i < 3000; i++) {
+            clients[shards.shardOf("junit-client" + i + "@ecoges.pt")]++;
+        }
+        for (int shardClients : clients) {
+            Assert.assertTrue(shardClients > 800);
+        }
+    }
+
+    @Test
+    public void globalShardTest() {
+        Assert.assertSame(shards.all().get(0), shards.global());
+        Assert.assertThrows(IllegalArgumentException.class, () -> new ShardRouter(Collections.emptyList()));
+    }
+}
@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.sirs.database;
+
+import org.junit.*;
+
+import java.sql.*;
+
+public class UnitOfWorkTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+
+    private static final String DROP_TEST_TABLE = "DROP TABLE IF EXISTS unit_of_work_test";
+    private static final String CREATE_TEST_TABLE = "CREATE TABLE unit_of_work_test (id INTEGER NOT NULL, PRIMARY KEY (id))";
+    private static final String INSERT_TEST_ROW = "INSERT INTO unit_of_work_test(id) VALUES(?)";
+    private static final String READ_TEST_ROW_COUNT = "SELECT COUNT(*) FROM unit_of_work_test WHERE id = ?";
+
+    private static ConnectionPool dbPool;
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 2, 1000, 5);
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            st.execute(DROP_TEST_TABLE);
+            st.execute(CREATE_TEST_TABLE);
+            st.close();
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            st.execute(DROP_TEST_TABLE);
+            st.close();
+        }
+        dbPool.close();
+    }
+
+    @Test
+    public void commitTest() throws SQLException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(dbPool)) {
+            insert(unitOfWork.getConnection(), 1);
+            unitOfWork.commit();
+        }
+        Assert.assertEquals(1, count(1));
+    }
+
+    @Test
+    public void rollbackOnCloseTest() throws SQLException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(dbPool)) {
+            insert(unitOfWork.getConnection(), 2);
+        }
+        Assert.assertEquals(0, count(2));
+        Assert.assertEquals(0, dbPool.getActiveConnections());
+    }
+
+    @Test
+    public void joinTest() throws SQLException {
+        try (UnitOfWork outer = UnitOfWork.begin(dbPool)) {
+            try (UnitOfWork inner = UnitOfWork.join(outer.getConnection())) {
+                Assert.assertFalse(inner.isOutermost());
+                insert(inner.getConnection(), 3);
+                inner.commit();
+            }
+            // the inner commit must not end the outer transaction
+            Assert.assertFalse(outer.getConnection().getAutoCommit());
+        }
+        Assert.assertEquals(0, count(3));
+    }
+
+    private static void insert(Connection dbConnection, int id) throws SQLException {
+        PreparedStatement st = dbConnection.prepareStatement(INSERT_TEST_ROW);
+        st.setInt(1, id);
+        st.executeUpdate();
+        st.close();
+    }
+
+    private static int count(int id) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_TEST_ROW_COUNT);
+            st.setInt(1, id);
+            ResultSet rs = st.executeQuery();
+            rs.next();
+            int count = rs.getInt(1);
+            st.close();
+            return count;
+        }
+    }
+}
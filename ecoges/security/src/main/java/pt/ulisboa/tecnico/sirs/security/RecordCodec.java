@@ -0,0 +1,81 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Packs the numeric values of a row (e.g. the energy totals of a client) into a single record encrypted at once,
+ * instead of encrypting the text of each value on its own.
+ * A record holds a version byte, the number of values and each value as a big-endian IEEE 754 float.
+ */
+public class RecordCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 2;
+    private static final int MAX_VALUES = 255;
+
+    public static byte[] encode(float... values) {
+        if (values.length > MAX_VALUES) {
+            throw new IllegalArgumentException("A record holds at most " + MAX_VALUES + " values.");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + Float.BYTES * values.length);
+        record.put((byte) VERSION);
+        record.put((byte) values.length);
+        for (float value : values) {
+            record.putFloat(value);
+        }
+        return record.array();
+    }
+
+    public static float[] decode(byte[] record) {
+        if (record.length < HEADER_SIZE || record[0] != VERSION) {
+            throw new IllegalArgumentException("Unknown record version.");
+        }
+
+        int count = record[1] & 0xff;
+        if (record.length != HEADER_SIZE + Float.BYTES * count) {
+            throw new IllegalArgumentException("Record of " + count + " values has " + record.length + " bytes.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(record, HEADER_SIZE, Float.BYTES * count);
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = buffer.getFloat();
+        }
+        return values;
+    }
+
+    public static byte[] encrypt(SecretKey key, byte[] iv, float... values) throws IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeyException {
+        return Security.encryptData(encode(values), key, iv);
+    }
+
+    public static float[] decrypt(SecretKey key, byte[] iv, byte[] record) throws IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeyException {
+        return decode(Security.decryptData(record, key, iv));
+    }
+
+    /**
+     * Reads values stored before records existed, each one encrypted on its own as the text of the float
+     * (before ciphertexts started with a version too).
+     */
+    public static float[] decryptLegacy(SecretKey key, byte[] iv, byte[][] values) throws IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeyException {
+        float[] decrypted = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            decrypted[i] = Float.parseFloat(new String(Security.decryptUnversioned(values[i], key, iv)));
+        }
+        return decrypted;
+    }
+}
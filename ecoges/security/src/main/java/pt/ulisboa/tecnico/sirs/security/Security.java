@@ -4,17 +4,101 @@ import com.google.protobuf.ByteString;
 import pt.ulisboa.tecnico.sirs.security.exceptions.WeakPasswordException;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.*;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Security {
 
+    /**
+     * Mode data is encrypted with. Data encrypted with either mode can always be decrypted.
+     */
+    public enum CipherMode {
+        // a version byte and the ciphertext, with the IV stored beside the row
+        CBC,
+        // a version byte, a nonce drawn for each ciphertext and the authenticated ciphertext,
+        // so the IV of the row (shared by several columns and kept across updates) is never used as a nonce
+        GCM
+    }
+
+    private static final String CBC_CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String GCM_CIPHER = "AES/GCM/NoPadding";
+
+    // first byte of every ciphertext, telling the mode it was encrypted with
+    // (ciphertexts stored before it existed are CBC ciphertexts, read with decryptUnversioned)
+    public static final byte CBC_VERSION = 1;
+    public static final byte GCM_VERSION = 2;
+    private static final int CBC_HEADER_SIZE = 1;
+    private static final int GCM_NONCE_SIZE = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int GCM_HEADER_SIZE = 1 + GCM_NONCE_SIZE;
+
+    // CBC encrypts and decrypts the short values of a row faster (see DataEncryptionBenchmark), GCM is opt-in
+    private static volatile CipherMode cipherMode = CipherMode.CBC;
+
+    // Cipher instances are not thread-safe, so every thread keeps its own, one per key and mode.
+    // Re-initialising a cipher with the key it already holds only changes the IV, the key schedule is kept.
+    private static final int CIPHERS_PER_THREAD = 8;
+    private static final ThreadLocal<Map<SecretKey, Cipher>> encryptCiphers = ThreadLocal.withInitial(CipherCache::new);
+    private static final ThreadLocal<Map<SecretKey, Cipher>> decryptCiphers = ThreadLocal.withInitial(CipherCache::new);
+    private static final ThreadLocal<Map<SecretKey, Cipher>> gcmEncryptCiphers = ThreadLocal.withInitial(CipherCache::new);
+    private static final ThreadLocal<Map<SecretKey, Cipher>> gcmDecryptCiphers = ThreadLocal.withInitial(CipherCache::new);
+    private static final LongAdder cipherCacheHits = new LongAdder();
+    private static final LongAdder cipherCacheMisses = new LongAdder();
+
+    // Random bytes come from a DRBG per thread, seeded once by the JDK, instead of a new generator per call.
+    // IVs and salts are public values, so they are drawn in batches and handed out from a buffer.
+    private static final int RANDOM_SIZE = 16;
+    private static final int RANDOMS_PER_BATCH = 64;
+    private static final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(Security::newRandom);
+    private static final ThreadLocal<RandomBatch> randomBatches = ThreadLocal.withInitial(RandomBatch::new);
+
+    private static class RandomBatch {
+        private final byte[] buffer = new byte[RANDOM_SIZE * RANDOMS_PER_BATCH];
+        private int position = buffer.length;
+
+        byte[] next() {
+            if (position == buffer.length) {
+                randoms.get().nextBytes(buffer);
+                position = 0;
+            }
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + RANDOM_SIZE);
+            Arrays.fill(buffer, position, position + RANDOM_SIZE, (byte) 0); // never handed out twice
+            position += RANDOM_SIZE;
+            return bytes;
+        }
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private static class CipherCache extends LinkedHashMap<SecretKey, Cipher> {
+        CipherCache() {
+            super(CIPHERS_PER_THREAD, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SecretKey, Cipher> eldest) {
+            // e.g. the temporary keys of past energy data re-encryptions
+            return size() > CIPHERS_PER_THREAD;
+        }
+    }
+
     public static boolean verifyStrongPassword(String password) throws WeakPasswordException {
         String regex = "" +
                 "^" + // start of line
@@ -44,9 +128,9 @@ public class Security {
     }
 
     public static String generateToken() throws NoSuchAlgorithmException {
-        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        // tokens are secrets, they are never kept in a buffer
         byte[] bytes = new byte[20];
-        random.nextBytes(bytes);
+        randoms.get().nextBytes(bytes);
         return java.time.LocalDate.now() + bytesToHex(bytes);
     }
 
@@ -59,11 +143,11 @@ public class Security {
         return bytesToHex(bytes);
     }
 
+    /**
+     * Returns 16 random bytes for an IV or a salt.
+     */
     public static byte[] generateRandom() throws NoSuchAlgorithmException {
-        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
-        byte[] bytes = new byte[16];
-        random.nextBytes(bytes);
-        return bytes;
+        return randomBatches.get().next();
     }
 
     public static String bytesToHex(byte[] bytes) {
@@ -79,23 +163,126 @@ public class Security {
     }
 
     public static byte[] encryptData(String plainText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return encryptData(plainText.getBytes(), key, iv);
+    }
+
+    public static void setCipherMode(CipherMode mode) {
+        cipherMode = mode;
+    }
+
+    public static CipherMode getCipherMode() {
+        return cipherMode;
+    }
+
+    /**
+     * Encrypts with the current cipher mode. With GCM, the IV of the row is authenticated along with the data
+     * instead of being used as the nonce.
+     */
+    public static byte[] encryptData(byte[] plainText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return encryptData(plainText, key, iv, cipherMode);
+    }
+
+    public static byte[] encryptData(byte[] plainText, SecretKey key, byte[] iv, CipherMode mode) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        if (mode == CipherMode.GCM) {
+            return encryptGcm(plainText, key, iv);
+        }
+
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = dataCipher(encryptCiphers.get(), key, CBC_CIPHER);
         cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
 
-        return cipher.doFinal(plainText.getBytes());
+        byte[] cipherText = new byte[CBC_HEADER_SIZE + cipher.getOutputSize(plainText.length)];
+        cipherText[0] = CBC_VERSION;
+        try {
+            cipher.doFinal(plainText, 0, plainText.length, cipherText, CBC_HEADER_SIZE);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e); // the output size was given by the cipher
+        }
+        return cipherText;
     }
 
+    /**
+     * Decrypts data encrypted with either cipher mode, told apart by the version byte the ciphertext starts with.
+     * A GCM ciphertext that fails the tag check is rejected (AEADBadTagException).
+     */
     public static byte[] decryptData(byte[] cipherText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        if (cipherText.length > 0 && cipherText[0] == GCM_VERSION) {
+            return decryptGcm(cipherText, key, iv);
+        }
+        if (cipherText.length == 0 || cipherText[0] != CBC_VERSION) {
+            throw new IllegalArgumentException("Unknown ciphertext version.");
+        }
+
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = dataCipher(decryptCiphers.get(), key, CBC_CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+
+        return cipher.doFinal(cipherText, CBC_HEADER_SIZE, cipherText.length - CBC_HEADER_SIZE);
+    }
+
+    /**
+     * Decrypts a CBC ciphertext stored before ciphertexts started with the version of their mode.
+     */
+    public static byte[] decryptUnversioned(byte[] cipherText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        IvParameterSpec ivSpec = new IvParameterSpec(iv);
+
+        Cipher cipher = dataCipher(decryptCiphers.get(), key, CBC_CIPHER);
         cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
 
         return cipher.doFinal(cipherText);
     }
 
+    private static byte[] encryptGcm(byte[] plainText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        // nonces are public values, they are taken from the same batches as the IVs
+        byte[] nonce = randomBatches.get().next();
+
+        Cipher cipher = dataCipher(gcmEncryptCiphers.get(), key, GCM_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, nonce, 0, GCM_NONCE_SIZE));
+        cipher.updateAAD(iv);
+
+        byte[] cipherText = new byte[GCM_HEADER_SIZE + cipher.getOutputSize(plainText.length)];
+        cipherText[0] = GCM_VERSION;
+        System.arraycopy(nonce, 0, cipherText, 1, GCM_NONCE_SIZE);
+        try {
+            cipher.doFinal(plainText, 0, plainText.length, cipherText, GCM_HEADER_SIZE);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e); // the output size was given by the cipher
+        }
+        return cipherText;
+    }
+
+    private static byte[] decryptGcm(byte[] cipherText, SecretKey key, byte[] iv) throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        Cipher cipher = dataCipher(gcmDecryptCiphers.get(), key, GCM_CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, cipherText, 1, GCM_NONCE_SIZE));
+        cipher.updateAAD(iv);
+
+        return cipher.doFinal(cipherText, GCM_HEADER_SIZE, cipherText.length - GCM_HEADER_SIZE);
+    }
+
+    // the cipher is always initialised again before use, so a failed doFinal does not leave it unusable
+    private static Cipher dataCipher(Map<SecretKey, Cipher> ciphers, SecretKey key, String transformation) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Cipher cipher = ciphers.get(key);
+        if (cipher != null) {
+            cipherCacheHits.increment();
+            return cipher;
+        }
+
+        cipherCacheMisses.increment();
+        cipher = Cipher.getInstance(transformation);
+        ciphers.put(key, cipher);
+        return cipher;
+    }
+
+    public static long getCipherCacheHits() {
+        return cipherCacheHits.sum();
+    }
+
+    public static long getCipherCacheMisses() {
+        return cipherCacheMisses.sum();
+    }
+
     public static byte[] wrapKey(PublicKey publicKey, SecretKey key) throws InvalidKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException {
         Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
         cipher.init(Cipher.WRAP_MODE, publicKey);
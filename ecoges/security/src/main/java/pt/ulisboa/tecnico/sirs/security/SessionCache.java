@@ -0,0 +1,124 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of session tokens (user identifier -> hashed token).
+ * Entries expire after a fixed time to live and must be invalidated whenever the stored token changes.
+ * A token read from the database is only cached if no invalidation happened since the read began.
+ */
+public class SessionCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // incremented on every invalidation so that loads started before it are not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SessionCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public SessionCache(long ttlMillis, int maxEntries) {
+        if (ttlMillis < 0 || maxEntries < 0) {
+            throw new IllegalArgumentException("Invalid session cache settings: ttl = " + ttlMillis + ", max = " + maxEntries);
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns true only if the given hashed token matches a cached, non expired session.
+     * A false result means the caller must check the database.
+     */
+    public boolean isValid(String id, String hashedToken) {
+        Session session = sessions.get(id);
+        if (session == null || session.isExpired(System.currentTimeMillis())) {
+            if (session != null) {
+                sessions.remove(id, session);
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+        if (!session.hashedToken.equals(hashedToken)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Must be called before reading or writing the token in the database, and its result given to {@link #put}.
+     */
+    public long beginLoad() {
+        return invalidations.get();
+    }
+
+    public void put(String id, String hashedToken, long load) {
+        if (maxEntries == 0 || hashedToken == null || hashedToken.isEmpty()) {
+            sessions.remove(id); // logged out sessions are never cached
+            return;
+        }
+        if (sessions.size() >= maxEntries && !sessions.containsKey(id)) {
+            evictExpired();
+            if (sessions.size() >= maxEntries) {
+                return; // cache is full of live sessions, the database remains the source of truth
+            }
+        }
+
+        // otherwise the token may have been changed (e.g. by a logout) after it was read
+        Session session = new Session(hashedToken, System.currentTimeMillis() + ttlMillis);
+        sessions.compute(id, (key, cached) -> invalidations.get() == load ? session : cached);
+    }
+
+    public void invalidate(String id) {
+        // counted before the removal, so a put racing with it is either skipped or removed
+        invalidations.incrementAndGet();
+        sessions.remove(id);
+    }
+
+    public void clear() {
+        sessions.clear();
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.isExpired(now));
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Session {
+        private final String hashedToken;
+        private final long expiresAt;
+
+        Session(String hashedToken, long expiresAt) {
+            this.hashedToken = hashedToken;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stateless session tokens: "issuedAt.expiresAt.nonce.mac", where the HMAC covers the subject and the
+ * other fields. Tokens are verified in memory, so any server holding the same key can check them.
+ *
+ * Logout revokes every token issued to a subject up to that moment. Revocations are kept only until the
+ * tokens they cover have expired. The ones made by other servers sharing the key are given to {@link #revoke(String, long)}.
+ */
+public class SessionTokens {
+
+    public static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String SEPARATOR = ".";
+    private static final int NONCE_SIZE = 16;
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> mac;
+
+    // subject -> tokens issued at or before this time are revoked
+    private final ConcurrentHashMap<String, Long> revokedBefore = new ConcurrentHashMap<>();
+
+    public SessionTokens(SecretKey key) {
+        this(key, DEFAULT_TTL_MILLIS);
+    }
+
+    public SessionTokens(SecretKey key, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Invalid session token ttl: " + ttlMillis);
+        }
+        this.key = new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(this.key);
+                return mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException("Could not initialize " + MAC_ALGORITHM + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    public static SecretKey generateKey() throws NoSuchAlgorithmException {
+        KeyGenerator keyGen = KeyGenerator.getInstance(MAC_ALGORITHM);
+        keyGen.init(256);
+        return keyGen.generateKey();
+    }
+
+    public String issue(String subject) {
+        long issuedAt = System.currentTimeMillis();
+        Long cutoff = revokedBefore.get(subject);
+        if (cutoff != null && issuedAt <= cutoff) {
+            issuedAt = cutoff + 1; // a login right after a logout must not be revoked by it
+        }
+
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+
+        String payload = issuedAt + SEPARATOR + (issuedAt + ttlMillis) + SEPARATOR + Security.bytesToHex(nonce);
+        return payload + SEPARATOR + sign(subject, payload);
+    }
+
+    public boolean verify(String subject, String token) {
+        if (subject == null || token == null) {
+            return false;
+        }
+
+        int macStart = token.lastIndexOf(SEPARATOR);
+        if (macStart < 0) {
+            return false;
+        }
+        String payload = token.substring(0, macStart);
+        String[] fields = payload.split("\\.");
+        if (fields.length != 3) {
+            return false;
+        }
+
+        byte[] expected = sign(subject, payload).getBytes(StandardCharsets.UTF_8);
+        byte[] actual = token.substring(macStart + 1).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            return false;
+        }
+
+        long issuedAt, expiresAt;
+        try {
+            issuedAt = Long.parseLong(fields[0]);
+            expiresAt = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() >= expiresAt) {
+            return false;
+        }
+        Long cutoff = revokedBefore.get(subject);
+        return cutoff == null || issuedAt > cutoff;
+    }
+
+    /**
+     * Revokes every token issued to the subject until now and returns the time it was revoked at.
+     */
+    public long revoke(String subject) {
+        long now = System.currentTimeMillis();
+        revoke(subject, now);
+        return now;
+    }
+
+    /**
+     * Revokes every token issued to the subject up to the given time, e.g. by another server.
+     */
+    public void revoke(String subject, long cutoff) {
+        revokedBefore.merge(subject, cutoff, Math::max);
+
+        // revocations older than the token lifetime no longer cover any valid token
+        long now = System.currentTimeMillis();
+        revokedBefore.values().removeIf(revoked -> revoked < now - ttlMillis);
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int getRevokedCount() {
+        return revokedBefore.size();
+    }
+
+    private String sign(String subject, String payload) {
+        Mac mac = this.mac.get();
+        mac.update(subject.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return Security.bytesToHex(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+}
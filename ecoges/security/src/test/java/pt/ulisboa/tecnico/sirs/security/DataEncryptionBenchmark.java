@@ -0,0 +1,59 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Compares the throughput of the data cipher modes on the values the servers encrypt: an energy record,
+ * an address and a larger value. Not run by the tests, see the README for how to run it.
+ */
+public class DataEncryptionBenchmark {
+
+    private static final int WARM_UP_ITERATIONS = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+    private static final int[] SIZES = { 18, 64, 1024 };
+
+    public static void main(String[] args) throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey key = keyGen.generateKey();
+        byte[] iv = Security.generateRandom();
+
+        System.out.printf("%-5s %6s %14s %14s%n", "mode", "bytes", "encrypt ops/s", "decrypt ops/s");
+        for (int size : SIZES) {
+            byte[] plainText = new byte[size];
+            for (Security.CipherMode mode : Security.CipherMode.values()) {
+                byte[] cipherText = Security.encryptData(plainText, key, iv, mode);
+
+                run(plainText, cipherText, key, iv, mode, WARM_UP_ITERATIONS);
+                long[] nanos = run(plainText, cipherText, key, iv, mode, ITERATIONS);
+
+                System.out.printf("%-5s %6d %14.0f %14.0f%n", mode, size,
+                        ITERATIONS * 1e9 / nanos[0], ITERATIONS * 1e9 / nanos[1]);
+            }
+        }
+    }
+
+    private static long[] run(byte[] plainText, byte[] cipherText, SecretKey key, byte[] iv, Security.CipherMode mode,
+                              int iterations) throws Exception {
+        // the lengths are summed so the JIT cannot drop the calls
+        long sink = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += Security.encryptData(plainText, key, iv, mode).length;
+        }
+        long encrypt = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += Security.decryptData(cipherText, key, iv).length;
+        }
+        long decrypt = System.nanoTime() - start;
+
+        if (sink == 0) {
+            System.out.println();
+        }
+        return new long[] { encrypt, decrypt };
+    }
+}
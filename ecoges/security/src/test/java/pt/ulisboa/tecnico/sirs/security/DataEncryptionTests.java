@@ -0,0 +1,139 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import org.junit.*;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+public class DataEncryptionTests {
+
+    private static SecretKey firstKey;
+    private static SecretKey secondKey;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        firstKey = keyGen.generateKey();
+        secondKey = keyGen.generateKey();
+    }
+
+    @Test
+    public void reuseCipherTest() throws Exception {
+        byte[] firstIv = Security.generateRandom();
+        byte[] secondIv = Security.generateRandom();
+
+        byte[] first = Security.encryptData("address", firstKey, firstIv);
+        long hits = Security.getCipherCacheHits();
+        byte[] second = Security.encryptData("address", firstKey, secondIv);
+        Assert.assertTrue(Security.getCipherCacheHits() > hits);
+
+        // a reused cipher still uses the new IV
+        Assert.assertNotEquals(new String(first, StandardCharsets.ISO_8859_1), new String(second, StandardCharsets.ISO_8859_1));
+        Assert.assertEquals("address", new String(Security.decryptData(first, firstKey, firstIv)));
+        Assert.assertEquals("address", new String(Security.decryptData(second, firstKey, secondIv)));
+    }
+
+    @Test
+    public void differentKeysTest() throws Exception {
+        byte[] iv = Security.generateRandom();
+        byte[] cipherText = Security.encryptData("iban", firstKey, iv);
+
+        try {
+            // the padding of a wrong decryption is rarely valid by chance
+            Assert.assertNotEquals("iban", new String(Security.decryptData(cipherText, secondKey, iv)));
+        } catch (BadPaddingException e) {
+            // expected
+        }
+        // the failed decryption must not affect the next one
+        Assert.assertEquals("iban", new String(Security.decryptData(cipherText, firstKey, iv)));
+        Assert.assertEquals("iban", new String(Security.decryptData(Security.encryptData("iban", secondKey, iv), secondKey, iv)));
+    }
+
+    @Test
+    public void gcmCipherTextTest() throws Exception {
+        byte[] iv = Security.generateRandom();
+        byte[] first = Security.encryptData("address".getBytes(), firstKey, iv, Security.CipherMode.GCM);
+        byte[] second = Security.encryptData("address".getBytes(), firstKey, iv, Security.CipherMode.GCM);
+
+        // the IV of the row is shared, but every ciphertext has its own nonce
+        Assert.assertEquals(Security.GCM_VERSION, first[0]);
+        Assert.assertNotEquals(new String(first, StandardCharsets.ISO_8859_1), new String(second, StandardCharsets.ISO_8859_1));
+        Assert.assertEquals("address", new String(Security.decryptData(first, firstKey, iv)));
+        Assert.assertEquals("address", new String(Security.decryptData(second, firstKey, iv)));
+
+        // tampered data and a ciphertext moved to another row are rejected
+        byte[] tampered = first.clone();
+        tampered[tampered.length - 1] ^= 1;
+        Assert.assertThrows(BadPaddingException.class, () -> Security.decryptData(tampered, firstKey, iv));
+        Assert.assertThrows(BadPaddingException.class, () -> Security.decryptData(first, firstKey, Security.generateRandom()));
+
+        // the tag check fails even when the length is that of a CBC ciphertext
+        byte[] blockSized = Security.encryptData("abc".getBytes(), firstKey, iv, Security.CipherMode.GCM);
+        Assert.assertEquals(0, blockSized.length % 16);
+        blockSized[blockSized.length - 1] ^= 1;
+        Assert.assertThrows(AEADBadTagException.class, () -> Security.decryptData(blockSized, firstKey, iv));
+    }
+
+    @Test
+    public void cbcCipherTextTest() throws Exception {
+        byte[] iv = Security.generateRandom();
+        byte[] cipherText = Security.encryptData("PT50 0002 0123 1234 5678".getBytes(), firstKey, iv, Security.CipherMode.CBC);
+        Assert.assertEquals(Security.CBC_VERSION, cipherText[0]);
+        Assert.assertEquals("PT50 0002 0123 1234 5678", new String(Security.decryptData(cipherText, firstKey, iv)));
+
+        // the mode is never guessed from a ciphertext without a known version
+        byte[] unknown = cipherText.clone();
+        unknown[0] = 3;
+        Assert.assertThrows(IllegalArgumentException.class, () -> Security.decryptData(unknown, firstKey, iv));
+
+        // as stored before ciphertexts started with a version
+        byte[] unversioned = Arrays.copyOfRange(cipherText, 1, cipherText.length);
+        Assert.assertEquals("PT50 0002 0123 1234 5678", new String(Security.decryptUnversioned(unversioned, firstKey, iv)));
+    }
+
+    @Test
+    public void uniqueRandomTest() throws Exception {
+        // more than one batch of IVs
+        Set<String> ivs = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] iv = Security.generateRandom();
+            Assert.assertEquals(16, iv.length);
+            Assert.assertTrue(ivs.add(Security.bytesToHex(iv)));
+        }
+        Assert.assertNotEquals(Security.generateToken(), Security.generateToken());
+    }
+
+    @Test
+    public void concurrentEncryptionTest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < 8; i++) {
+                String plainText = "energy " + i;
+                completion.submit(() -> {
+                    for (int j = 0; j < 500; j++) {
+                        byte[] iv = Security.generateRandom();
+                        SecretKey key = j % 2 == 0 ? firstKey : secondKey;
+                        if (!plainText.equals(new String(Security.decryptData(Security.encryptData(plainText, key, iv), key, iv)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+            }
+            for (int i = 0; i < 8; i++) {
+                Assert.assertTrue(completion.take().get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import org.junit.*;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+
+public class RecordCodecTests {
+
+    private static SecretKey key;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        key = keyGen.generateKey();
+    }
+
+    @Test
+    public void encryptRecordTest() throws Exception {
+        byte[] iv = Security.generateRandom();
+        float[] values = { 12.5f, 0, -3.25f, Float.MAX_VALUE };
+
+        byte[] record = RecordCodec.encrypt(key, iv, values);
+        Assert.assertArrayEquals(values, RecordCodec.decrypt(key, iv, record), 0);
+
+        // four floats and the header fit in two AES blocks with CBC, instead of one block per value encrypted as text
+        byte[] cbcRecord = Security.encryptData(RecordCodec.encode(values), key, iv, Security.CipherMode.CBC);
+        Assert.assertEquals(1 + 32, cbcRecord.length);
+        Assert.assertArrayEquals(values, RecordCodec.decrypt(key, iv, cbcRecord), 0);
+    }
+
+    @Test
+    public void legacyValuesTest() throws Exception {
+        byte[] iv = Security.generateRandom();
+        byte[][] legacy = { unversioned(Float.toString(1.5f), iv), unversioned(Float.toString(42f), iv) };
+        Assert.assertArrayEquals(new float[] { 1.5f, 42f }, RecordCodec.decryptLegacy(key, iv, legacy), 0);
+    }
+
+    @Test
+    public void unknownVersionTest() {
+        byte[] record = RecordCodec.encode(1f);
+        record[0] = RecordCodec.VERSION + 1;
+        Assert.assertThrows(IllegalArgumentException.class, () -> RecordCodec.decode(record));
+
+        // truncated record
+        Assert.assertThrows(IllegalArgumentException.class, () -> RecordCodec.decode(new byte[] { RecordCodec.VERSION, 2, 0, 0 }));
+    }
+
+    // CBC ciphertexts were stored without a version before records existed
+    private static byte[] unversioned(String value, byte[] iv) throws Exception {
+        byte[] cipherText = Security.encryptData(value.getBytes(), key, iv, Security.CipherMode.CBC);
+        return Arrays.copyOfRange(cipherText, 1, cipherText.length);
+    }
+}
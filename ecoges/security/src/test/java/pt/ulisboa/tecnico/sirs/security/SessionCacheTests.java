@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import org.junit.*;
+
+public class SessionCacheTests {
+    private final static String id = "junit-session";
+    private final static String hashedToken = "hashed-token";
+
+    @Test
+    public void cachedSessionTest() {
+        SessionCache cache = new SessionCache();
+        cache.put(id, hashedToken, cache.beginLoad());
+        Assert.assertTrue(cache.isValid(id, hashedToken));
+        Assert.assertFalse(cache.isValid(id, "another-token"));
+    }
+
+    @Test
+    public void invalidatedSessionTest() {
+        SessionCache cache = new SessionCache();
+        cache.put(id, hashedToken, cache.beginLoad());
+        cache.invalidate(id);
+        Assert.assertFalse(cache.isValid(id, hashedToken));
+
+        // logged out sessions are never cached
+        cache.put(id, "", cache.beginLoad());
+        Assert.assertFalse(cache.isValid(id, ""));
+    }
+
+    @Test
+    public void invalidatedWhileLoadingTest() {
+        SessionCache cache = new SessionCache();
+
+        // a token is read from the database, then a logout invalidates it before the read token is cached
+        long load = cache.beginLoad();
+        cache.invalidate(id);
+        cache.put(id, hashedToken, load);
+        Assert.assertFalse(cache.isValid(id, hashedToken));
+
+        // loads started after the invalidation are cached
+        cache.put(id, "new-hashed-token", cache.beginLoad());
+        Assert.assertTrue(cache.isValid(id, "new-hashed-token"));
+    }
+
+    @Test
+    public void expiredSessionTest() {
+        SessionCache cache = new SessionCache(0, SessionCache.DEFAULT_MAX_ENTRIES);
+        cache.put(id, hashedToken, cache.beginLoad());
+        Assert.assertFalse(cache.isValid(id, hashedToken));
+        Assert.assertEquals(0, cache.size());
+    }
+}
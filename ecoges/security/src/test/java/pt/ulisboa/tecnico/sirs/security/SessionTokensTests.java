@@ -0,0 +1,74 @@
+package pt.ulisboa.tecnico.sirs.security;
+
+import org.junit.*;
+
+import javax.crypto.SecretKey;
+import java.security.NoSuchAlgorithmException;
+
+public class SessionTokensTests {
+    private final static String subject = "junit-clientemail";
+
+    private static SessionTokens sessionTokens;
+
+    @BeforeClass
+    public static void setup() throws NoSuchAlgorithmException {
+        sessionTokens = new SessionTokens(SessionTokens.generateKey());
+    }
+
+    @Test
+    public void validTokenTest() {
+        String token = sessionTokens.issue(subject);
+        Assert.assertTrue(sessionTokens.verify(subject, token));
+    }
+
+    @Test
+    public void tamperedTokenTest() {
+        String token = sessionTokens.issue(subject);
+        Assert.assertFalse(sessionTokens.verify("another-clientemail", token));
+        Assert.assertFalse(sessionTokens.verify(subject, token.replaceFirst("^\\d", "9")));
+        Assert.assertFalse(sessionTokens.verify(subject, ""));
+    }
+
+    @Test
+    public void foreignKeyTokenTest() throws NoSuchAlgorithmException {
+        SessionTokens other = new SessionTokens(SessionTokens.generateKey());
+        Assert.assertFalse(sessionTokens.verify(subject, other.issue(subject)));
+    }
+
+    @Test
+    public void revokedTokenTest() {
+        String revokedSubject = "junit-revoked-clientemail";
+        String token = sessionTokens.issue(revokedSubject);
+        sessionTokens.revoke(revokedSubject);
+        Assert.assertFalse(sessionTokens.verify(revokedSubject, token));
+
+        // logging in again after a logout gives a valid token
+        String newToken = sessionTokens.issue(revokedSubject);
+        Assert.assertTrue(sessionTokens.verify(revokedSubject, newToken));
+    }
+
+    @Test
+    public void revokedByAnotherServerTest() throws NoSuchAlgorithmException {
+        String revokedSubject = "junit-shared-clientemail";
+        SecretKey key = SessionTokens.generateKey();
+        SessionTokens first = new SessionTokens(key);
+        SessionTokens second = new SessionTokens(key);
+
+        String token = first.issue(revokedSubject);
+        second.revoke(revokedSubject, first.revoke(revokedSubject));
+        Assert.assertFalse(second.verify(revokedSubject, token));
+
+        // a token issued after the revocation is valid on both servers
+        String newToken = second.issue(revokedSubject);
+        Assert.assertTrue(first.verify(revokedSubject, newToken));
+        Assert.assertTrue(second.verify(revokedSubject, newToken));
+    }
+
+    @Test
+    public void expiredTokenTest() throws NoSuchAlgorithmException, InterruptedException {
+        SessionTokens shortLived = new SessionTokens(SessionTokens.generateKey(), 1);
+        String token = shortLived.issue(subject);
+        Thread.sleep(5);
+        Assert.assertFalse(shortLived.verify(subject, token));
+    }
+}
@@ -0,0 +1,111 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the client columns read on almost every request (email -> id, IVs and pending temporary keys).
+ * Entries must be invalidated whenever one of those columns is written, which only happens when data is
+ * re-encrypted with a new key.
+ */
+public class ClientMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final LinkedHashMap<String, ClientMetadata> entries;
+
+    // incremented on every invalidation so that loads started before it are not cached
+    private long invalidations = 0;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ClientMetadataCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, ClientMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ClientMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized ClientMetadata get(String email) {
+        ClientMetadata metadata = entries.get(email);
+        if (metadata == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return metadata;
+    }
+
+    /**
+     * Must be called before reading the metadata from the database, and its result given to {@link #put}.
+     */
+    public synchronized long beginLoad() {
+        return invalidations;
+    }
+
+    public synchronized void put(String email, ClientMetadata metadata, long load) {
+        if (load == invalidations) { // otherwise the loaded values may already be outdated
+            entries.put(email, metadata);
+        }
+    }
+
+    public synchronized void invalidate(String email) {
+        invalidations++;
+        entries.remove(email);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public static class ClientMetadata {
+        private final int id;
+        private final byte[] ivPersonalData;
+        private final byte[] ivEnergyData;
+        private final boolean pendingTemporaryPersonalKey;
+        private final boolean pendingTemporaryEnergyKey;
+
+        public ClientMetadata(int id, byte[] ivPersonalData, byte[] ivEnergyData,
+                              boolean pendingTemporaryPersonalKey, boolean pendingTemporaryEnergyKey) {
+            this.id = id;
+            this.ivPersonalData = ivPersonalData;
+            this.ivEnergyData = ivEnergyData;
+            this.pendingTemporaryPersonalKey = pendingTemporaryPersonalKey;
+            this.pendingTemporaryEnergyKey = pendingTemporaryEnergyKey;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public byte[] getIvPersonalData() {
+            return ivPersonalData.clone();
+        }
+
+        public byte[] getIvEnergyData() {
+            return ivEnergyData.clone();
+        }
+
+        public boolean hasPendingTemporaryPersonalKey() {
+            return pendingTemporaryPersonalKey;
+        }
+
+        public boolean hasPendingTemporaryEnergyKey() {
+            return pendingTemporaryEnergyKey;
+        }
+    }
+}
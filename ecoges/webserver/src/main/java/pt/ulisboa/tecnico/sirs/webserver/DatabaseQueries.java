@@ -1,10 +1,15 @@
 package pt.ulisboa.tecnico.sirs.webserver;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class DatabaseQueries {
-    public static final String START_TRANSACTION = "START TRANSACTION";
-    public static final String COMMIT_TRANSACTION = "COMMIT";
-    public static final String ABORT_TRANSACTION = "ROLLBACK";
+    private static final String CLIENT_ID_OF_EMAIL = "(SELECT id FROM client WHERE email = ?)";
+
     public static final String DROP_CLIENT_TABLE = "DROP TABLE IF EXISTS client";
+    public static final String DROP_CLIENT_PERSONAL_DATA_TABLE = "DROP TABLE IF EXISTS client_personal_data";
+    public static final String DROP_CLIENT_ENERGY_DATA_TABLE = "DROP TABLE IF EXISTS client_energy_data";
     public static final String DROP_APPLIANCE_TABLE = "DROP TABLE IF EXISTS appliance";
     public static final String DROP_SOLAR_PANEL_TABLE = "DROP TABLE IF EXISTS solarpanel";
     public static final String DROP_INVOICE_TABLE = "DROP TABLE IF EXISTS invoice";
@@ -12,42 +17,57 @@ public class DatabaseQueries {
     public static final String DROP_COMPARTMENT_KEYS_TABLE = "DROP TABLE IF EXISTS compartment_keys";
 
     public static final String CREATE_COMPARTMENT_KEYS_TABLE =
-            "CREATE TABLE compartment_keys (" +
+            "CREATE TABLE IF NOT EXISTS compartment_keys (" +
                     "id INTEGER NOT NULL AUTO_INCREMENT, " +
                     "personal_info_key BLOB NOT NULL, " +
                     "energy_panel_key BLOB NOT NULL, " +
+                    "session_key BLOB DEFAULT NULL, " + // signs stateless session tokens
                     "PRIMARY KEY (id))";
 
+    // narrow table read by every session check and id lookup, the encrypted compartments live in their own tables
     public static final String CREATE_CLIENT_TABLE =
-        "CREATE TABLE client (" +
+        "CREATE TABLE IF NOT EXISTS client (" +
             "id INTEGER NOT NULL AUTO_INCREMENT, " +
             "name VARCHAR(150) NOT NULL, " +
             "email VARCHAR(150) NOT NULL," +
-            "address BLOB NOT NULL," +
             "password VARCHAR(100) NOT NULL," +
-            "iban BLOB NOT NULL," +
+            "salt BLOB," + // password hash
+            "token VARCHAR(64) DEFAULT ''," +
             "plan VARCHAR(25) NOT NULL," + // plan = FLAT_RATE or BI_HOURLY_RATE
+            "version INTEGER NOT NULL DEFAULT 0, " +
+            "UNIQUE (email)," +
+            "PRIMARY KEY (id))";
+
+    public static final String CREATE_CLIENT_PERSONAL_DATA_TABLE =
+        "CREATE TABLE IF NOT EXISTS client_personal_data (" +
+            "client_id INTEGER NOT NULL, " +
+            "iv_personal_data BLOB," + // initialization vector using in AES encryption with CBC mode
+            "address BLOB NOT NULL," +
+            "iban BLOB NOT NULL," +
+            "obf_address VARCHAR(150) NOT NULL, " +
+            "obf_iban VARCHAR(150) NOT NULL, " +
+            "last_temporary_personal_key BLOB DEFAULT NULL, " +
+            "PRIMARY KEY (client_id), " +
+            "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
+
+    public static final String CREATE_CLIENT_ENERGY_DATA_TABLE =
+        "CREATE TABLE IF NOT EXISTS client_energy_data (" +
+            "client_id INTEGER NOT NULL, " +
+            "iv_energy_data BLOB," + // initialization vector using in AES encryption with CBC mode
             "energyConsumed BLOB, " +
             "energyConsumedDaytime BLOB, " +
             "energyConsumedNight BLOB, " +
             "energyProduced BLOB, " +
-            "token VARCHAR(64) DEFAULT ''," +
-            "salt BLOB," + // password hash
-            "iv_personal_data BLOB," + // initialization vector using in AES encryption with CBC mode
-            "iv_energy_data BLOB," + // initialization vector using in AES encryption with CBC mode
-            "obf_address VARCHAR(150) NOT NULL, " +
-            "obf_iban VARCHAR(150) NOT NULL, " +
             "obf_energyConsumed VARCHAR(150) NOT NULL, " +
             "obf_energyConsumedDaytime VARCHAR(150) NOT NULL, " +
             "obf_energyConsumedNight VARCHAR(150) NOT NULL, " +
             "obf_energyProduced VARCHAR(150) NOT NULL, " +
-            "last_temporary_personal_key BLOB DEFAULT NULL, " +
             "last_temporary_energy_key BLOB DEFAULT NULL, " +
-            "UNIQUE (email)," +
-            "PRIMARY KEY (id))";
+            "PRIMARY KEY (client_id), " +
+            "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
 
     public static final String CREATE_APPLIANCE_TABLE =
-        "CREATE TABLE appliance (" +
+        "CREATE TABLE IF NOT EXISTS appliance (" +
             "id INTEGER NOT NULL AUTO_INCREMENT, " +
             "client_id INTEGER NOT NULL, " +
             "name VARCHAR(150) NOT NULL, " +
@@ -56,24 +76,28 @@ public class DatabaseQueries {
             "energyConsumedDaytime BLOB, " +
             "energyConsumedNight BLOB, " +
             "iv BLOB," + // initialization vector using in AES encryption with CBC mode
+            "obf_energyConsumed VARCHAR(150) DEFAULT NULL, " + // NULL until backfilled
+            "obf_energyConsumedDaytime VARCHAR(150) DEFAULT NULL, " +
+            "obf_energyConsumedNight VARCHAR(150) DEFAULT NULL, " +
             "UNIQUE (client_id, name, brand)," +
             "PRIMARY KEY (id), " +
             "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
 
     public static final String CREATE_SOLAR_PANEL_TABLE =
-        "CREATE TABLE solarpanel (" +
+        "CREATE TABLE IF NOT EXISTS solarpanel (" +
             "id INTEGER NOT NULL AUTO_INCREMENT, " +
             "client_id INTEGER NOT NULL, " +
             "name VARCHAR(150) NOT NULL, " +
             "brand VARCHAR(150) NOT NULL, " +
             "energyProduced BLOB, " +
             "iv BLOB," + // initialization vector using in AES encryption with CBC mode
+            "obf_energyProduced VARCHAR(150) DEFAULT NULL, " + // NULL until backfilled
             "UNIQUE (client_id, name, brand)," +
             "PRIMARY KEY (id), " +
             "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
 
     public static final String CREATE_INVOICE_TABLE =
-        "CREATE TABLE invoice (" +
+        "CREATE TABLE IF NOT EXISTS invoice (" +
                 "id INTEGER NOT NULL AUTO_INCREMENT, " +
                 "client_id INTEGER NOT NULL, " +
                 "year INTEGER NOT NULL, " +
@@ -85,73 +109,277 @@ public class DatabaseQueries {
                 "plan VARCHAR(15) NOT NULL, " +
                 "taxes INTEGER NOT NULL, " +
                 "iv BLOB," + // initialization vector using in AES encryption with CBC mode
+                "obf_paymentAmount VARCHAR(150) DEFAULT NULL, " + // NULL until backfilled
+                "obf_energyConsumed VARCHAR(150) DEFAULT NULL, " +
+                "obf_energyConsumedDaytime VARCHAR(150) DEFAULT NULL, " +
+                "obf_energyConsumedNight VARCHAR(150) DEFAULT NULL, " +
                 "UNIQUE (client_id, year, month)," +
                 "PRIMARY KEY (id), " +
                 "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
 
-    public static final String CREATE_CLIENT =
-            "INSERT INTO client(name, email, password, salt, iv_personal_data, iv_energy_data, plan, address, iban, energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced, obf_address, obf_iban, obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight, obf_energyProduced) " +
-                    "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // a float written as text and encrypted with AES fits in a couple of blocks
+    private static final String ENCRYPTED_FLOAT = "VARBINARY(64)";
+    // the values of a row packed by the RecordCodec and encrypted at once (four values take 47 bytes with GCM)
+    private static final String ENCRYPTED_RECORD = "VARBINARY(64)";
+    // the rows existing when the column is added are marked, the rows inserted afterwards are not
+    private static final String UNVERSIONED_CIPHERTEXTS = "unversioned_ciphertexts BOOLEAN NOT NULL DEFAULT TRUE";
+    // an AES key wrapped with the RSA key of the webserver (up to 4096 bits)
+    private static final String WRAPPED_KEY = "VARBINARY(512)";
+    // the cast keeps the comparison textual, so that running it again on the converted column changes nothing
+    private static final String PLAN_NAME_TO_NUMBER = "CASE CAST(plan AS CHAR) " +
+            "WHEN 'FLAT_RATE' THEN '0' WHEN 'BI_HOURLY_RATE' THEN '1' ELSE plan END";
+
+    // servers from before versioning started dropped and created their tables on every start, in a layout that changed
+    // between releases (e.g. a single client table), so the tables they left behind are dropped instead of converted
+    public static final String[] SCHEMA_LEGACY = {
+            DROP_INVOICE_TABLE,
+            DROP_SOLAR_PANEL_TABLE,
+            DROP_APPLIANCE_TABLE,
+            DROP_CLIENT_PERSONAL_DATA_TABLE,
+            DROP_CLIENT_ENERGY_DATA_TABLE,
+            DROP_CLIENT_TABLE,
+            DROP_COMPARTMENT_KEYS_TABLE
+    };
 
-    public static final String CREATE_COMPARTMENT_KEYS = "INSERT INTO compartment_keys(personal_info_key, energy_panel_key) VALUES(?, ?)";
+    // run in order by the SchemaMigrator of the webserver, new versions are appended and released ones never changed
+    public static final List<String[]> SCHEMA_MIGRATIONS = Collections.unmodifiableList(Arrays.<String[]>asList(
+            // 1: the tables as they were when versioning started
+            new String[] {
+                    CREATE_CLIENT_TABLE,
+                    CREATE_CLIENT_PERSONAL_DATA_TABLE,
+                    CREATE_CLIENT_ENERGY_DATA_TABLE,
+                    CREATE_APPLIANCE_TABLE,
+                    CREATE_SOLAR_PANEL_TABLE,
+                    CREATE_INVOICE_TABLE,
+                    CREATE_COMPARTMENT_KEYS_TABLE
+            },
+            // 2: compact layout kept inside the InnoDB pages, plans are stored as the number of their PlanType
+            new String[] {
+                    "UPDATE client SET plan = " + PLAN_NAME_TO_NUMBER,
+                    "UPDATE invoice SET plan = " + PLAN_NAME_TO_NUMBER,
+                    "ALTER TABLE client MODIFY plan TINYINT NOT NULL, MODIFY salt VARBINARY(16)",
+                    "ALTER TABLE client_personal_data MODIFY iv_personal_data BINARY(16), " +
+                            "MODIFY address VARBINARY(1024) NOT NULL, MODIFY iban VARBINARY(1024) NOT NULL, " +
+                            "MODIFY last_temporary_personal_key " + WRAPPED_KEY + " DEFAULT NULL",
+                    "ALTER TABLE client_energy_data MODIFY iv_energy_data BINARY(16), " +
+                            "MODIFY energyConsumed " + ENCRYPTED_FLOAT + ", MODIFY energyConsumedDaytime " + ENCRYPTED_FLOAT + ", " +
+                            "MODIFY energyConsumedNight " + ENCRYPTED_FLOAT + ", MODIFY energyProduced " + ENCRYPTED_FLOAT + ", " +
+                            "MODIFY last_temporary_energy_key " + WRAPPED_KEY + " DEFAULT NULL",
+                    "ALTER TABLE appliance MODIFY iv BINARY(16), " +
+                            "MODIFY energyConsumed " + ENCRYPTED_FLOAT + ", MODIFY energyConsumedDaytime " + ENCRYPTED_FLOAT + ", " +
+                            "MODIFY energyConsumedNight " + ENCRYPTED_FLOAT,
+                    "ALTER TABLE solarpanel MODIFY iv BINARY(16), MODIFY energyProduced " + ENCRYPTED_FLOAT,
+                    "ALTER TABLE invoice MODIFY plan TINYINT NOT NULL, MODIFY iv BINARY(16), " +
+                            "MODIFY paymentAmount " + ENCRYPTED_FLOAT + ", MODIFY energyConsumed " + ENCRYPTED_FLOAT + ", " +
+                            "MODIFY energyConsumedDaytime " + ENCRYPTED_FLOAT + ", MODIFY energyConsumedNight " + ENCRYPTED_FLOAT,
+                    "ALTER TABLE compartment_keys MODIFY personal_info_key " + WRAPPED_KEY + " NOT NULL, " +
+                            "MODIFY energy_panel_key " + WRAPPED_KEY + " NOT NULL, MODIFY session_key " + WRAPPED_KEY + " DEFAULT NULL"
+            },
+            // 3: the energy values of a row are written as one record, the columns of each value are only read
+            // until the webserver packs the rows written before (energy client totals, appliances, solar panels
+            // and invoices in the order of their old columns)
+            new String[] {
+                    "ALTER TABLE client_energy_data ADD COLUMN energy " + ENCRYPTED_RECORD + " DEFAULT NULL",
+                    "ALTER TABLE appliance ADD COLUMN energy " + ENCRYPTED_RECORD + " DEFAULT NULL",
+                    "ALTER TABLE solarpanel ADD COLUMN energy " + ENCRYPTED_RECORD + " DEFAULT NULL",
+                    "ALTER TABLE invoice ADD COLUMN energy " + ENCRYPTED_RECORD + " DEFAULT NULL"
+            },
+            // 4: every ciphertext starts with the version of the mode it was encrypted with. The ones stored before are
+            // all CBC ciphertexts (version 1) and are left as they are: their rows are marked, the queries reading them add
+            // the version and the next write of a row adds it to the ciphertexts of the row it does not replace.
+            new String[] {
+                    "ALTER TABLE client_personal_data ADD COLUMN " + UNVERSIONED_CIPHERTEXTS,
+                    "ALTER TABLE client_personal_data ALTER COLUMN unversioned_ciphertexts SET DEFAULT FALSE",
+                    "ALTER TABLE client_energy_data ADD COLUMN " + UNVERSIONED_CIPHERTEXTS,
+                    "ALTER TABLE client_energy_data ALTER COLUMN unversioned_ciphertexts SET DEFAULT FALSE",
+                    "ALTER TABLE appliance ADD COLUMN " + UNVERSIONED_CIPHERTEXTS,
+                    "ALTER TABLE appliance ALTER COLUMN unversioned_ciphertexts SET DEFAULT FALSE",
+                    "ALTER TABLE solarpanel ADD COLUMN " + UNVERSIONED_CIPHERTEXTS,
+                    "ALTER TABLE solarpanel ALTER COLUMN unversioned_ciphertexts SET DEFAULT FALSE",
+                    "ALTER TABLE invoice ADD COLUMN " + UNVERSIONED_CIPHERTEXTS,
+                    "ALTER TABLE invoice ALTER COLUMN unversioned_ciphertexts SET DEFAULT FALSE"
+            },
+            // 5: signed session tokens revoked by a logout on any webserver, read by the other webservers every few seconds
+            new String[] {
+                    "ALTER TABLE client ADD COLUMN sessions_revoked_before BIGINT DEFAULT NULL, ADD INDEX (sessions_revoked_before)"
+            }
+    ));
 
-    public static final String CREATE_APPLIANCE = "INSERT INTO appliance(client_id, name, brand, iv, energyConsumed, energyConsumedDaytime, energyConsumedNight) " +
-            "VALUES(?, ?, ?, ?, ?, ?, ?)";
-    public static final String CREATE_SOLAR_PANEL = "INSERT INTO solarpanel(client_id, name, brand, iv, energyProduced) VALUES(?, ?, ?, ?, ?)";
+    // a ciphertext column (e.g. "address" or "e.energy") with the CBC version added when its row is marked as unversioned
+    // (the columns of the values encrypted before records existed are always unversioned and are read as they are)
+    private static String versioned(String column) {
+        String table = column.substring(0, column.indexOf('.') + 1);
+        return "IF(" + table + "unversioned_ciphertexts, CONCAT(x'01', " + column + "), " + column + ")";
+    }
+
+    public static final String CREATE_CLIENT = "INSERT INTO client(name, email, password, salt, plan) VALUES(?, ?, ?, ?, ?)";
+    public static final String CREATE_CLIENT_PERSONAL_DATA =
+            "INSERT INTO client_personal_data(client_id, iv_personal_data, address, iban, obf_address, obf_iban) VALUES(?, ?, ?, ?, ?, ?)";
+    public static final String CREATE_CLIENT_ENERGY_DATA =
+            "INSERT INTO client_energy_data(client_id, iv_energy_data, energy, " +
+                    "obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight, obf_energyProduced) VALUES(?, ?, ?, ?, ?, ?, ?)";
+
+    // webservers starting at the same time on an empty database all try to store their keys, only the first one is kept
+    public static final String CREATE_COMPARTMENT_KEYS = "INSERT IGNORE INTO compartment_keys(id, personal_info_key, energy_panel_key) VALUES(1, ?, ?)";
+
+    public static final String CREATE_APPLIANCE = "INSERT INTO appliance(client_id, name, brand, iv, energy, " +
+            "obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight) VALUES(" + CLIENT_ID_OF_EMAIL + ", ?, ?, ?, ?, ?, ?, ?)";
+    public static final String CREATE_SOLAR_PANEL = "INSERT INTO solarpanel(client_id, name, brand, iv, energy, obf_energyProduced) " +
+            "VALUES(" + CLIENT_ID_OF_EMAIL + ", ?, ?, ?, ?, ?)";
     public static final String CREATE_INVOICE =
-            "INSERT INTO invoice(iv, client_id, year, month, plan, taxes, paymentAmount, energyConsumed, energyConsumedDaytime, energyConsumedNight) " +
-                    "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-    public static final String READ_CLIENT_NAME_PASSWORD_SALT = "SELECT name, password, salt FROM client WHERE email = ?";
+            "INSERT INTO invoice(client_id, year, month, plan, taxes, iv, energy, " +
+                    "obf_paymentAmount, obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight) " +
+                    "VALUES(" + CLIENT_ID_OF_EMAIL + ", ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public static final String READ_CLIENT_NAME_PASSWORD_SALT = "SELECT name, password, salt, sessions_revoked_before FROM client WHERE email = ?";
+
+    public static final String READ_CLIENT_METADATA = "SELECT c.id, p.iv_personal_data, e.iv_energy_data, " +
+            "p.last_temporary_personal_key IS NOT NULL, e.last_temporary_energy_key IS NOT NULL " +
+            "FROM client c JOIN client_personal_data p ON p.client_id = c.id JOIN client_energy_data e ON e.client_id = c.id WHERE c.email = ?";
+    public static final String READ_OPEN_SESSIONS_CLIENT_METADATA = "SELECT c.email, c.id, p.iv_personal_data, e.iv_energy_data, " +
+            "p.last_temporary_personal_key IS NOT NULL, e.last_temporary_energy_key IS NOT NULL " +
+            "FROM client c JOIN client_personal_data p ON p.client_id = c.id JOIN client_energy_data e ON e.client_id = c.id " +
+            "WHERE c.token <> '' ORDER BY c.id DESC LIMIT ?";
 
-    public static final String READ_CLIENT_ID = "SELECT id FROM client WHERE email = ?";
+    // the table holds a single row (the first one if keys were ever stored twice)
+    public static final String READ_COMPARTMENT_KEYS = "SELECT personal_info_key, energy_panel_key, session_key FROM compartment_keys ORDER BY id LIMIT 1";
+    // webservers starting at the same time all try to store their session key, only the first one is kept
+    public static final String UPDATE_SESSION_KEY = "UPDATE compartment_keys SET session_key = ? WHERE session_key IS NULL";
 
-    public static final String READ_COMPARTMENT_KEYS = "SELECT personal_info_key, energy_panel_key FROM compartment_keys";
+    public static final String READ_CLIENT_PERSONAL_INFO = "SELECT c.name, c.email, p.obf_address, p.obf_iban, c.plan " +
+            "FROM client c JOIN client_personal_data p ON p.client_id = c.id WHERE c.email = ?";
+    public static final String READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA = "SELECT iv_personal_data, " + versioned("address") + ", " +
+            versioned("iban") + " FROM client_personal_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
 
-    public static final String READ_CLIENT_IV_PERSONAL_DATA = "SELECT iv_personal_data FROM client WHERE email = ?";
-    public static final String READ_CLIENT_IV_ENERGY_DATA = "SELECT iv_energy_data FROM client WHERE email = ?";
-    public static final String READ_CLIENT_PERSONAL_INFO = "SELECT name, email, obf_address, obf_iban, plan FROM client WHERE email = ?";
-    public static final String READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA = "SELECT iv_personal_data, address, iban FROM client WHERE email = ?";
+    public static final String READ_CLIENT_LAST_TEMPORARY_PERSONAL_KEY = "SELECT last_temporary_personal_key FROM client_personal_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String READ_CLIENT_IV_AND_ENCRYPTED_ENERGY_DATA = "SELECT iv_energy_data, client_id, " + versioned("energy") + " " +
+            "FROM client_energy_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String READ_CLIENT_IV_AND_ENCRYPTED_APPLIANCES_ENERGY = "SELECT iv, id, " + versioned("energy") + " FROM appliance WHERE client_id = ?";
+    public static final String READ_CLIENT_IV_AND_ENCRYPTED_SOLAR_PANELS_ENERGY = "SELECT iv, id, " + versioned("energy") + " FROM solarpanel WHERE client_id = ?";
+    public static final String READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY = "SELECT last_temporary_energy_key FROM client_energy_data WHERE client_id = " + CLIENT_ID_OF_EMAIL;
 
-    public static final String READ_CLIENT_LAST_TEMPORARY_PERSONAL_KEY = "SELECT last_temporary_personal_key FROM client WHERE email = ?";
-    public static final String READ_CLIENT_IV_AND_ENCRYPTED_ENERGY_DATA = "SELECT iv_energy_data, id, energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced FROM client WHERE email = ?";
-    public static final String READ_CLIENT_IV_AND_ENCRYPTED_APPLIANCES_ENERGY = "SELECT iv, id, energyConsumed, energyConsumedDaytime, energyConsumedNight FROM appliance WHERE client_id = ?";
-    public static final String READ_CLIENT_IV_AND_ENCRYPTED_SOLAR_PANELS_ENERGY = "SELECT iv, id, energyProduced FROM solarpanel WHERE client_id = ?";
-    public static final String READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY = "SELECT last_temporary_energy_key FROM client WHERE email = ?";
+    // locking reads, the selected rows stay locked until the enclosing transaction ends
+    public static final String LOCK_CLIENT_LAST_TEMPORARY_PERSONAL_KEY = READ_CLIENT_LAST_TEMPORARY_PERSONAL_KEY + " FOR UPDATE";
+    public static final String LOCK_CLIENT_LAST_TEMPORARY_ENERGY_KEY = READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY + " FOR UPDATE";
+    public static final String LOCK_CLIENT_IV_AND_LAST_TEMPORARY_PERSONAL_KEY = "SELECT iv_personal_data, last_temporary_personal_key " +
+            "FROM client_personal_data WHERE client_id = " + CLIENT_ID_OF_EMAIL + " FOR UPDATE";
 
-    public static final String READ_CLIENT_ENERGY_PANEL = "SELECT energyConsumed,  energyConsumedDaytime,  energyConsumedNight, energyProduced FROM client WHERE email= ? ";
-    public static final String READ_INVOICES = "SELECT iv, year, month, taxes, paymentAmount, energyConsumed, energyConsumedDaytime, energyConsumedNight, plan FROM invoice WHERE client_id = ? " +
-            "ORDER BY year, month";
+    // obfuscated client row, appliances and solar panels of a client in one result set:
+    // kind, name, brand, energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced, id
+    public static final int ENERGY_PANEL_CLIENT_ROW = 0;
+    public static final int ENERGY_PANEL_APPLIANCE_ROW = 1;
+    public static final int ENERGY_PANEL_SOLAR_PANEL_ROW = 2;
+    public static final String READ_ENERGY_PANEL =
+            "SELECT " + ENERGY_PANEL_CLIENT_ROW + " AS kind, NULL, NULL, e.obf_energyConsumed, e.obf_energyConsumedDaytime, e.obf_energyConsumedNight, e.obf_energyProduced, c.id " +
+                    "FROM client c JOIN client_energy_data e ON e.client_id = c.id WHERE c.email = ? " +
+            "UNION ALL " +
+            "SELECT " + ENERGY_PANEL_APPLIANCE_ROW + ", a.name, a.brand, a.obf_energyConsumed, a.obf_energyConsumedDaytime, a.obf_energyConsumedNight, NULL, a.id " +
+                    "FROM appliance a JOIN client c ON a.client_id = c.id WHERE c.email = ? " +
+            "UNION ALL " +
+            "SELECT " + ENERGY_PANEL_SOLAR_PANEL_ROW + ", s.name, s.brand, NULL, NULL, NULL, s.obf_energyProduced, s.id " +
+                    "FROM solarpanel s JOIN client c ON s.client_id = c.id WHERE c.email = ? " +
+            "ORDER BY kind, id";
+    // keyset pagination over the (client_id, year, month) unique index
+    public static final String READ_LAST_INVOICE_MONTH = "SELECT year, month FROM invoice ORDER BY year DESC, month DESC LIMIT 1";
+    public static final String READ_INVOICES_PAGE = "SELECT year, month, taxes, obf_paymentAmount, obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight, plan FROM invoice " +
+            "WHERE client_id = " + CLIENT_ID_OF_EMAIL + " AND (year > ? OR (year = ? AND month > ?)) ORDER BY year, month LIMIT ?";
 
-    public static final String READ_CLIENT_ENERGY_CONSUMPTION = "SELECT energyConsumed, energyConsumedDaytime,  energyConsumedNight FROM client WHERE email= ? ";
-    //public static final String READ_CLIENT_ENERGY_CONSUMPTION = "SELECT obf_energyConsumed, obf_energyConsumedDaytime, obf_energyConsumedNight FROM client WHERE email= ?";
+    // rows left to rewrite at startup are found by a plain read of the ids after the last batch, then locked one by one
+    // by their id, checking again that they were not rewritten meanwhile
+    private static final String AFTER_ID = " AND id > ? ORDER BY id LIMIT ?";
 
-    public static final String READ_CLIENT_ENERGY_PRODUCTION = "SELECT energyProduced FROM client WHERE email= ? ";
-    //public static final String READ_CLIENT_ENERGY_PRODUCTION = "SELECT obf_energyProduced FROM client WHERE email= ?";
+    // rows written before the obfuscated columns existed, along with the key their energy values are encrypted with
+    public static final String READ_APPLIANCE_IDS_TO_OBFUSCATE = "SELECT id FROM appliance " +
+            "WHERE obf_energyConsumed IS NULL AND energy IS NOT NULL" + AFTER_ID;
+    public static final String READ_APPLIANCE_TO_OBFUSCATE = "SELECT a.id, a.iv, " + versioned("a.energy") + ", e.last_temporary_energy_key " +
+            "FROM appliance a JOIN client_energy_data e ON a.client_id = e.client_id " +
+            "WHERE a.id = ? AND a.obf_energyConsumed IS NULL AND a.energy IS NOT NULL FOR UPDATE";
+    public static final String READ_SOLAR_PANEL_IDS_TO_OBFUSCATE = "SELECT id FROM solarpanel " +
+            "WHERE obf_energyProduced IS NULL AND energy IS NOT NULL" + AFTER_ID;
+    public static final String READ_SOLAR_PANEL_TO_OBFUSCATE = "SELECT s.id, s.iv, " + versioned("s.energy") + ", e.last_temporary_energy_key " +
+            "FROM solarpanel s JOIN client_energy_data e ON s.client_id = e.client_id " +
+            "WHERE s.id = ? AND s.obf_energyProduced IS NULL AND s.energy IS NOT NULL FOR UPDATE";
+    public static final String READ_INVOICE_IDS_TO_OBFUSCATE = "SELECT id FROM invoice " +
+            "WHERE obf_paymentAmount IS NULL AND energy IS NOT NULL" + AFTER_ID;
+    public static final String READ_INVOICE_TO_OBFUSCATE = "SELECT id, iv, " + versioned("energy") + " FROM invoice " +
+            "WHERE id = ? AND obf_paymentAmount IS NULL AND energy IS NOT NULL FOR UPDATE";
+
+    // rows written with one ciphertext per energy value, along with the key they are encrypted with
+    public static final String READ_CLIENT_ENERGY_DATA_IDS_TO_PACK = "SELECT client_id FROM client_energy_data " +
+            "WHERE energy IS NULL AND energyConsumed IS NOT NULL AND client_id > ? ORDER BY client_id LIMIT ?";
+    public static final String READ_CLIENT_ENERGY_DATA_TO_PACK = "SELECT client_id, iv_energy_data, last_temporary_energy_key, " +
+            "energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced FROM client_energy_data " +
+            "WHERE client_id = ? AND energy IS NULL AND energyConsumed IS NOT NULL FOR UPDATE";
+    public static final String READ_APPLIANCE_IDS_TO_PACK = "SELECT id FROM appliance " +
+            "WHERE energy IS NULL AND energyConsumed IS NOT NULL" + AFTER_ID;
+    public static final String READ_APPLIANCE_TO_PACK = "SELECT a.id, a.iv, e.last_temporary_energy_key, " +
+            "a.energyConsumed, a.energyConsumedDaytime, a.energyConsumedNight " +
+            "FROM appliance a JOIN client_energy_data e ON a.client_id = e.client_id " +
+            "WHERE a.id = ? AND a.energy IS NULL AND a.energyConsumed IS NOT NULL FOR UPDATE";
+    public static final String READ_SOLAR_PANEL_IDS_TO_PACK = "SELECT id FROM solarpanel " +
+            "WHERE energy IS NULL AND energyProduced IS NOT NULL" + AFTER_ID;
+    public static final String READ_SOLAR_PANEL_TO_PACK = "SELECT s.id, s.iv, e.last_temporary_energy_key, s.energyProduced " +
+            "FROM solarpanel s JOIN client_energy_data e ON s.client_id = e.client_id " +
+            "WHERE s.id = ? AND s.energy IS NULL AND s.energyProduced IS NOT NULL FOR UPDATE";
+    public static final String READ_INVOICE_IDS_TO_PACK = "SELECT id FROM invoice " +
+            "WHERE energy IS NULL AND paymentAmount IS NOT NULL" + AFTER_ID;
+    public static final String READ_INVOICE_TO_PACK = "SELECT id, iv, NULL, paymentAmount, energyConsumed, energyConsumedDaytime, energyConsumedNight " +
+            "FROM invoice WHERE id = ? AND energy IS NULL AND paymentAmount IS NOT NULL FOR UPDATE";
+
+    public static final String UPDATE_CLIENT_ENERGY_DATA_PACKED = "UPDATE client_energy_data SET energy = ?, " +
+            "energyConsumed = NULL, energyConsumedDaytime = NULL, energyConsumedNight = NULL, energyProduced = NULL, " +
+            "unversioned_ciphertexts = FALSE WHERE client_id = ?";
+    public static final String UPDATE_APPLIANCE_PACKED = "UPDATE appliance SET energy = ?, " +
+            "energyConsumed = NULL, energyConsumedDaytime = NULL, energyConsumedNight = NULL, unversioned_ciphertexts = FALSE WHERE id = ?";
+    public static final String UPDATE_SOLAR_PANEL_PACKED = "UPDATE solarpanel SET energy = ?, energyProduced = NULL, " +
+            "unversioned_ciphertexts = FALSE WHERE id = ?";
+    public static final String UPDATE_INVOICE_PACKED = "UPDATE invoice SET energy = ?, " +
+            "paymentAmount = NULL, energyConsumed = NULL, energyConsumedDaytime = NULL, energyConsumedNight = NULL, " +
+            "unversioned_ciphertexts = FALSE WHERE id = ?";
+
+    // client.version is incremented on every write to the energy data compartment
+    public static final String READ_CLIENT_VERSIONED_ENERGY_DATA = "SELECT c.version, e.iv_energy_data, e.last_temporary_energy_key, " +
+            versioned("e.energy") + " " +
+            "FROM client c JOIN client_energy_data e ON e.client_id = c.id WHERE c.email = ?";
     
     public static final String READ_CLIENT_TOKEN = "SELECT token FROM client WHERE email = ?";
 
-    public static final String READ_ALL_CLIENTS_ID_ENERGY_CONSUMPTION_PLAN = "SELECT id, plan, iv_energy_data, last_temporary_energy_key, energyConsumed, energyConsumedDaytime, energyConsumedNight FROM client";
+    public static final String READ_ALL_CLIENTS_BILLING_DATA = "SELECT c.email, c.plan, e.iv_energy_data, e.last_temporary_energy_key, " +
+            versioned("e.energy") + " " +
+            "FROM client c JOIN client_energy_data e ON e.client_id = c.id";
 
-    public static final String READ_CLIENT_COUNT = "SELECT COUNT(*) FROM client WHERE email = ?";
-    public static final String READ_APPLIANCE_COUNT = "SELECT COUNT(*) FROM appliance WHERE client_id = ? AND name = ? AND brand = ? ";
-    public static final String READ_SOLAR_PANEL_COUNT = "SELECT COUNT(*) FROM solarpanel WHERE client_id = ? AND name = ? AND brand = ? ";
 
-    public static final String READ_APPLIANCES = "SELECT iv, name, brand, energyConsumed, energyConsumedDaytime, energyConsumedNight FROM appliance WHERE client_id = ? ";
-    public static final String READ_SOLAR_PANELS = "SELECT iv, name, brand, energyProduced FROM solarpanel WHERE client_id = ? ";
+    public static final String UPDATE_CLIENT_IV_AND_ENCRYPTED_PERSONAL_INFO = "UPDATE client_personal_data SET iv_personal_data = ?, address = ?, iban = ?, " +
+            "unversioned_ciphertexts = FALSE WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String UPDATE_CLIENT_TEMPORARY_PERSONAL_KEY = "UPDATE client_personal_data SET last_temporary_personal_key = ? WHERE client_id = " + CLIENT_ID_OF_EMAIL;
+    public static final String UPDATE_CLIENT_IV_AND_ENCRYPTED_ENERGY_PANEL = "UPDATE client c JOIN client_energy_data e ON e.client_id = c.id " +
+            "SET e.iv_energy_data = ?, e.energy = ?, e.unversioned_ciphertexts = FALSE, c.version = c.version + 1 WHERE c.email = ?";
+    public static final String UPDATE_CLIENT_TEMPORARY_ENERGY_KEY = "UPDATE client c JOIN client_energy_data e ON e.client_id = c.id " +
+            "SET e.last_temporary_energy_key = ?, c.version = c.version + 1 WHERE c.email = ?";
 
-    public static final String UPDATE_CLIENT_IV_AND_ENCRYPTED_PERSONAL_INFO = "UPDATE client SET iv_personal_data = ?, address = ?, iban = ? WHERE email = ?";
-    public static final String UPDATE_CLIENT_TEMPORARY_PERSONAL_KEY = "UPDATE client SET last_temporary_personal_key = ? WHERE email = ?";
-    public static final String UPDATE_CLIENT_IV_AND_ENCRYPTED_ENERGY_PANEL = "UPDATE client SET iv_energy_data = ?, energyConsumed = ?, energyConsumedDaytime = ?, energyConsumedNight = ?, energyProduced = ? WHERE email = ?";
-    public static final String UPDATE_CLIENT_TEMPORARY_ENERGY_KEY = "UPDATE client SET last_temporary_energy_key = ? WHERE email = ?";
-    public static final String UPDATE_CLIENT_ENERGY_CONSUMPTION = "UPDATE client SET energyConsumed = ?, energyConsumedDaytime = ?, energyConsumedNight = ?, obf_energyConsumed = ?, obf_energyConsumedDaytime = ?, obf_energyConsumedNight = ? WHERE email = ?";
-    public static final String UPDATE_CLIENT_ENERGY_PRODUCTION = "UPDATE client SET energyProduced = ?, obf_energyProduced = ? WHERE email = ?";
+    // compare-and-set on the version the energy data was read at, no rows are updated if it changed meanwhile
+    public static final String UPDATE_CLIENT_ENERGY = "UPDATE client c JOIN client_energy_data e ON e.client_id = c.id " +
+            "SET e.energy = ?, e.unversioned_ciphertexts = FALSE, " +
+            "e.obf_energyConsumed = ?, e.obf_energyConsumedDaytime = ?, e.obf_energyConsumedNight = ?, e.obf_energyProduced = ?, " +
+            "c.version = c.version + 1 WHERE c.email = ? AND c.version = ?";
 
     public static final String UPDATE_CLIENT_TOKEN = "UPDATE client SET token = ? WHERE email = ?";
 
-    public static final String UPDATE_CLIENT_ADDRESS = "UPDATE client SET address = ?, obf_address = ? WHERE email = ?";
+    // signed session tokens issued up to the given time (in milliseconds since the epoch) are revoked
+    public static final String UPDATE_CLIENT_SESSIONS_REVOKED_BEFORE = "UPDATE client " +
+            "SET sessions_revoked_before = GREATEST(COALESCE(sessions_revoked_before, 0), ?) WHERE email = ?";
+    public static final String READ_SESSIONS_REVOKED_AFTER = "SELECT email, sessions_revoked_before FROM client WHERE sessions_revoked_before > ?";
+
+    // the assignments of a single-table update are made from left to right, the iban is read before the row is unmarked
+    public static final String UPDATE_CLIENT_ADDRESS = "UPDATE client_personal_data SET address = ?, obf_address = ?, " +
+            "iban = " + versioned("iban") + ", unversioned_ciphertexts = FALSE WHERE client_id = " + CLIENT_ID_OF_EMAIL;
 
     public static final String UPDATE_CLIENT_PLAN = "UPDATE client SET plan = ? WHERE email = ?";
 
-    public static final String UPDATE_CLIENT_IV_AND_APPLIANCE_ENERGY = "UPDATE appliance SET iv = ?, energyConsumed = ?, energyConsumedDaytime = ?, energyConsumedNight = ? WHERE id = ?";
-    public static final String UPDATE_CLIENT_IV_AND_SOLAR_PANEL_ENERGY = "UPDATE solarpanel SET iv = ?, energyProduced = ? WHERE id = ?";
+    public static final String UPDATE_CLIENT_IV_AND_APPLIANCE_ENERGY = "UPDATE appliance SET iv = ?, energy = ?, unversioned_ciphertexts = FALSE WHERE id = ?";
+    public static final String UPDATE_CLIENT_IV_AND_SOLAR_PANEL_ENERGY = "UPDATE solarpanel SET iv = ?, energy = ?, unversioned_ciphertexts = FALSE WHERE id = ?";
+
+    public static final String UPDATE_APPLIANCE_OBFUSCATED_ENERGY = "UPDATE appliance SET obf_energyConsumed = ?, obf_energyConsumedDaytime = ?, obf_energyConsumedNight = ? WHERE id = ?";
+    public static final String UPDATE_SOLAR_PANEL_OBFUSCATED_ENERGY = "UPDATE solarpanel SET obf_energyProduced = ? WHERE id = ?";
+    public static final String UPDATE_INVOICE_OBFUSCATED_ENERGY = "UPDATE invoice SET obf_paymentAmount = ?, obf_energyConsumed = ?, obf_energyConsumedDaytime = ?, obf_energyConsumedNight = ? WHERE id = ?";
 }
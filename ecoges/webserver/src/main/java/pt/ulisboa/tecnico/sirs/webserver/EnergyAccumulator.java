@@ -0,0 +1,114 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Energy added to each client (email -> delta) that has not been written to the database yet.
+ * Deltas for the same client are summed, so that many additions cost a single update when flushed.
+ */
+public class EnergyAccumulator {
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 100;
+
+    private final int flushThreshold;
+    private final ConcurrentHashMap<String, EnergyDelta> pending = new ConcurrentHashMap<>();
+
+    public EnergyAccumulator(int flushThreshold) {
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("Invalid energy flush threshold: " + flushThreshold);
+        }
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Returns true if enough clients have pending energy for a flush to be worth it.
+     */
+    public boolean add(String email, EnergyDelta delta) {
+        pending.merge(email, delta, EnergyDelta::plus);
+        return pending.size() >= flushThreshold;
+    }
+
+    /**
+     * Removes and returns every pending delta. Deltas added meanwhile are left for the next drain.
+     */
+    public Map<String, EnergyDelta> drain() {
+        Map<String, EnergyDelta> drained = new HashMap<>();
+        for (String email : pending.keySet()) {
+            EnergyDelta delta = pending.remove(email);
+            if (delta != null) {
+                drained.put(email, delta);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Removes and returns the pending delta of a client, null if there is none.
+     */
+    public EnergyDelta take(String email) {
+        return pending.remove(email);
+    }
+
+    /**
+     * Returns the pending delta of a client without removing it, null if there is none.
+     */
+    public EnergyDelta get(String email) {
+        return pending.get(email);
+    }
+
+    /**
+     * Gives back a drained delta that could not be written.
+     */
+    public void restore(String email, EnergyDelta delta) {
+        pending.merge(email, delta, EnergyDelta::plus);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public static class EnergyDelta {
+        private final float energyConsumed;
+        private final float energyConsumedDaytime;
+        private final float energyConsumedNight;
+        private final float energyProduced;
+
+        public EnergyDelta(float energyConsumed, float energyConsumedDaytime, float energyConsumedNight, float energyProduced) {
+            this.energyConsumed = energyConsumed;
+            this.energyConsumedDaytime = energyConsumedDaytime;
+            this.energyConsumedNight = energyConsumedNight;
+            this.energyProduced = energyProduced;
+        }
+
+        public static EnergyDelta consumption(float energyConsumed, float energyConsumedDaytime, float energyConsumedNight) {
+            return new EnergyDelta(energyConsumed, energyConsumedDaytime, energyConsumedNight, 0);
+        }
+
+        public static EnergyDelta production(float energyProduced) {
+            return new EnergyDelta(0, 0, 0, energyProduced);
+        }
+
+        public EnergyDelta plus(EnergyDelta other) {
+            return new EnergyDelta(energyConsumed + other.energyConsumed, energyConsumedDaytime + other.energyConsumedDaytime,
+                    energyConsumedNight + other.energyConsumedNight, energyProduced + other.energyProduced);
+        }
+
+        public float getEnergyConsumed() {
+            return energyConsumed;
+        }
+
+        public float getEnergyConsumedDaytime() {
+            return energyConsumedDaytime;
+        }
+
+        public float getEnergyConsumedNight() {
+            return energyConsumedNight;
+        }
+
+        public float getEnergyProduced() {
+            return energyProduced;
+        }
+    }
+}
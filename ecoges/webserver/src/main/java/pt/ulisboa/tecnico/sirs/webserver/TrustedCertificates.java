@@ -0,0 +1,83 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Certificates of the truststore used to verify compartment key requests: the CA that signs the department
+ * certificates and the RBAC server that signs the tickets. The truststore is read on first use and only read again
+ * by {@link #reload()}, e.g. after a certificate is rotated.
+ */
+public class TrustedCertificates {
+
+    public static final String ALIAS_CA = "ca";
+    public static final String ALIAS_RBAC = "rbac";
+
+    private final String file;
+    private final String password;
+
+    // replaced as a whole, so a request never sees the CA of one load and the RBAC certificate of another
+    private volatile Certificates certificates;
+
+    public TrustedCertificates(String file, String password) {
+        this.file = file;
+        this.password = password;
+    }
+
+    /**
+     * Reads the truststore again. The certificates loaded before are kept if it cannot be read.
+     */
+    public synchronized void reload() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            trustStore.load(in, password.toCharArray());
+        }
+        certificates = new Certificates(certificate(trustStore, ALIAS_CA), certificate(trustStore, ALIAS_RBAC));
+    }
+
+    public X509Certificate getCACertificate() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        return load().ca;
+    }
+
+    public X509Certificate getRBACCertificate() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        return load().rbac;
+    }
+
+    private Certificates load() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        Certificates loaded = certificates;
+        if (loaded == null) {
+            synchronized (this) {
+                if (certificates == null) {
+                    reload();
+                }
+                loaded = certificates;
+            }
+        }
+        return loaded;
+    }
+
+    private X509Certificate certificate(KeyStore trustStore, String alias) throws KeyStoreException {
+        X509Certificate certificate = (X509Certificate) trustStore.getCertificate(alias);
+        if (certificate == null) {
+            throw new KeyStoreException("No certificate '" + alias + "' in " + file);
+        }
+        return certificate;
+    }
+
+    private static class Certificates {
+        private final X509Certificate ca;
+        private final X509Certificate rbac;
+
+        Certificates(X509Certificate ca, X509Certificate rbac) {
+            this.ca = ca;
+            this.rbac = rbac;
+        }
+    }
+}
@@ -1,49 +1,104 @@
 package pt.ulisboa.tecnico.sirs.webserver;
 
 import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.security.RecordCodec;
 import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.security.SessionCache;
+import pt.ulisboa.tecnico.sirs.security.SessionTokens;
+import pt.ulisboa.tecnico.sirs.webserver.ClientMetadataCache.ClientMetadata;
+import pt.ulisboa.tecnico.sirs.webserver.EnergyAccumulator.EnergyDelta;
 import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
+import pt.ulisboa.tecnico.sirs.webserver.storage.*;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.*;
 
 import javax.crypto.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.*;
 import java.security.spec.InvalidKeySpecException;
-import java.sql.*;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+import java.util.Map;
 
 public class Webserver {
-    private Connection dbConnection;
+    // Clients, devices, invoices and keys, on MySQL or in memory
+    private final Storage storage;
+
+    // Energy data
+    private static final int ENERGY_UPDATE_ATTEMPTS = 5;
+
+    // Invoices
+    public static final int DEFAULT_INVOICE_PAGE_SIZE = 12;
+    public static final int MAX_INVOICE_PAGE_SIZE = 120;
 
     private static final List<String> months = new ArrayList<>(Arrays.asList
             ("Jan", "Feb", "Mar", "Apr", "Mai", "Jun", "Jul", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"));
 
-    // Trust Store
+    // Trust Store, read once instead of on every compartment key request
     private static final String TRUST_STORE_FILE = "src/main/resources/webserver.truststore";
     private static final String TRUST_STORE_PASSWORD = "mypasswebserver";
-    private static final String TRUST_STORE_ALIAS_CA = "ca";
-    private static final String TRUST_STORE_ALIAS_RBAC = "rbac";
+    private final TrustedCertificates trustedCertificates = new TrustedCertificates(TRUST_STORE_FILE, TRUST_STORE_PASSWORD);
+
+    // CertificateFactory is not documented as thread-safe, so every thread keeps its own
+    private static final ThreadLocal<CertificateFactory> certificateFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new IllegalStateException(e); // every Java platform supports X.509
+        }
+    });
+
+    private static final DateTimeFormatter TICKET_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
 
     // Compartments
     private final SecretKey personalInfoKey;
     private final SecretKey energyPanelKey;
     private final KeyPair keyPair;
 
-    public Webserver(Connection dbConnection, SecretKey personalInfoKey, SecretKey energyPanelKey, KeyPair keyPair) {
-        this.dbConnection = dbConnection;
+    // Client sessions, can be tuned with -Decoges.session.cache.ttl (milliseconds) and -Decoges.session.cache.size
+    private final SessionCache sessionCache = new SessionCache(
+            Long.getLong("ecoges.session.cache.ttl", SessionCache.DEFAULT_TTL_MILLIS),
+            Integer.getInteger("ecoges.session.cache.size", SessionCache.DEFAULT_MAX_ENTRIES));
+
+    // Client ids and IVs, can be tuned with -Decoges.client.cache.size
+    private final ClientMetadataCache clientMetadataCache = new ClientMetadataCache(
+            Integer.getInteger("ecoges.client.cache.size", ClientMetadataCache.DEFAULT_MAX_ENTRIES));
+
+    // Energy added by new appliances and solar panels, can be tuned with -Decoges.energy.flush.threshold
+    private final EnergyAccumulator energyAccumulator = new EnergyAccumulator(
+            Integer.getInteger("ecoges.energy.flush.threshold", EnergyAccumulator.DEFAULT_FLUSH_THRESHOLD));
+
+    // Signed session tokens, null when sessions are stored in the database
+    private final SessionTokens sessionTokens;
+
+    public Webserver(ConnectionPool dbPool, SecretKey personalInfoKey, SecretKey energyPanelKey, KeyPair keyPair) {
+        this(dbPool, personalInfoKey, energyPanelKey, keyPair, null);
+    }
+
+    public Webserver(ConnectionPool dbPool, SecretKey personalInfoKey, SecretKey energyPanelKey, KeyPair keyPair,
+                     SessionTokens sessionTokens) {
+        this(new ShardRouter(dbPool), personalInfoKey, energyPanelKey, keyPair, sessionTokens);
+    }
+
+    public Webserver(ShardRouter shards, SecretKey personalInfoKey, SecretKey energyPanelKey, KeyPair keyPair,
+                     SessionTokens sessionTokens) {
+        this(new JdbcStorage(shards), personalInfoKey, energyPanelKey, keyPair, sessionTokens);
+    }
+
+    public Webserver(Storage storage, SecretKey personalInfoKey, SecretKey energyPanelKey, KeyPair keyPair,
+                     SessionTokens sessionTokens) {
+        this.storage = storage;
         this.personalInfoKey = personalInfoKey;
         this.energyPanelKey = energyPanelKey;
         this.keyPair = keyPair;
+        this.sessionTokens = sessionTokens;
     }
 
     /*
@@ -52,6 +107,13 @@ public class Webserver {
     -----------------------------------------------
      */
 
+    /**
+     * Reads the truststore again, to trust a rotated CA or RBAC certificate without restarting.
+     */
+    public void reloadTrustedCertificates() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        trustedCertificates.reload();
+    }
+
     public PublicKey verifyDepartmentRequest(GetCompartmentKeyRequest.RequestData data, ByteString signature)
             throws CertificateException, InvalidSignatureException, KeyStoreException, IOException,
             InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidCertificateChainException,
@@ -60,8 +122,7 @@ public class Webserver {
         byte[] certificateBytes = data.getCertificate().toByteArray();
 
         // Retrieve department certificate from the request
-        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-        X509Certificate departmentCertificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(certificateBytes));
+        X509Certificate departmentCertificate = (X509Certificate) certificateFactories.get().generateCertificate(new ByteArrayInputStream(certificateBytes));
         PublicKey departmentPublicKey = departmentCertificate.getPublicKey();
 
         // Verify authenticity and integrity of the request
@@ -70,11 +131,7 @@ public class Webserver {
         }
 
         // Validate certificate chain with trusted CA
-        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        trustStore.load(Files.newInputStream(Paths.get(TRUST_STORE_FILE)), TRUST_STORE_PASSWORD.toCharArray());
-        X509Certificate CACertificate = (X509Certificate) trustStore.getCertificate(TRUST_STORE_ALIAS_CA);
-
-        if (!Security.validateCertificateChain(departmentCertificate, CACertificate)) {
+        if (!Security.validateCertificateChain(departmentCertificate, trustedCertificates.getCACertificate())) {
             throw new InvalidCertificateChainException();
         }
 
@@ -86,13 +143,8 @@ public class Webserver {
             InvalidKeyException, InvalidSignatureException, InvalidTicketUsernameException, InvalidTicketRoleException,
             InvalidTicketCompartmentException, InvalidTicketIssuedTimeException, InvalidTicketValidityTimeException {
 
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-
         // Retrieve RBAC certificate from truststore
-        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-        trustStore.load(Files.newInputStream(Paths.get(TRUST_STORE_FILE)), TRUST_STORE_PASSWORD.toCharArray());
-        X509Certificate certificateRBAC = (X509Certificate) trustStore.getCertificate(TRUST_STORE_ALIAS_RBAC);
-        PublicKey publicKeyRBAC = certificateRBAC.getPublicKey();
+        PublicKey publicKeyRBAC = trustedCertificates.getRBACCertificate().getPublicKey();
 
         // Verify authenticity and integrity of the response
         if (!Security.verifySignature(publicKeyRBAC, signatureRBAC.toByteArray(), ticket.toByteArray())) {
@@ -113,23 +165,19 @@ public class Webserver {
         // Validate ticket timestamps
         LocalDateTime now = LocalDateTime.now();
 
-        LocalDateTime requestIssuedAt = LocalDateTime.parse(ticket.getRequestIssuedAt(), dtf);
+        LocalDateTime requestIssuedAt = LocalDateTime.parse(ticket.getRequestIssuedAt(), TICKET_TIME_FORMAT);
         if (requestIssuedAt.isAfter(now)) {
             throw new InvalidTicketIssuedTimeException(now, requestIssuedAt);
         }
 
-        LocalDateTime requestValidUntil = LocalDateTime.parse(ticket.getRequestValidUntil(), dtf);
+        LocalDateTime requestValidUntil = LocalDateTime.parse(ticket.getRequestValidUntil(), TICKET_TIME_FORMAT);
         if (requestValidUntil.isBefore(now)) {
             throw new InvalidTicketValidityTimeException(now, requestValidUntil);
         }
     }
 
     public void discardTemporaryKey(String clientEmail, CompartmentType compartment) throws InvalidAlgorithmParameterException, SQLException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        Statement st;
-
-        // start transaction due to the long set of operations and the existence of concurrent accesses to the client data
-        st = dbConnection.createStatement();
-        st.execute(START_TRANSACTION);
+        // the storage runs it atomically due to the long set of operations and the existence of concurrent accesses to the client data
         try {
             if (compartment.equals(CompartmentType.PERSONAL_DATA)) {
                 reEncryptPersonalDataWithNewKey(personalInfoKey, clientEmail);
@@ -137,15 +185,10 @@ public class Webserver {
                 reEncryptEnergyDataWithNewKey(energyPanelKey, clientEmail);
             }
         } catch (Exception e) {
-            st = dbConnection.createStatement();
             System.out.println("[-] Aborting 'ack compartment key' transaction for " + compartment.name() + " of " + clientEmail);
-            st.execute(ABORT_TRANSACTION);
             throw e;
         }
-
-        st = dbConnection.createStatement();
-        System.out.println("[+] Committing 'ack compartment key' transaction for " + compartment.name() + " of " + clientEmail);
-        st.execute(COMMIT_TRANSACTION);
+        System.out.println("[+] Committed 'ack compartment key' transaction for " + compartment.name() + " of " + clientEmail);
     }
 
     public byte[] getCompartmentKey(GetCompartmentKeyRequest.RequestData data, ByteString signature,
@@ -156,8 +199,6 @@ public class Webserver {
             CertificateException, InvalidTicketUsernameException, InvalidTicketCompartmentException, InvalidTicketRoleException,
             InvalidTicketIssuedTimeException, InvalidTicketValidityTimeException, SQLException {
 
-        Statement st;
-
         PublicKey departmentPublicKey = verifyDepartmentRequest(data, signature);
         verifyRBACResponse(ticket, signatureRBAC, data);
 
@@ -166,255 +207,102 @@ public class Webserver {
         keyGen.init(256);
         SecretKey temporaryKey = keyGen.generateKey();
 
-        // start transaction due to the long set of operations and the existence of concurrent accesses to the client data
-        st = dbConnection.createStatement();
-        st.execute(START_TRANSACTION);
-
+        // the storage runs it atomically due to the long set of operations and the existence of concurrent accesses to the client data
         try {
             if (data.getCompartment().name().equals(CompartmentType.PERSONAL_DATA.name())) {
                 reEncryptPersonalDataWithNewKey(temporaryKey, clientEmail);
             } else if (data.getCompartment().name().equals(CompartmentType.ENERGY_DATA.name())) {
+                // the department reads the totals from the database, they must include the energy not written yet
+                if (!flushEnergyData(clientEmail)) {
+                    throw new CompartmentKeyException();
+                }
                 reEncryptEnergyDataWithNewKey(temporaryKey, clientEmail);
             }
         } catch (Exception e) {
-            st = dbConnection.createStatement();
             System.out.println("[-] Aborting 'get compartment key' transaction for " + data.getCompartment().name() + " of " + clientEmail);
-            st.execute(ABORT_TRANSACTION);
             throw e;
         }
-
-        st = dbConnection.createStatement();
-        System.out.println("[+] Committing 'get compartment key' transaction for " + data.getCompartment().name() + " of " + clientEmail);
-        st.execute(COMMIT_TRANSACTION);
+        System.out.println("[+] Committed 'get compartment key' transaction for " + data.getCompartment().name() + " of " + clientEmail);
 
         return Security.wrapKey(departmentPublicKey, temporaryKey);
     }
 
-    public SecretKey computeOldKey(SecretKey masterKey, String query, String clientEmail) throws SQLException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        PreparedStatement st;
-        ResultSet rs;
-        SecretKey oldKey = null;
-
-        st = dbConnection.prepareStatement(query);
-        st.setString(1, clientEmail);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            byte[] lastTemporaryKey = rs.getBytes(1);
-
-            if(lastTemporaryKey == null) {
-                oldKey = masterKey;
-            }
-            else { // recover old temporary key if backoffice disconnected and did not send an acknowledgment message
-                oldKey = Security.unwrapKey(keyPair.getPrivate(), lastTemporaryKey);
-            }
-        }
-        else {
-            rs.close();
-        }
-        rs.close();
-        return oldKey;
-    }
-
-    public void saveNewKey(SecretKey masterKey, SecretKey newKey, String query, String clientEmail) throws SQLException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        PreparedStatement st;
-        st = dbConnection.prepareStatement(query);
-        if (newKey.equals(masterKey)) {
-            st.setBytes(1, null); // set temporary key value to null
-        }
-        else {
-            st.setBytes(1, Security.wrapKey(keyPair.getPublic(), newKey));
-        }
-        st.setString(2, clientEmail);
-        st.execute();
-    }
-
     public void reEncryptPersonalDataWithNewKey(SecretKey newKey, String clientEmail) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        SecretKey oldKey = computeOldKey(personalInfoKey, READ_CLIENT_LAST_TEMPORARY_PERSONAL_KEY, clientEmail);
-        if (oldKey == null)  return;
-        reEncryptClientPersonalData(clientEmail, oldKey, newKey);
-
-        saveNewKey(personalInfoKey, newKey, UPDATE_CLIENT_TEMPORARY_PERSONAL_KEY, clientEmail);
-    }
-
-    public void reEncryptClientPersonalData(String clientEmail, SecretKey oldKey, SecretKey newKey)
-            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
-            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-        String address, iban;
-        byte[] oldIv, newIv;
-
-        // decrypt data with old key
-        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA);
-        st.setString(1, clientEmail);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            oldIv = rs.getBytes(1);
-            address = new String(Security.decryptData(rs.getBytes(2), oldKey, oldIv));
-            iban = new String(Security.decryptData(rs.getBytes(3), oldKey, oldIv));
-        }
-        else {
-            rs.close();
-            return; // must not happen
+        try {
+            storage.clients().reEncrypt(clientEmail, CompartmentType.PERSONAL_DATA, new KeyRotation(personalInfoKey, newKey));
+        } finally {
+            // drop anything cached while the data was being re-encrypted
+            clientMetadataCache.invalidate(clientEmail);
         }
-        rs.close();
-
-        // encrypt data with new key
-        newIv = Security.generateRandom();
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_ENCRYPTED_PERSONAL_INFO);
-        st.setBytes(1, newIv);
-        st.setBytes(2, Security.encryptData(address, newKey, newIv));
-        st.setBytes(3, Security.encryptData(iban, newKey, newIv));
-        st.setString(4, clientEmail);
-        st.execute();
-
     }
 
     public void reEncryptEnergyDataWithNewKey(SecretKey newKey, String clientEmail) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        SecretKey oldKey = computeOldKey(energyPanelKey, READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY, clientEmail);
-        if (oldKey == null) return;
-
-        int clientId = reEncryptClientGeneralEnergy(clientEmail, oldKey, newKey);
-        reEncryptClientAppliancesEnergy(clientId, oldKey, newKey);
-        reEncryptClientSolarPanelsEnergy(clientId, oldKey, newKey);
-
-        saveNewKey(energyPanelKey, newKey, UPDATE_CLIENT_TEMPORARY_ENERGY_KEY, clientEmail);
+        try {
+            storage.clients().reEncrypt(clientEmail, CompartmentType.ENERGY_DATA, new KeyRotation(energyPanelKey, newKey));
+        } finally {
+            // drop anything cached while the data was being re-encrypted
+            clientMetadataCache.invalidate(clientEmail);
+        }
     }
 
-    public int reEncryptClientGeneralEnergy(String clientEmail, SecretKey oldKey, SecretKey newKey)
-            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
-            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+    /**
+     * Moves the values of a compartment from the key they are stored with to a new one.
+     * A compartment with a pending temporary key is stored with it, otherwise with the master key.
+     */
+    private class KeyRotation implements ReEncryption {
+        private final SecretKey masterKey;
+        private final SecretKey newKey;
 
+        // every value of a compartment is stored with the same key, so it is only unwrapped once
+        private byte[] lastTemporaryKey;
+        private SecretKey oldKey;
 
-        PreparedStatement st;
-        ResultSet rs;
-        float energyConsumed, energyConsumedDaytime, energyConsumedNight, energyProduced;
-        byte[] oldIv, newIv;
-        int clientId = -1;
-
-        // decrypt data with old key
-        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_ENERGY_DATA);
-        st.setString(1, clientEmail);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            oldIv = rs.getBytes(1);
-            clientId = rs.getInt(2);
-            byte[] energyConsumedBytes = Security.decryptData(rs.getBytes(3), oldKey, oldIv);
-            byte[] energyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(4), oldKey, oldIv);
-            byte[] energyConsumedNightBytes = Security.decryptData(rs.getBytes(5), oldKey, oldIv);
-            byte[] energyProducedBytes = Security.decryptData(rs.getBytes(6), oldKey, oldIv);
-
-            energyConsumed = Float.parseFloat(new String(energyConsumedBytes));
-            energyConsumedDaytime = Float.parseFloat(new String(energyConsumedDaytimeBytes));
-            energyConsumedNight = Float.parseFloat(new String(energyConsumedNightBytes));
-            energyProduced = Float.parseFloat(new String(energyProducedBytes));
+        KeyRotation(SecretKey masterKey, SecretKey newKey) {
+            this.masterKey = masterKey;
+            this.newKey = newKey;
         }
-        else {
-            rs.close();
-            return clientId;
-        }
-
-        rs.close();
-
-        // encrypt data with new key
-        newIv = Security.generateRandom();
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_ENCRYPTED_ENERGY_PANEL);
-        st.setBytes(1, newIv);
-        st.setBytes(2, Security.encryptData(String.valueOf(energyConsumed), newKey, newIv));
-        st.setBytes(3, Security.encryptData(String.valueOf(energyConsumedDaytime), newKey, newIv));
-        st.setBytes(4, Security.encryptData(String.valueOf(energyConsumedNight), newKey, newIv));
-        st.setBytes(5, Security.encryptData(String.valueOf(energyProduced), newKey, newIv));
-        st.setString(6, clientEmail);
-        st.execute();
-
-        return clientId;
-    }
-
-    public void reEncryptClientAppliancesEnergy(int clientId, SecretKey oldKey, SecretKey newKey)
-            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
-            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
 
-        PreparedStatement st, st2;
-        ResultSet rs;
-        float energyConsumed, energyConsumedDaytime, energyConsumedNight;
-        byte[] oldIv, newIv;
-        int id;
-
-        // decrypt data with old key
-        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_APPLIANCES_ENERGY);
-        st.setInt(1, clientId);
-        rs = st.executeQuery();
-
-        while (rs.next()) {
-            oldIv = rs.getBytes(1);
-            id = rs.getInt(2);
-            byte[] energyConsumedBytes = Security.decryptData(rs.getBytes(3), oldKey, oldIv);
-            byte[] energyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(4), oldKey, oldIv);
-            byte[] energyConsumedNightBytes = Security.decryptData(rs.getBytes(5), oldKey, oldIv);
-
-            energyConsumed = Float.parseFloat(new String(energyConsumedBytes));
-            energyConsumedDaytime = Float.parseFloat(new String(energyConsumedDaytimeBytes));
-            energyConsumedNight = Float.parseFloat(new String(energyConsumedNightBytes));
-
-            // encrypt data with new key
-            newIv = Security.generateRandom();
-            st2 = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_APPLIANCE_ENERGY);
-            st2.setBytes(1, newIv);
-            st2.setBytes(2, Security.encryptData(String.valueOf(energyConsumed), newKey, newIv));
-            st2.setBytes(3, Security.encryptData(String.valueOf(energyConsumedDaytime), newKey, newIv));
-            st2.setBytes(4, Security.encryptData(String.valueOf(energyConsumedNight), newKey, newIv));
-            st2.setInt(5, id);
-            st2.execute();
+        @Override
+        public byte[] newIv() throws NoSuchAlgorithmException {
+            return Security.generateRandom();
         }
 
-        rs.close();
-    }
-
-    public void reEncryptClientSolarPanelsEnergy(int clientId, SecretKey oldKey, SecretKey newKey)
-            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
-            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        @Override
+        public byte[] reEncrypt(byte[] value, byte[] oldIv, byte[] newIv, byte[] lastTemporaryKey)
+                throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+                NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            return Security.encryptData(Security.decryptData(value, oldKey(lastTemporaryKey), oldIv), newKey, newIv);
+        }
 
-        PreparedStatement st, st2;
-        ResultSet rs;
-        float energyProduced;
-        byte[] oldIv, newIv;
-        int id;
-
-        // decrypt data with old key
-        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_SOLAR_PANELS_ENERGY);
-        st.setInt(1, clientId);
-        rs = st.executeQuery();
-
-        while (rs.next()) {
-            oldIv = rs.getBytes(1);
-            id = rs.getInt(2);
-            byte[] energyProducedBytes = Security.decryptData(rs.getBytes(3), oldKey, oldIv);
-
-            energyProduced = Float.parseFloat(new String(energyProducedBytes));
-
-            // encrypt data with new key
-            newIv = Security.generateRandom();
-            st2 = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_SOLAR_PANEL_ENERGY);
-            st2.setBytes(1, newIv);
-            st2.setBytes(2, Security.encryptData(String.valueOf(energyProduced), newKey, newIv));
-            st2.setInt(3, id);
-            st2.execute();
+        @Override
+        public byte[] newTemporaryKey() throws InvalidKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException {
+            if (newKey.equals(masterKey)) {
+                return null; // back under the master key
+            }
+            return Security.wrapKey(keyPair.getPublic(), newKey);
         }
 
-        rs.close();
+        private SecretKey oldKey(byte[] lastTemporaryKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+            if (lastTemporaryKey == null) {
+                return masterKey;
+            }
+            // recover old temporary key if backoffice disconnected and did not send an acknowledgment message
+            if (oldKey == null || !Arrays.equals(lastTemporaryKey, this.lastTemporaryKey)) {
+                this.lastTemporaryKey = lastTemporaryKey;
+                this.oldKey = Security.unwrapKey(keyPair.getPrivate(), lastTemporaryKey);
+            }
+            return oldKey;
+        }
     }
 
+
     /*
     ------------------------------------------------------
     -------------- CLIENT DATA OBFUSCATION ---------------
     ------------------------------------------------------
      */
 
-    private String obfuscate(String text){
+    static String obfuscate(String text){
         int len = text.length();
         if (text == null || len <= 1) {
             return "***";
@@ -442,51 +330,126 @@ public class Webserver {
     }
 
 
+    // rows not yet backfilled have no obfuscated value
+    private static String obfuscatedOrHidden(String obfuscated) {
+        return obfuscated != null ? obfuscated : "***";
+    }
+
+    /**
+     * Fills the obfuscated values of appliances, solar panels and invoices stored before they were kept obfuscated.
+     * Returns the number of updated rows.
+     */
+    public int backfillObfuscatedColumns() throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // appliances and solar panels are encrypted with the pending temporary key of their client, if any
+        Obfuscation obfuscation = (record, iv, lastTemporaryKey) -> {
+            float[] values = RecordCodec.decrypt(energyKeyOf(lastTemporaryKey), iv, record);
+            String[] obfuscated = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                obfuscated[i] = obfuscate(Float.toString(values[i]));
+            }
+            return obfuscated;
+        };
+
+        return storage.devices().backfillObfuscatedValues(obfuscation) + storage.invoices().backfillObfuscatedValues(obfuscation);
+    }
+
+    /**
+     * Packs the energy values of clients, appliances, solar panels and invoices stored with one ciphertext per value
+     * into a single record. Returns the number of packed rows.
+     */
+    public int packEnergyRecords() throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // the record keeps the key and iv of the values, a pending temporary key stays valid
+        RecordPacking packing = (values, iv, lastTemporaryKey) -> {
+            SecretKey key = energyKeyOf(lastTemporaryKey);
+            return RecordCodec.encrypt(key, iv, RecordCodec.decryptLegacy(key, iv, values));
+        };
+
+        return storage.clients().packEnergyRecords(packing) + storage.devices().packEnergyRecords(packing)
+                + storage.invoices().packEnergyRecords(packing);
+    }
+
+    private SecretKey energyKeyOf(byte[] lastTemporaryKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        if (lastTemporaryKey == null) {
+            return energyPanelKey;
+        }
+        return Security.unwrapKey(keyPair.getPrivate(), lastTemporaryKey);
+    }
+
+    private SecretKey personalKeyOf(byte[] lastTemporaryKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        if (lastTemporaryKey == null) {
+            return personalInfoKey;
+        }
+        return Security.unwrapKey(keyPair.getPrivate(), lastTemporaryKey);
+    }
+
+
 /*
     ------------------------------------------------------
     ---------------- CLIENT SESSION TOKEN ----------------
     ------------------------------------------------------
      */
 
-    public String setClientSession(String email) throws NoSuchAlgorithmException, SQLException {
-        PreparedStatement st;
+    public String setClientSession(String email) throws NoSuchAlgorithmException, SQLException, ClientDoesNotExistException {
+        if (sessionTokens != null) {
+            return sessionTokens.issue(email); // nothing to store, the token is verified by its signature
+        }
 
         String token = Security.generateToken();
         String hashedToken = Security.hash(token);
 
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_TOKEN);
-        st.setString(1, hashedToken);
-        st.setString(2, email);
-        st.executeUpdate();
-        st.close();
+        long load = sessionCache.beginLoad();
+        storage.clients().updateToken(email, hashedToken);
 
+        sessionCache.put(email, hashedToken, load);
         return hashedToken;
     }
 
-    public void validateSession(String email, String hashedToken)
-            throws SQLException, ClientDoesNotExistException, InvalidSessionTokenException {
-        PreparedStatement st;
-        ResultSet rs;
+    /**
+     * Applies the signed session token revocations made by every webserver since the oldest token still valid.
+     * Tokens revoked by a logout on another webserver are accepted until then.
+     */
+    public void syncSessionRevocations() throws SQLException {
+        if (sessionTokens == null) {
+            return;
+        }
 
-        st = dbConnection.prepareStatement(READ_CLIENT_COUNT);
-        st.setString(1, email);
-        rs = st.executeQuery();
+        long after = System.currentTimeMillis() - sessionTokens.getTtlMillis();
+        for (Map.Entry<String, Long> revocation : storage.clients().readSessionRevocations(after).entrySet()) {
+            sessionTokens.revoke(revocation.getKey(), revocation.getValue());
+        }
+    }
 
-        if (rs.next() && rs.getInt(1) == 0){
-            throw new ClientDoesNotExistException(email);
+    /**
+     * Validates the session on the primary database, so that a client that has just registered or logged in
+     * is never rejected by a lagging replica. The session is usually cached.
+     */
+    public void validateSession(String email, String hashedToken)
+            throws SQLException, ClientDoesNotExistException, InvalidSessionTokenException {
+        if (sessionTokens != null) {
+            if (!sessionTokens.verify(email, hashedToken))
+                throw new InvalidSessionTokenException();
+            return;
         }
-        st.close();
 
-        st = dbConnection.prepareStatement(READ_CLIENT_TOKEN);
-        st.setString(1, email);
-        rs = st.executeQuery();
+        if (sessionCache.isValid(email, hashedToken)) {
+            return;
+        }
 
-        if (rs.next()){
-            String dbHashedToken = rs.getString(1);
-            if (!dbHashedToken.equals(hashedToken))
-                throw new InvalidSessionTokenException();
+        // a missing client means it does not exist, so a single lookup is enough
+        long load = sessionCache.beginLoad();
+        String storedHashedToken;
+        try {
+            storedHashedToken = storage.clients().readToken(email);
+        } catch (ClientDoesNotExistException e) {
+            sessionCache.invalidate(email);
+            throw e;
         }
-        st.close();
+
+        sessionCache.put(email, storedHashedToken, load);
+        if (!storedHashedToken.equals(hashedToken))
+            throw new InvalidSessionTokenException();
     }
 
     /*
@@ -497,91 +460,41 @@ public class Webserver {
 
     public void register(String name, String email, String password, String address, String iban, String plan)
             throws SQLException, ClientAlreadyExistsException, NoSuchAlgorithmException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-        PreparedStatement st;
-        ResultSet rs;
-
-        // check if email is already registered
-        st = dbConnection.prepareStatement(READ_CLIENT_COUNT);
-        st.setString(1, email);
-
-        rs = st.executeQuery();
-
-        if (rs.next() && rs.getInt(1) != 0){
-            st.close();
-            throw new ClientAlreadyExistsException(email);
-        }
-
-        st.close();
-
         byte[] salt = Security.generateRandom();
         String hashedPassword = Security.hashWithSalt(password, salt);
 
         byte[] ivPersonalData = Security.generateRandom();
         byte[] ivEnergyData = Security.generateRandom();
 
-        st = dbConnection.prepareStatement(CREATE_CLIENT);
-        st.setString(1, name);
-        st.setString(2, email);
-        st.setString(3, hashedPassword);
-        st.setBytes(4, salt);
-        st.setBytes(5, ivPersonalData);
-        st.setBytes(6, ivEnergyData);
-        st.setString(7, plan);
-
-        st.setBytes(8, Security.encryptData(address, personalInfoKey, ivPersonalData));
-        st.setBytes(9, Security.encryptData(iban, personalInfoKey, ivPersonalData));
-
-        st.setBytes(10, Security.encryptData(Float.toString(0), energyPanelKey, ivEnergyData));
-        st.setBytes(11, Security.encryptData(Float.toString(0), energyPanelKey, ivEnergyData));
-        st.setBytes(12, Security.encryptData(Float.toString(0), energyPanelKey, ivEnergyData));
-        st.setBytes(13, Security.encryptData(Float.toString(0), energyPanelKey, ivEnergyData));
-
-        // obfuscated info
-        st.setString(14, obfuscate(address));
-        st.setString(15, obfuscate(iban));
-
-        float noval = 0;
-        st.setString(16, obfuscate(Float.toString(noval)));
-        st.setString(17, obfuscate(Float.toString(noval)));
-        st.setString(18, obfuscate(Float.toString(noval)));
-        st.setString(19, obfuscate(Float.toString(noval)));
-
-        st.executeUpdate();
-        st.close();
+        // the email is unique, there is no need to check if it is already registered
+        storage.clients().create(name, email, hashedPassword, salt, PlanType.valueOf(plan),
+                ivPersonalData,
+                Security.encryptData(address, personalInfoKey, ivPersonalData),
+                Security.encryptData(iban, personalInfoKey, ivPersonalData),
+                obfuscate(address), obfuscate(iban),
+                ivEnergyData,
+                RecordCodec.encrypt(energyPanelKey, ivEnergyData, 0, 0, 0, 0),
+                obfuscate(Float.toString(0)));
     }
 
     public ArrayList<String> login(String email, String password)
             throws ClientDoesNotExistException, SQLException,
             WrongPasswordException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-        String name;
         ArrayList<String> response = new ArrayList<>();
 
-        st = dbConnection.prepareStatement(READ_CLIENT_NAME_PASSWORD_SALT);
-        st.setString(1, email);
-
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            name = rs.getString(1);
-            String dbHashedPassword = rs.getString(2);
-            byte[] salt = rs.getBytes(3);
-            String hashedPassword = Security.hashWithSalt(password, salt);
-            if (!hashedPassword.equals(dbHashedPassword)) {
-                st.close();
-                throw new WrongPasswordException();
-            }
+        ClientCredentials credentials = storage.clients().readCredentials(email);
+        String hashedPassword = Security.hashWithSalt(password, credentials.getSalt());
+        if (!hashedPassword.equals(credentials.getHashedPassword())) {
+            throw new WrongPasswordException();
         }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(email);
+
+        if (sessionTokens != null) {
+            // a logout on another webserver not seen yet must not revoke the new token once it is
+            sessionTokens.revoke(email, credentials.getSessionsRevokedBefore());
         }
-        st.close();
 
         String hashedToken = setClientSession(email);
-        response.add(name);
+        response.add(credentials.getName());
         response.add(hashedToken);
 
         return response;
@@ -589,43 +502,24 @@ public class Webserver {
 
     public void logout(String email, String hashedToken)
             throws SQLException, ClientDoesNotExistException, InvalidSessionTokenException {
-        PreparedStatement st;
-
         validateSession(email, hashedToken);
 
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_TOKEN);
-        st.setString(1, "");
-        st.setString(2, email);
+        if (sessionTokens != null) {
+            // stored for the other webservers, which read it on their next sync
+            storage.clients().revokeSessions(email, sessionTokens.revoke(email));
+            return;
+        }
 
-        st.executeUpdate();
+        storage.clients().updateToken(email, "");
+        sessionCache.invalidate(email);
     }
 
     public void addApplicance(String email, String applianceName, String applianceBrand, String hashedToken)
             throws SQLException, InvalidSessionTokenException, ClientDoesNotExistException, ApplianceAlreadyExistsException,
             CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException,
             InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-
-        PreparedStatement st;
-        ResultSet rs;
-
         validateSession(email, hashedToken);
 
-        int client_id = getClientId(email);
-
-        // check if appliance is already registered
-        st = dbConnection.prepareStatement(READ_APPLIANCE_COUNT);
-        st.setInt(1, client_id);
-        st.setString(2, applianceName);
-        st.setString(3, applianceBrand);
-
-        rs = st.executeQuery();
-
-        if (rs.next() && rs.getInt(1) != 0){
-            throw new ApplianceAlreadyExistsException(applianceName, applianceBrand);
-        }
-
-        st.close();
-
         // generate random energy consumed
         int MAX_ENERGY_CONSUMPTION = 100;
         float energyConsumedDaytime = (float)(Math.random()* MAX_ENERGY_CONSUMPTION);
@@ -638,264 +532,163 @@ public class Webserver {
         // of a department that did not send an acknowledgment message
         discardTemporaryKeyIfExists(email);
 
-        st = dbConnection.prepareStatement(CREATE_APPLIANCE);
-        st.setInt(1, getClientId(email));
-        st.setString(2, applianceName);
-        st.setString(3, applianceBrand);
-        st.setBytes(4, iv);
-
-        st.setBytes(5, Security.encryptData(Float.toString(energyConsumed), energyPanelKey, iv));
-        st.setBytes(6, Security.encryptData(Float.toString(energyConsumedDaytime), energyPanelKey, iv));
-        st.setBytes(7, Security.encryptData(Float.toString(energyConsumedNight), energyPanelKey, iv));
+        // (client, name, brand) is unique, there is no need to check if the appliance is already registered
+        // encrypted with the key of the compartment when the device is inserted, a temporary one may have been requested meanwhile
+        storage.devices().addAppliance(email, applianceName, applianceBrand, iv,
+                (deviceIv, lastTemporaryKey) -> RecordCodec.encrypt(energyKeyOf(lastTemporaryKey), deviceIv,
+                        energyConsumed, energyConsumedDaytime, energyConsumedNight),
+                obfuscate(Float.toString(energyConsumed)),
+                obfuscate(Float.toString(energyConsumedDaytime)),
+                obfuscate(Float.toString(energyConsumedNight)));
 
-        st.executeUpdate();
-        st.close();
-
-        updateEnergyConsumption(email, energyConsumed, energyConsumedDaytime, energyConsumedNight);
+        // the client totals are written later, together with other additions
+        if (energyAccumulator.add(email, EnergyDelta.consumption(energyConsumed, energyConsumedDaytime, energyConsumedNight))) {
+            flushEnergyData();
+        }
     }
 
     public void addSolarPanel(String email, String solarPanelName, String solarPanelBrand, String hashedToken)
             throws SQLException, InvalidSessionTokenException, ClientDoesNotExistException, SolarPanelAlreadyExistsException,
             CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException,
             InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-
-        PreparedStatement st;
-        ResultSet rs;
-
         validateSession(email, hashedToken);
 
-        int client_id = getClientId(email);
-
-        // check if solar panel is already registered
-        st = dbConnection.prepareStatement(READ_SOLAR_PANEL_COUNT);
-        st.setInt(1, client_id);
-        st.setString(2, solarPanelName);
-        st.setString(3, solarPanelBrand);
-
-        rs = st.executeQuery();
-
-        if (rs.next() && rs.getInt(1) != 0){
-            throw new SolarPanelAlreadyExistsException(solarPanelName, solarPanelBrand);
-        }
-
         // generate random energy produced
         int MAX_ENERGY_PRODUCTION = 100;
         float energyProduced = (float)(Math.random()* MAX_ENERGY_PRODUCTION);
 
         byte[] iv = Security.generateRandom();
-        
+
         // make sure there is no pending temporary key to discard due to the failure
         // of a department that did not send an acknowledgment message
         discardTemporaryKeyIfExists(email);
 
-        // add solar panel
-        st = dbConnection.prepareStatement(CREATE_SOLAR_PANEL);
-        st.setInt(1, client_id);
-        st.setString(2, solarPanelName);
-        st.setString(3, solarPanelBrand);
-        st.setBytes(4, iv);
+        // (client, name, brand) is unique, there is no need to check if the solar panel is already registered
+        // encrypted with the key of the compartment when the device is inserted, a temporary one may have been requested meanwhile
+        storage.devices().addSolarPanel(email, solarPanelName, solarPanelBrand, iv,
+                (deviceIv, lastTemporaryKey) -> RecordCodec.encrypt(energyKeyOf(lastTemporaryKey), deviceIv, energyProduced),
+                obfuscate(Float.toString(energyProduced)));
 
-        st.setBytes(5, Security.encryptData(Float.toString(energyProduced), energyPanelKey, iv));
-
-        st.executeUpdate();
-        st.close();
-
-        updateEnergyProduction(email, energyProduced);
+        // the client totals are written later, together with other additions
+        if (energyAccumulator.add(email, EnergyDelta.production(energyProduced))) {
+            flushEnergyData();
+        }
     }
 
     public PersonalInfo checkPersonalInfo(String clientEmail, String hashedToken) throws ClientDoesNotExistException,
             SQLException, InvalidSessionTokenException, CompartmentKeyException, IllegalBlockSizeException,
             NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-
-        PersonalInfo personalInfo;
-        PreparedStatement st;
-        ResultSet rs;
-
         validateSession(clientEmail, hashedToken);
-
-        // get personal info
-        st = dbConnection.prepareStatement(READ_CLIENT_PERSONAL_INFO);
-        st.setString(1, clientEmail);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            String name = rs.getString(1);
-            String email = rs.getString(2);
-            String obf_address = rs.getString(3);
-            String obf_iban = rs.getString(4);
-            String plan = rs.getString(5);
-
-            personalInfo = PersonalInfo.newBuilder()
-                    .setName(name)
-                    .setEmail(email)
-                    .setAddress(obf_address)
-                    .setIBAN(obf_iban)
-                    .setPlan(PlanType.valueOf(plan))
-                    .build();
-        }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(clientEmail);
-        }
-
-        st.close();
-
-        return personalInfo;
+        return storage.clients().readObfuscatedPersonalInfo(clientEmail);
     }
 
-    public void discardTemporaryKeyIfExists(String email) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        PreparedStatement st;
-        ResultSet rs;
-        byte[] temporaryKey = null;
-
-        st = dbConnection.prepareStatement(READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY);
-        st.setString(1, email);
-        rs = st.executeQuery();
-
-        while(rs.next()) {
-            temporaryKey = rs.getBytes(1);
-        }
-
-        if (temporaryKey != null) { // discard key and re-encrypt data with master key
+    public boolean discardTemporaryKeyIfExists(String email) throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        if (getClientMetadata(email).hasPendingTemporaryEnergyKey()) { // discard key and re-encrypt data with master key
             discardTemporaryKey(email, CompartmentType.ENERGY_DATA);
+            return true;
         }
+        return false;
     }
 
     public EnergyPanel checkEnergyPanel(String email, String hashedToken)
             throws ClientDoesNotExistException, SQLException, InvalidSessionTokenException,
             CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException,
             NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-
-        EnergyPanel energyPanel;
-        List<Appliance> appliances;
-        List<SolarPanel> solarPanels;
-        PreparedStatement st;
-        ResultSet rs;
-
         validateSession(email, hashedToken);
-        int client_id = getClientId(email);
-
-        appliances = getAppliances(client_id);
-        solarPanels = getSolarPanels(client_id);
 
-        // make sure there is no pending temporary key to discard due to the failure
-        // of a department that did not send an acknowledgment message
+        // discard the pending temporary key of a department that did not send an acknowledgment message
         discardTemporaryKeyIfExists(email);
 
-        byte[] iv = getIv(email, CompartmentType.ENERGY_DATA);
-
-        st = dbConnection.prepareStatement(READ_CLIENT_ENERGY_PANEL);
-        st.setString(1, email);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            byte[] energyConsumed = Security.decryptData(rs.getBytes(1), energyPanelKey, iv);
-            byte[] energyConsumedDaytime = Security.decryptData(rs.getBytes(2), energyPanelKey, iv);
-            byte[] energyConsumedNight = Security.decryptData(rs.getBytes(3), energyPanelKey, iv);
-            byte[] energyProduced = Security.decryptData(rs.getBytes(4), energyPanelKey, iv);
-
-            String obfEnergyConsumed = obfuscate(new String(energyConsumed));
-            String obfEnergyConsumedDaytime = obfuscate(new String(energyConsumedDaytime));
-            String obfEnergyConsumedNight = obfuscate(new String(energyConsumedNight));
-            String obfEnergyProduced = obfuscate(new String(energyProduced));
-
-            energyPanel = EnergyPanel.newBuilder()
-                    .setEnergyConsumed(obfEnergyConsumed)
-                    .setEnergyConsumedDaytime(obfEnergyConsumedDaytime)
-                    .setEnergyConsumedNight(obfEnergyConsumedNight)
-                    .setEnergyProduced(obfEnergyProduced)
-                    .addAllAppliances(appliances)
-                    .addAllSolarPanels(solarPanels)
-                    .build();
-        }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(email);
-        }
+        // the totals include the energy of the devices added since the last flush
+        flushEnergyData(email);
+        EnergyPanel energyPanel = storage.devices().readObfuscatedEnergyPanel(email);
 
-        st.close();
-
-        return energyPanel;
+        EnergyDelta pending = energyAccumulator.get(email);
+        if (pending == null) {
+            return energyPanel;
+        }
+        // could not be written yet, added to the stored totals instead
+        EnergyData energyData = readEnergyData(email);
+        return energyPanel.toBuilder()
+                .setEnergyConsumed(obfuscate(Float.toString(energyData.energyConsumed + pending.getEnergyConsumed())))
+                .setEnergyConsumedDaytime(obfuscate(Float.toString(energyData.energyConsumedDaytime + pending.getEnergyConsumedDaytime())))
+                .setEnergyConsumedNight(obfuscate(Float.toString(energyData.energyConsumedNight + pending.getEnergyConsumedNight())))
+                .setEnergyProduced(obfuscate(Float.toString(energyData.energyProduced + pending.getEnergyProduced())))
+                .build();
     }
 
     public List<Invoice> checkInvoices(String email, String hashedToken)
             throws SQLException, InvalidSessionTokenException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        PreparedStatement st;
-        ResultSet rs;
+        validateSession(email, hashedToken);
+
         List<Invoice> invoices = new ArrayList<>();
+        for (InvoiceRecord invoice : storage.invoices().readObfuscated(email, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            invoices.add(toInvoice(invoice));
+        }
+        return invoices;
+    }
 
+    /**
+     * Returns up to pageSize invoices of the client issued after the given cursor, oldest first.
+     */
+    public InvoicePage checkInvoicesPage(String email, String hashedToken, InvoiceCursor after, int pageSize)
+            throws SQLException, InvalidSessionTokenException, ClientDoesNotExistException {
         validateSession(email, hashedToken);
-        int client_id = getClientId(email);
-
-        st = dbConnection.prepareStatement(READ_INVOICES);
-        st.setInt(1, client_id);
-        rs = st.executeQuery();
-
-        while (rs.next()) {
-            byte[] iv = rs.getBytes(1);
-            int year = rs.getInt(2);
-            int month = rs.getInt(3);
-            int taxes = rs.getInt(4);
-
-            byte[] paymentAmount = Security.decryptData(rs.getBytes(5), energyPanelKey, iv);
-            byte[] energyConsumed = Security.decryptData(rs.getBytes(6), energyPanelKey, iv);
-            byte[] energyConsumedDaytime = Security.decryptData(rs.getBytes(7), energyPanelKey, iv);
-            byte[] energyConsumedNight = Security.decryptData(rs.getBytes(8), energyPanelKey, iv);
-
-            String obfPaymentAmount = obfuscate(new String(paymentAmount));
-            String obfEnergyConsumed = obfuscate(new String(energyConsumed));
-            String obfEnergyConsumedDaytime = obfuscate(new String(energyConsumedDaytime));
-            String obfEnergyConsumedNight = obfuscate(new String(energyConsumedNight));
-
-            String plan = rs.getString(9);
-
-            Invoice invoice = Invoice.newBuilder()
-                    .setYear(year)
-                    .setMonth(months.get(month))
-                    .setPaymentAmount(obfPaymentAmount)
-                    .setEnergyConsumed(obfEnergyConsumed)
-                    .setEnergyConsumedDaytime(obfEnergyConsumedDaytime)
-                    .setEnergyConsumedNight(obfEnergyConsumedNight)
-                    .setPlan(PlanType.valueOf(plan))
-                    .setTaxes(taxes)
-                    .build();
-            invoices.add(invoice);
+
+        InvoicePage.Builder page = InvoicePage.newBuilder();
+
+        if (pageSize <= 0) {
+            pageSize = DEFAULT_INVOICE_PAGE_SIZE;
         }
+        pageSize = Math.min(pageSize, MAX_INVOICE_PAGE_SIZE);
 
-        st.close();
-        return invoices;
+        int afterYear = after != null ? after.getYear() : Integer.MIN_VALUE;
+        int afterMonth = after != null ? after.getMonth() : Integer.MIN_VALUE;
+
+        // one more invoice tells whether this is the last page
+        List<InvoiceRecord> invoices = storage.invoices().readObfuscated(email, afterYear, afterMonth, pageSize + 1);
+
+        for (InvoiceRecord invoice : invoices.subList(0, Math.min(pageSize, invoices.size()))) {
+            page.addInvoices(toInvoice(invoice));
+            page.setNext(InvoiceCursor.newBuilder().setYear(invoice.getYear()).setMonth(invoice.getMonth()));
+        }
+        page.setLast(invoices.size() <= pageSize);
+
+        return page.build();
+    }
+
+    private Invoice toInvoice(InvoiceRecord invoice) {
+        return Invoice.newBuilder()
+                .setYear(invoice.getYear())
+                .setMonth(months.get(invoice.getMonth()))
+                .setPaymentAmount(obfuscatedOrHidden(invoice.getPaymentAmount()))
+                .setEnergyConsumed(obfuscatedOrHidden(invoice.getEnergyConsumed()))
+                .setEnergyConsumedDaytime(obfuscatedOrHidden(invoice.getEnergyConsumedDaytime()))
+                .setEnergyConsumedNight(obfuscatedOrHidden(invoice.getEnergyConsumedNight()))
+                .setPlan(invoice.getPlan())
+                .setTaxes(invoice.getTaxes())
+                .build();
     }
 
     public void updateAddress(String email, String address, String hashedToken)
             throws SQLException, ClientDoesNotExistException, InvalidSessionTokenException, CompartmentKeyException,
             IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException,
             BadPaddingException {
-
-        PreparedStatement st;
-
         validateSession(email, hashedToken);
 
-        byte[] iv = getIv(email, CompartmentType.PERSONAL_DATA);
-
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_ADDRESS);
-        st.setBytes(1, Security.encryptData(address, personalInfoKey, iv));
-        st.setString(2, obfuscate(address));
-        st.setString(3, email);
-        st.executeUpdate();
-        st.close();
+        // encrypted with the iv and key of the compartment when the address is stored, another webserver may have
+        // handed a temporary key to a department meanwhile
+        storage.clients().updateAddress(email,
+                (iv, lastTemporaryKey) -> Security.encryptData(address, personalKeyOf(lastTemporaryKey), iv),
+                obfuscate(address));
     }
 
     public void updatePlan(String email, String plan, String hashedToken)
             throws SQLException, ClientDoesNotExistException, InvalidSessionTokenException, CompartmentKeyException,
             IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
-
         validateSession(email, hashedToken);
 
-        PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_PLAN);
-        st.setString(1, plan);
-        st.setString(2, email);
-        st.executeUpdate();
-        st.close();
+        storage.clients().updatePlan(email, PlanType.valueOf(plan));
     }
 
     /*
@@ -904,201 +697,151 @@ public class Webserver {
     ------------------------------------------------------
      */
 
-    public byte[] getIv(String email, CompartmentType compartment) throws SQLException, ClientDoesNotExistException {
-        PreparedStatement st;
-        ResultSet rs;
-        byte[] iv;
-
-        if (compartment.equals(CompartmentType.PERSONAL_DATA)) {
-            st = dbConnection.prepareStatement(READ_CLIENT_IV_PERSONAL_DATA);
-        }
-        else {
-            st = dbConnection.prepareStatement(READ_CLIENT_IV_ENERGY_DATA);
-        }
-
-        st.setString(1, email);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            iv = rs.getBytes(1);
-        }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(email);
-        }
-
-        st.close();
-        return iv;
-    }
-
     public int getClientId(String email) throws SQLException, ClientDoesNotExistException {
-        PreparedStatement st;
-        ResultSet rs;
-        int client_id;
-
-        // get client id
-        st = dbConnection.prepareStatement(READ_CLIENT_ID);
-        st.setString(1, email);
-        rs = st.executeQuery();
+        return getClientMetadata(email).getId();
+    }
 
-        if (rs.next()) {
-            client_id = rs.getInt(1);
+    public ClientMetadata getClientMetadata(String email) throws SQLException, ClientDoesNotExistException {
+        ClientMetadata metadata = clientMetadataCache.get(email);
+        if (metadata != null) {
+            return metadata;
         }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(email);
-        }
-        st.close();
 
-        return client_id;
+        long load = clientMetadataCache.beginLoad();
+        metadata = storage.clients().readMetadata(email);
+        clientMetadataCache.put(email, metadata, load);
+        return metadata;
     }
 
-    public void updateEnergyConsumption(String email, float energyConsumed, float energyConsumedDaytime, float energyConsumedNight)
-            throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-        float currEnergyConsumed, currEnergyConsumedDaytime, currEnergyConsumedNight;
-
-        byte[] iv = getIv(email, CompartmentType.ENERGY_DATA);
-
-        // get current energy consumption
-        st = dbConnection.prepareStatement(READ_CLIENT_ENERGY_CONSUMPTION);
-        st.setString(1, email);
-
-        rs = st.executeQuery();
-        if (rs.next()){
-            byte[] currEnergyConsumedBytes = Security.decryptData(rs.getBytes(1), energyPanelKey, iv);
-            byte[] currEnergyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(2), energyPanelKey, iv);
-            byte[] currEnergyConsumedNightBytes = Security.decryptData(rs.getBytes(3), energyPanelKey, iv);
-
-            currEnergyConsumed = Float.parseFloat(new String(currEnergyConsumedBytes));
-            currEnergyConsumedDaytime = Float.parseFloat(new String(currEnergyConsumedDaytimeBytes));
-            currEnergyConsumedNight = Float.parseFloat(new String(currEnergyConsumedNightBytes));
-        }
-        else {
-            throw new ClientDoesNotExistException(email);
+    /**
+     * Loads the metadata of up to limit clients with an open session, so that their first requests after a
+     * restart do not all go to the database. Returns how many clients were loaded.
+     */
+    public int warmUpClientMetadataCache(int limit) throws SQLException {
+        if (limit <= 0) {
+            return 0;
         }
-        st.close();
-
-        energyConsumed += currEnergyConsumed;
-        energyConsumedDaytime += currEnergyConsumedDaytime;
-        energyConsumedNight += currEnergyConsumedNight;
 
-        // update energy consumption
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_ENERGY_CONSUMPTION);
-        st.setBytes(1, Security.encryptData(String.valueOf(energyConsumed), energyPanelKey, iv));
-        st.setBytes(2, Security.encryptData(String.valueOf(energyConsumedDaytime), energyPanelKey, iv));
-        st.setBytes(3, Security.encryptData(String.valueOf(energyConsumedNight), energyPanelKey, iv));
-
-        st.setString(4, obfuscate(Float.toString(energyConsumed)));
-        st.setString(5, obfuscate(Float.toString(energyConsumedDaytime)));
-        st.setString(6, obfuscate(Float.toString(energyConsumedNight)));
-
-        st.setString(7, email);
-        st.executeUpdate();
-        st.close();
+        long load = clientMetadataCache.beginLoad();
+        Map<String, ClientMetadata> loaded = storage.clients().readMetadataOfOpenSessions(limit);
+        for (Map.Entry<String, ClientMetadata> entry : loaded.entrySet()) {
+            clientMetadataCache.put(entry.getKey(), entry.getValue(), load);
+        }
+        return loaded.size();
     }
 
-    public void updateEnergyProduction(String email, float energyProduced) throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+    /**
+     * Reads the client energy data and the version it was read at.
+     */
+    private EnergyData readEnergyData(String email) throws SQLException, ClientDoesNotExistException,
+            InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException,
+            BadPaddingException, InvalidKeyException {
+        StoredEnergyData stored = storage.clients().readEnergyData(email);
 
-        PreparedStatement st;
-        ResultSet rs;
-        float currEnergyProduced;
+        byte[] iv = stored.getIv();
+        SecretKey key = energyKeyOf(stored.getLastTemporaryKey()); // a temporary key may have been requested meanwhile
 
-        byte[] iv = getIv(email, CompartmentType.ENERGY_DATA);
+        float[] energy = RecordCodec.decrypt(key, iv, stored.getEnergy());
+        return new EnergyData(stored.getVersion(), key, iv, energy[0], energy[1], energy[2], energy[3]);
+    }
 
-        // get current energy consumption
-        st = dbConnection.prepareStatement(READ_CLIENT_ENERGY_PRODUCTION);
-        st.setString(1, email);
-        rs = st.executeQuery();
-        if (rs.next()){
-            byte[] currEnergyProducedBytes = Security.decryptData(rs.getBytes(1), energyPanelKey, iv);
-            currEnergyProduced = Float.parseFloat(new String(currEnergyProducedBytes));
-        }
-        else {
-            st.close();
-            throw new ClientDoesNotExistException(email);
+    /**
+     * Writes the energy accumulated for each client since the last flush, one update per client.
+     * Deltas that could not be written are kept for the next flush. Returns the number of updated clients.
+     */
+    public synchronized int flushEnergyData() {
+        Map<String, EnergyDelta> deltas = energyAccumulator.drain();
+        int flushed = 0;
+
+        for (Map.Entry<String, EnergyDelta> entry : deltas.entrySet()) {
+            try {
+                addEnergyData(entry.getKey(), entry.getValue());
+                flushed++;
+            } catch (ClientDoesNotExistException e) {
+                System.out.println("Discarding energy data of removed client: " + e.getMessage());
+            } catch (Exception e) {
+                System.out.println("Could not write energy data of " + entry.getKey() + ": " + e.getMessage());
+                energyAccumulator.restore(entry.getKey(), entry.getValue());
+            }
         }
-        st.close();
-
-        energyProduced += currEnergyProduced;
-
-        // update energy consumption
-        st = dbConnection.prepareStatement(UPDATE_CLIENT_ENERGY_PRODUCTION);
-        st.setBytes(1, Security.encryptData(String.valueOf(energyProduced), energyPanelKey, iv));
-        st.setString(2, obfuscate(Float.toString(energyProduced)));
-        st.setString(3, email);
-        st.executeUpdate();
-        st.close();
+        return flushed;
     }
 
-    public List<Appliance> getAppliances(int clientId) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-        List<Appliance> appliances = new ArrayList<>();
-
-        st = dbConnection.prepareStatement(READ_APPLIANCES);
-        st.setInt(1, clientId);
-        rs = st.executeQuery();
-
-        while (rs.next()) {
-            byte[] iv = rs.getBytes(1);
-            String name = rs.getString(2);
-            String brand = rs.getString(3);
-
-            byte[] energyConsumed = Security.decryptData(rs.getBytes(4), energyPanelKey, iv);
-            byte[] energyConsumedDaytime = Security.decryptData(rs.getBytes(5), energyPanelKey, iv);
-            byte[] energyConsumedNight = Security.decryptData(rs.getBytes(6), energyPanelKey, iv);
-
-            String obfEnergyConsumed = obfuscate(new String(energyConsumed));
-            String obfEnergyConsumedDaytime = obfuscate(new String(energyConsumedDaytime));
-            String obfEnergyConsumedNight = obfuscate(new String(energyConsumedNight));
-
-            Appliance appliance = Appliance.newBuilder()
-                    .setName(name)
-                    .setBrand(brand)
-                    .setEnergyConsumed(obfEnergyConsumed)
-                    .setEnergyConsumedDaytime(obfEnergyConsumedDaytime)
-                    .setEnergyConsumedNight(obfEnergyConsumedNight)
-                    .build();
-            appliances.add(appliance);
+    /**
+     * Writes the energy accumulated for one client, e.g. before its totals are read.
+     * Returns false if it could not be written and is still pending.
+     */
+    public boolean flushEnergyData(String email) {
+        EnergyDelta delta = energyAccumulator.take(email);
+        if (delta == null) {
+            return true;
+        }
+        try {
+            addEnergyData(email, delta);
+            return true;
+        } catch (ClientDoesNotExistException e) {
+            System.out.println("Discarding energy data of removed client: " + e.getMessage());
+            return true;
+        } catch (Exception e) {
+            System.out.println("Could not write energy data of " + email + ": " + e.getMessage());
+            energyAccumulator.restore(email, delta);
+            return false;
         }
-        st.close();
-
-        return appliances;
     }
 
-    public List<SolarPanel> getSolarPanels(int clientId) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-        List<SolarPanel> solarPanels = new ArrayList<>();
-
-        st = dbConnection.prepareStatement(READ_SOLAR_PANELS);
-        st.setInt(1, clientId);
-        rs = st.executeQuery();
+    /**
+     * Adds to the client energy totals with a compare-and-set on the version they were read at,
+     * so that nothing is locked during the crypto work.
+     */
+    private void addEnergyData(String email, EnergyDelta delta) throws SQLException, ClientDoesNotExistException,
+            ConcurrentUpdateException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
 
+        for (int attempt = 0; attempt < ENERGY_UPDATE_ATTEMPTS; attempt++) {
+            EnergyData energyData = readEnergyData(email);
 
-        while (rs.next()) {
-            byte[] iv = rs.getBytes(1);
-            String name = rs.getString(2);
-            String brand = rs.getString(3);
+            float energyConsumed = energyData.energyConsumed + delta.getEnergyConsumed();
+            float energyConsumedDaytime = energyData.energyConsumedDaytime + delta.getEnergyConsumedDaytime();
+            float energyConsumedNight = energyData.energyConsumedNight + delta.getEnergyConsumedNight();
+            float energyProduced = energyData.energyProduced + delta.getEnergyProduced();
 
-            byte[] energyProduced = Security.decryptData(rs.getBytes(4), energyPanelKey, iv);
-            String obfEnergyProduced = obfuscate(new String(energyProduced));
+            boolean updated = storage.clients().compareAndSetEnergyData(email, energyData.version,
+                    RecordCodec.encrypt(energyData.key, energyData.iv, energyConsumed, energyConsumedDaytime,
+                            energyConsumedNight, energyProduced),
+                    obfuscate(Float.toString(energyConsumed)),
+                    obfuscate(Float.toString(energyConsumedDaytime)),
+                    obfuscate(Float.toString(energyConsumedNight)),
+                    obfuscate(Float.toString(energyProduced)));
 
-            SolarPanel solarPanel = SolarPanel.newBuilder()
-                    .setName(name)
-                    .setBrand(brand)
-                    .setEnergyProduced(obfEnergyProduced)
-                    .build();
-            solarPanels.add(solarPanel);
+            if (updated) {
+                return;
+            }
+            // energy data changed since it was read
         }
-        st.close();
-
-        return solarPanels;
+        throw new ConcurrentUpdateException(email);
     }
 
+    /**
+     * Decrypted energy data of a client as seen at a given version.
+     */
+    private static class EnergyData {
+        private final int version;
+        private final SecretKey key;
+        private final byte[] iv;
+        private final float energyConsumed;
+        private final float energyConsumedDaytime;
+        private final float energyConsumedNight;
+        private final float energyProduced;
+
+        EnergyData(int version, SecretKey key, byte[] iv, float energyConsumed, float energyConsumedDaytime,
+                   float energyConsumedNight, float energyProduced) {
+            this.version = version;
+            this.key = key;
+            this.iv = iv;
+            this.energyConsumed = energyConsumed;
+            this.energyConsumedDaytime = energyConsumedDaytime;
+            this.energyConsumedNight = energyConsumedNight;
+            this.energyProduced = energyProduced;
+        }
+    }
 }
\ No newline at end of file
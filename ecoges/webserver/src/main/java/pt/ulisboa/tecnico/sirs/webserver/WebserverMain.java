@@ -7,14 +7,23 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.sql.*;
+import java.time.YearMonth;
 import java.util.*;
 
 import io.grpc.Server;
 import io.grpc.netty.GrpcSslContexts;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.MetricsEndpoint;
+import pt.ulisboa.tecnico.sirs.database.QueryMetrics;
+import pt.ulisboa.tecnico.sirs.database.SchemaMigrator;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.security.RecordCodec;
 import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.security.SessionTokens;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.webserver.storage.*;
 
 import javax.crypto.*;
 
@@ -41,9 +50,31 @@ public class WebserverMain {
 
 	private static SecretKey energyPanelKey;
 
+	// Mode new data is encrypted with, cbc unless -Decoges.data.cipher=gcm (data encrypted with either mode is always read)
+	private static final String DATA_CIPHER_MODE = System.getProperty("ecoges.data.cipher", "cbc");
+
+	// Sessions, stored in the database unless -Decoges.session.tokens=signed (token lifetime set with -Decoges.session.tokens.ttl)
+
+	private static final boolean SIGNED_SESSION_TOKENS = "signed".equals(System.getProperty("ecoges.session.tokens"));
+	private static final long SESSION_TOKENS_TTL_MILLIS = Long.getLong("ecoges.session.tokens.ttl", SessionTokens.DEFAULT_TTL_MILLIS);
+	// Logouts on other webservers are applied every -Decoges.session.tokens.sync milliseconds
+	private static final long SESSION_TOKENS_SYNC_MILLIS = Long.getLong("ecoges.session.tokens.sync", 5000);
+
+	// Energy totals of clients are written in batches
+	private static final long ENERGY_FLUSH_INTERVAL_MILLIS = Long.getLong("ecoges.energy.flush.interval", 1000);
+
+	private static SecretKey sessionKey;
+
+	// Storage, on MySQL unless -Decoges.storage=memory (data is lost on exit and not seen by the backoffice)
+
+	private static final boolean IN_MEMORY_STORAGE = "memory".equals(System.getProperty("ecoges.storage"));
+
+	private static Storage storage = null;
+
 	// Database
 
-	private static Connection dbConnection = null;
+	private static ConnectionPool dbPool = null;
+	private static ShardRouter shards = null;
 
 	private static final String DATABASE = "clientdb";
 	private static final String DATABASE_USER = "ecoges";
@@ -53,6 +84,27 @@ public class WebserverMain {
 
 	private static String dbUrl = "jdbc:mysql://localhost:3306/clientdb"; // default value
 
+	// Connection pool sizing, can be tuned with -Decoges.db.pool.min, -Decoges.db.pool.max and -Decoges.db.pool.timeout
+	private static final int DATABASE_POOL_MIN_CONNECTIONS = Integer.getInteger("ecoges.db.pool.min", 2);
+	private static final int DATABASE_POOL_MAX_CONNECTIONS = Integer.getInteger("ecoges.db.pool.max", 16);
+	private static final long DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS = Long.getLong("ecoges.db.pool.timeout", 5000);
+	private static final int DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS = 5;
+
+	// Read replicas, given as a comma-separated list of host:port with -Decoges.db.replicas
+	private static final String DATABASE_REPLICAS = System.getProperty("ecoges.db.replicas", "");
+
+	// Additional shards, given as a comma-separated list of host:port with -Decoges.db.shards
+	private static final String DATABASE_SHARDS = System.getProperty("ecoges.db.shards", "");
+
+	// Queries slower than -Decoges.db.slowquery milliseconds are logged, the metrics are served on -Decoges.metrics.port
+	private static final long DATABASE_SLOW_QUERY_MILLIS = Long.getLong("ecoges.db.slowquery", 100);
+	private static final Integer METRICS_PORT = Integer.getInteger("ecoges.metrics.port");
+
+	private static final String SCHEMA_COMPONENT = "webserver";
+
+	// Clients with an open session whose metadata is loaded at startup, set with -Decoges.cache.warmup
+	private static final int CACHE_WARM_UP_CLIENTS = Integer.getInteger("ecoges.cache.warmup", 0);
+
 	// Invoices
 
 	private static int serverPort = 8000;
@@ -93,6 +145,15 @@ public class WebserverMain {
 			System.exit(1);
 		}
 
+		try {
+			Security.setCipherMode(Security.CipherMode.valueOf(DATA_CIPHER_MODE.toUpperCase()));
+			System.out.println("Encrypting data with AES/" + Security.getCipherMode());
+		} catch (IllegalArgumentException e) {
+			System.out.println("ERROR: Unknown data cipher mode: " + DATA_CIPHER_MODE);
+			System.out.println("Exiting...");
+			System.exit(1);
+		}
+
 		try {
 			loadKeysCertificates();
 		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException | UnrecoverableKeyException e) {
@@ -102,17 +163,39 @@ public class WebserverMain {
 		}
 
 		try {
-			// Database
-			System.out.println("Setting up database connection on " + dbUrl);
-			Class.forName(DATABASE_DRIVER);
-			dbConnection = DriverManager.getConnection(dbUrl, DATABASE_USER, DATABASE_PASSWORD);
-			setupDatabase();
+			if (IN_MEMORY_STORAGE) {
+				System.out.println("Using in-memory storage");
+				storage = new InMemoryStorage();
+			}
+			else {
+				// Database
+				System.out.println("Setting up database connection on " + dbUrl);
+				Class.forName(DATABASE_DRIVER);
+				dbPool = new ConnectionPool(dbUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+						DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS);
+				addReplicas();
+				shards = new ShardRouter(openShards());
+				instrumentQueries();
+				setupDatabase();
+				storage = new JdbcStorage(shards);
+			}
+			setupKeys();
 
 			// Setup ssl context
 			SslContext sslContext = GrpcSslContexts.configure(SslContextBuilder.forServer(keyPair.getPrivate(), certificate).trustManager(CACertificate)).build();
 
 			// Service
-			Webserver webserver = new Webserver(dbConnection, personalInfoKey, energyPanelKey, keyPair);
+			SessionTokens sessionTokens = null;
+			if (SIGNED_SESSION_TOKENS) {
+				System.out.println("Using signed session tokens");
+				sessionTokens = new SessionTokens(sessionKey, SESSION_TOKENS_TTL_MILLIS);
+			}
+			Webserver webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, sessionTokens);
+			loadTrustedCertificates(webserver);
+			packEnergyRecords(webserver);
+			backfillObfuscatedColumns(webserver);
+			resumeInvoices();
+			warmUpCaches(webserver);
 			Server server = forPort(serverPort).sslContext(sslContext)
 					.addService(new WebserverServiceImpl(webserver))
 					.addService(new WebserverBackofficeServiceImpl(webserver))
@@ -122,9 +205,18 @@ public class WebserverMain {
 
 			// Automatically generate invoices at each 15 seconds
 			Timer time = new Timer();
-			generateInvoices task = new generateInvoices();
+			generateInvoices task = new generateInvoices(webserver);
 			time.schedule(task, 20000, 15000);
 
+			// Write accumulated energy totals periodically and before exiting
+			time.schedule(new flushEnergyData(webserver), ENERGY_FLUSH_INTERVAL_MILLIS, ENERGY_FLUSH_INTERVAL_MILLIS);
+
+			// Revoke the signed session tokens of clients that logged out on another webserver
+			if (SIGNED_SESSION_TOKENS) {
+				time.schedule(new syncSessionRevocations(webserver), SESSION_TOKENS_SYNC_MILLIS, SESSION_TOKENS_SYNC_MILLIS);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread(webserver::flushEnergyData));
+
 			// Do not exit the main thread. Wait until server is terminated.
 			server.awaitTermination();
 		} catch (InterruptedException e) {
@@ -158,83 +250,248 @@ public class WebserverMain {
 		System.out.println("Successfully loaded key pairs and certificate from Java Keystore!");
 	}
 
-	private static void generateCompartmentKeys() throws NoSuchAlgorithmException, SQLException, IllegalBlockSizeException,
-			NoSuchPaddingException, InvalidKeyException {
-
-		PreparedStatement st;
-		ResultSet rs;
+	private static void setupKeys() {
+		try {
+			generateCompartmentKeys(storage.compartmentKeys());
+			generateSessionKey(storage.compartmentKeys());
+		} catch (SQLException e) {
+			System.out.println("Could not load compartment keys: "+ e.getMessage());
+			System.exit(1);
+		} catch (IllegalBlockSizeException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+			System.out.println("Could not generate compartment keys: "+ e.getMessage());
+			System.exit(1);
+		}
+	}
 
-		// Check if keys already exist
-		st = dbConnection.prepareStatement(READ_COMPARTMENT_KEYS);
-		rs = st.executeQuery();
+	private static void generateSessionKey(CompartmentKeyRepository compartmentKeys) throws NoSuchAlgorithmException, SQLException,
+			IllegalBlockSizeException, NoSuchPaddingException, InvalidKeyException {
 
-		if (rs.next()){
-			personalInfoKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(1));
-			energyPanelKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(2));
-			st.close();
+		// Shared by every webserver using this storage, so that all of them accept the same tokens
+		CompartmentKeys keys = compartmentKeys.read();
+		if (keys == null) {
+			throw new SQLException("Compartment keys are missing.");
+		}
+		if (keys.getSessionKey() != null) {
+			sessionKey = Security.unwrapKey(keyPair.getPrivate(), keys.getSessionKey());
 			return;
 		}
-		st.close();
 
-		System.out.println("Generating compartment keys...");
+		System.out.println("Generating session key...");
 
+		// Kept only if no other webserver starting at the same time stored its own first
+		compartmentKeys.updateSessionKey(Security.wrapKey(keyPair.getPublic(), SessionTokens.generateKey()));
+		sessionKey = Security.unwrapKey(keyPair.getPrivate(), compartmentKeys.read().getSessionKey());
+	}
 
-		// Generate key for personal info compartment
-		KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-		keyGen.init(256);
-		personalInfoKey = keyGen.generateKey();
-		byte[] wrappedPersonalInfoKey = Security.wrapKey(keyPair.getPublic(), personalInfoKey);
+	private static void generateCompartmentKeys(CompartmentKeyRepository compartmentKeys) throws NoSuchAlgorithmException, SQLException,
+			IllegalBlockSizeException, NoSuchPaddingException, InvalidKeyException {
 
-		// Generate key for energy panel compartment
-		keyGen = KeyGenerator.getInstance("AES");
-		keyGen.init(256);
-		energyPanelKey = keyGen.generateKey();
-		byte[] wrappedEnergyPanelKey = Security.wrapKey(keyPair.getPublic(), energyPanelKey);
+		// Check if keys already exist
+		CompartmentKeys keys = compartmentKeys.read();
+		if (keys == null) {
+			System.out.println("Generating compartment keys...");
+
+			// Generate key for personal info compartment
+			KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+			keyGen.init(256);
+			byte[] wrappedPersonalInfoKey = Security.wrapKey(keyPair.getPublic(), keyGen.generateKey());
+
+			// Generate key for energy panel compartment
+			keyGen = KeyGenerator.getInstance("AES");
+			keyGen.init(256);
+			byte[] wrappedEnergyPanelKey = Security.wrapKey(keyPair.getPublic(), keyGen.generateKey());
+
+			// Upload keys to storage, unless another webserver starting at the same time did first
+			compartmentKeys.create(wrappedPersonalInfoKey, wrappedEnergyPanelKey);
+			keys = compartmentKeys.read();
+		}
 
-		// Upload keys to database
-		st = dbConnection.prepareStatement(CREATE_COMPARTMENT_KEYS);
-		st.setBytes(1, wrappedPersonalInfoKey);
-		st.setBytes(2, wrappedEnergyPanelKey);
-		st.executeUpdate();
-		st.close();
+		// Every webserver uses the stored keys, so that all of them read the same data
+		personalInfoKey = Security.unwrapKey(keyPair.getPrivate(), keys.getPersonalInfoKey());
+		energyPanelKey = Security.unwrapKey(keyPair.getPrivate(), keys.getEnergyPanelKey());
 	}
 
-	private static void setupDatabase() {
-		Statement statement;
+	private static void addReplicas() throws SQLException {
+		// replicas are attached to the first shard only, the other shards would silently be read from their primary
+		if (!DATABASE_REPLICAS.trim().isEmpty() && !DATABASE_SHARDS.trim().isEmpty()) {
+			throw new SQLException("Read replicas cannot be used together with shards");
+		}
 
-		try {
-			boolean reachable = dbConnection.isValid(25);
-			if (!reachable) {
-				throw new SQLException("Unreachable database connection.");
+		for (String replica : DATABASE_REPLICAS.split(",")) {
+			if (replica.trim().isEmpty()) continue;
+
+			String replicaUrl = "jdbc:mysql://" + replica.trim() + "/" + DATABASE;
+			try {
+				dbPool.addReplica(new ConnectionPool(replicaUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+						DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS));
+				System.out.println("Using read replica on " + replicaUrl);
+			} catch (SQLException e) {
+				System.out.println("WARNING: Could not connect to read replica on " + replicaUrl + ": " + e.getMessage());
 			}
+		}
+	}
+
+	private static List<ConnectionPool> openShards() throws SQLException {
+		List<ConnectionPool> shardPools = new ArrayList<>();
+		shardPools.add(dbPool);
+
+		for (String shard : DATABASE_SHARDS.split(",")) {
+			if (shard.trim().isEmpty()) continue;
 
-			statement = dbConnection.createStatement();
+			String shardUrl = "jdbc:mysql://" + shard.trim() + "/" + DATABASE;
+			System.out.println("Setting up database shard on " + shardUrl);
+			shardPools.add(new ConnectionPool(shardUrl, DATABASE_USER, DATABASE_PASSWORD, DATABASE_POOL_MIN_CONNECTIONS,
+					DATABASE_POOL_MAX_CONNECTIONS, DATABASE_POOL_ACQUIRE_TIMEOUT_MILLIS, DATABASE_POOL_VALIDATION_TIMEOUT_SECONDS));
+		}
+		return shardPools;
+	}
+
+	private static void instrumentQueries() {
+		QueryMetrics queryMetrics = new QueryMetrics(DATABASE_SLOW_QUERY_MILLIS);
+		queryMetrics.registerQueries(DatabaseQueries.class);
+		for (ConnectionPool shard : shards.all()) {
+			shard.setQueryMetrics(queryMetrics);
+		}
+
+		if (METRICS_PORT != null) {
+			try {
+				MetricsEndpoint metricsEndpoint = new MetricsEndpoint(METRICS_PORT, shards.all(), queryMetrics);
+				metricsEndpoint.start();
+				System.out.println("Serving database metrics on http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+			} catch (IOException e) {
+				System.out.println("WARNING: Could not serve database metrics: " + e.getMessage());
+			}
+		}
+	}
 
-			statement.execute(DROP_INVOICE_TABLE);
-			statement.execute(DROP_SOLAR_PANEL_TABLE);
-			statement.execute(DROP_APPLIANCE_TABLE);
-			statement.execute(DROP_CLIENT_TABLE);
-			statement.execute(DROP_COMPARTMENT_KEYS_TABLE);
+	// stored data is kept across restarts, only the missing schema versions are applied
+	private static void setupDatabase() {
+		SchemaMigrator migrator = new SchemaMigrator(SCHEMA_COMPONENT, SCHEMA_MIGRATIONS, SCHEMA_LEGACY);
 
-			statement.execute(CREATE_CLIENT_TABLE);
-			statement.execute(CREATE_APPLIANCE_TABLE);
-			statement.execute(CREATE_SOLAR_PANEL_TABLE);
-			statement.execute(CREATE_INVOICE_TABLE);
-			statement.execute(CREATE_COMPARTMENT_KEYS_TABLE);
+		try {
+			for (ConnectionPool shard : shards.all()) {
+				try (Connection dbConnection = shard.getConnection()) {
+					boolean reachable = dbConnection.isValid(25);
+					if (!reachable) {
+						throw new SQLException("Unreachable database connection.");
+					}
+				}
 
-			generateCompartmentKeys();
+				int migrated = migrator.migrate(shard);
+				if (migrated > 0) {
+					System.out.println("Applied " + migrated + " schema migrations on " + shard);
+				}
+			}
 
-			System.out.println("Database is ready!");
+			System.out.println("Database is ready at schema version " + migrator.getLatestVersion() + "!");
 		} catch (SQLException e) {
 			System.out.println("Could not set up database: "+ e.getMessage());
 			System.exit(1);
-		} catch (IllegalBlockSizeException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
-			System.out.println("Could not generate compartment keys: "+ e.getMessage());
+		}
+	}
+
+	// billing goes on with the month after the last one invoiced before the restart
+	private static void resumeInvoices() {
+		try {
+			YearMonth last = storage.invoices().readLastMonth();
+			if (last != null) {
+				YearMonth next = last.plusMonths(1);
+				currYear = next.getYear();
+				currMonth = next.getMonthValue() - 1;
+			}
+			System.out.println("Next invoices are for " + months.get(currMonth) + " " + currYear);
+		} catch (SQLException e) {
+			System.out.println("Could not read the last invoiced month: " + e.getMessage());
+			System.out.println("Exiting...");
+			System.exit(1);
+		}
+	}
+
+	private static void loadTrustedCertificates(Webserver webserver) {
+		try {
+			// read once here, compartment key requests reuse them until reloaded
+			webserver.reloadTrustedCertificates();
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
+			System.out.println("ERROR: Could not load trusted certificates: " + e.getMessage());
+			System.out.println("Exiting...");
+			System.exit(1);
+		}
+	}
+
+	private static void packEnergyRecords(Webserver webserver) {
+		try {
+			int packed = webserver.packEnergyRecords();
+			if (packed > 0) {
+				System.out.println("Packed " + packed + " stored clients, appliances, solar panels and invoices into records");
+			}
+		} catch (SQLException | InvalidAlgorithmParameterException | IllegalBlockSizeException | NoSuchPaddingException |
+				 NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
+			System.out.println("Could not pack stored energy data: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void backfillObfuscatedColumns(Webserver webserver) {
+		try {
+			int updated = webserver.backfillObfuscatedColumns();
+			if (updated > 0) {
+				System.out.println("Obfuscated " + updated + " stored appliances, solar panels and invoices");
+			}
+		} catch (SQLException | InvalidAlgorithmParameterException | IllegalBlockSizeException | NoSuchPaddingException |
+				 NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
+			System.out.println("Could not obfuscate stored energy data: " + e.getMessage());
 			System.exit(1);
 		}
 	}
 
+	private static void warmUpCaches(Webserver webserver) {
+		try {
+			int loaded = webserver.warmUpClientMetadataCache(CACHE_WARM_UP_CLIENTS);
+			if (loaded > 0) {
+				System.out.println("Loaded " + loaded + " clients with an open session into the cache");
+			}
+		} catch (SQLException e) {
+			// the cache is filled by the requests instead
+			System.out.println("WARNING: Could not warm up the client cache: " + e.getMessage());
+		}
+	}
+
+	public static class flushEnergyData extends TimerTask {
+		private final Webserver webserver;
+
+		public flushEnergyData(Webserver webserver) {
+			this.webserver = webserver;
+		}
+
+		@Override
+		public void run() {
+			webserver.flushEnergyData();
+		}
+	}
+
+	public static class syncSessionRevocations extends TimerTask {
+		private final Webserver webserver;
+
+		public syncSessionRevocations(Webserver webserver) {
+			this.webserver = webserver;
+		}
+
+		@Override
+		public void run() {
+			try {
+				webserver.syncSessionRevocations();
+			} catch (SQLException e) {
+				System.out.println("WARNING: Could not read session revocations: " + e.getMessage());
+			}
+		}
+	}
+
 	public static class generateInvoices extends TimerTask {
+		private final Webserver webserver;
+
+		public generateInvoices(Webserver webserver) {
+			this.webserver = webserver;
+		}
 
 		public void incrNextDate() {
 			if (currMonth == 11) {
@@ -246,11 +503,10 @@ public class WebserverMain {
 			}
 		}
 
-		public void addInvoice(int client_id, float energyConsumed, float energyConsumedDaytime, float energyConsumedNight, String plan) throws NoSuchAlgorithmException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, InvalidKeyException {
-			PreparedStatement st;
+		public void addInvoice(String email, float energyConsumed, float energyConsumedDaytime, float energyConsumedNight, PlanType plan) throws NoSuchAlgorithmException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, InvalidKeyException {
 			float paymentAmount;
 
-			if (plan.equals(PlanType.FLAT_RATE.name())) {
+			if (plan == PlanType.FLAT_RATE) {
 				paymentAmount = energyConsumed * FLAT_RATE_COST;
 			}
 			else {
@@ -261,61 +517,47 @@ public class WebserverMain {
 
 			byte[] iv = Security.generateRandom();
 
-			st = dbConnection.prepareStatement(CREATE_INVOICE);
-			st.setBytes(1, iv);
-			st.setInt(2, client_id);
-			st.setInt(3, currYear);
-			st.setInt(4, currMonth);
-			st.setString(5, plan);
-			st.setInt(6, TAXES);
-
-			st.setBytes(7, Security.encryptData(Float.toString(paymentAmount), energyPanelKey, iv));
-			st.setBytes(8, Security.encryptData(Float.toString(energyConsumed), energyPanelKey, iv));
-			st.setBytes(9, Security.encryptData(Float.toString(energyConsumedDaytime), energyPanelKey, iv));
-			st.setBytes(10, Security.encryptData(Float.toString(energyConsumedNight), energyPanelKey, iv));
-
-			st.executeUpdate();
+			// a client already billed for this month by a previous attempt is skipped
+			storage.invoices().create(email, currYear, currMonth, plan, TAXES, iv,
+					RecordCodec.encrypt(energyPanelKey, iv, paymentAmount, energyConsumed, energyConsumedDaytime, energyConsumedNight),
+					Webserver.obfuscate(Float.toString(paymentAmount)),
+					Webserver.obfuscate(Float.toString(energyConsumed)),
+					Webserver.obfuscate(Float.toString(energyConsumedDaytime)),
+					Webserver.obfuscate(Float.toString(energyConsumedNight)));
 		}
 		@Override
 		public void run() {
 			System.out.println("Generating new invoices for " + months.get(currMonth) + " " + currYear);
-			PreparedStatement st;
-			ResultSet rs;
-			SecretKey currentKey;
-			try {
-				st = dbConnection.prepareStatement(READ_ALL_CLIENTS_ID_ENERGY_CONSUMPTION_PLAN);
-				rs = st.executeQuery();
 
-				while (rs.next()) {
-					int client_id = rs.getInt(1);
-					String plan = rs.getString(2);
-					byte[] iv = rs.getBytes(3);
-					byte[] lastTemporaryKey = rs.getBytes(4);
+			// bill the energy of every appliance added so far
+			webserver.flushEnergyData();
 
-					if(lastTemporaryKey == null) {
-						currentKey = energyPanelKey;
-					}
-					// recover temporary key
-					else {
-						currentKey = Security.unwrapKey(keyPair.getPrivate(), lastTemporaryKey);
-					}
+			List<BillingData> clients;
+			try {
+				clients = storage.clients().readBillingData();
+			} catch (SQLException e) {
+				System.out.println("Could not generate invoices: " + e.getMessage());
+				return; // the same month is billed again on the next run
+			}
 
-					byte[] energyConsumedBytes = Security.decryptData(rs.getBytes(5), currentKey, iv);
-					byte[] energyConsumedDaytimeBytes = Security.decryptData(rs.getBytes(6), currentKey, iv);
-					byte[] energyConsumedNightBytes = Security.decryptData(rs.getBytes(7), currentKey, iv);
+			// a client that cannot be billed does not keep the others from being billed
+			for (BillingData client : clients) {
+				try {
+					// recover temporary key
+					SecretKey currentKey = client.getLastTemporaryKey() == null ? energyPanelKey
+							: Security.unwrapKey(keyPair.getPrivate(), client.getLastTemporaryKey());
+					byte[] iv = client.getIv();
 
-					float energyConsumed = Float.parseFloat(new String(energyConsumedBytes));
-					float energyConsumedDaytime = Float.parseFloat(new String(energyConsumedDaytimeBytes));
-					float energyConsumedNight = Float.parseFloat(new String(energyConsumedNightBytes));
+					// consumed, consumed daytime, consumed night and produced
+					float[] energy = RecordCodec.decrypt(currentKey, iv, client.getEnergy());
 
-					addInvoice(client_id, energyConsumed, energyConsumedDaytime, energyConsumedNight, plan);
+					addInvoice(client.getEmail(), energy[0], energy[1], energy[2], client.getPlan());
+				} catch (RuntimeException | SQLException | NoSuchAlgorithmException | InvalidAlgorithmParameterException |
+						 IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException | InvalidKeyException e) {
+					System.out.println("Could not generate invoice of " + client.getEmail() + ": " + e.getMessage());
 				}
-				incrNextDate();
-			} catch (RuntimeException | SQLException | NoSuchAlgorithmException | InvalidAlgorithmParameterException |
-					 IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException | InvalidKeyException e) {
-				System.out.println("Could not generate invoices: " + e.getMessage());
 			}
-
+			incrNextDate();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package pt.ulisboa.tecnico.sirs.webserver;
 
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.*;
@@ -170,6 +171,39 @@ public class WebserverServiceImpl extends WebserverServiceGrpc.WebserverServiceI
 		}
 	}
 
+	@Override
+	public void listInvoices(ListInvoicesRequest request, StreamObserver<InvoicePage> responseObserver) {
+		ServerCallStreamObserver<InvoicePage> serverObserver = (ServerCallStreamObserver<InvoicePage>) responseObserver;
+
+		// pages are read only as fast as the client consumes them, each one with its own connection
+		serverObserver.setOnReadyHandler(new Runnable() {
+			private InvoiceCursor cursor = request.hasAfter() ? request.getAfter() : null;
+			private boolean done = false;
+
+			@Override
+			public void run() {
+				while (!done && serverObserver.isReady() && !serverObserver.isCancelled()) {
+					try {
+						InvoicePage page = server.checkInvoicesPage(request.getEmail(), request.getHashedToken(), cursor, request.getPageSize());
+						serverObserver.onNext(page);
+
+						if (page.getLast()) {
+							done = true;
+							serverObserver.onCompleted();
+						}
+						cursor = page.getNext();
+					} catch (SQLException e) {
+						done = true;
+						serverObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+					} catch (InvalidSessionTokenException | ClientDoesNotExistException e) {
+						done = true;
+						serverObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+					}
+				}
+			}
+		});
+	}
+
 	@Override
 	public void updateAddress(UpdateAddressRequest request, StreamObserver<AckResponse> responseObserver) {
 		AckResponse.Builder builder = AckResponse.newBuilder();
@@ -0,0 +1,10 @@
+package pt.ulisboa.tecnico.sirs.webserver.exceptions;
+
+public class ConcurrentUpdateException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrentUpdateException(String email) {
+        super("Energy data of client with email '" + email + "' was updated concurrently, please try again.");
+    }
+}
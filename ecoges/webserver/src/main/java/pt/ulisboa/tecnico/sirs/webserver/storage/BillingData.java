@@ -0,0 +1,43 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+
+/**
+ * Encrypted energy totals and plan of a client, read when generating invoices.
+ * The totals are a single record of the energy consumed, consumed daytime, consumed night and produced.
+ */
+public class BillingData {
+    private final String email;
+    private final PlanType plan;
+    private final byte[] iv;
+    private final byte[] lastTemporaryKey;
+    private final byte[] energy;
+
+    public BillingData(String email, PlanType plan, byte[] iv, byte[] lastTemporaryKey, byte[] energy) {
+        this.email = email;
+        this.plan = plan;
+        this.iv = iv;
+        this.lastTemporaryKey = lastTemporaryKey;
+        this.energy = energy;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public PlanType getPlan() {
+        return plan;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public byte[] getLastTemporaryKey() {
+        return lastTemporaryKey;
+    }
+
+    public byte[] getEnergy() {
+        return energy;
+    }
+}
@@ -0,0 +1,35 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+/**
+ * Stored client name and salted password hash, read on login, along with the time signed session tokens of the client
+ * were last revoked (0 if never).
+ */
+public class ClientCredentials {
+    private final String name;
+    private final String hashedPassword;
+    private final byte[] salt;
+    private final long sessionsRevokedBefore;
+
+    public ClientCredentials(String name, String hashedPassword, byte[] salt, long sessionsRevokedBefore) {
+        this.name = name;
+        this.hashedPassword = hashedPassword;
+        this.salt = salt;
+        this.sessionsRevokedBefore = sessionsRevokedBefore;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHashedPassword() {
+        return hashedPassword;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public long getSessionsRevokedBefore() {
+        return sessionsRevokedBefore;
+    }
+}
@@ -0,0 +1,96 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.CompartmentType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
+import pt.ulisboa.tecnico.sirs.webserver.ClientMetadataCache.ClientMetadata;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientDoesNotExistException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clients along with their personal data and energy data compartments.
+ */
+public interface ClientRepository {
+
+    /**
+     * Stores a new client with both compartments, all four energy totals starting with the same obfuscated value.
+     */
+    void create(String name, String email, String hashedPassword, byte[] salt, PlanType plan,
+                byte[] ivPersonalData, byte[] address, byte[] iban, String obfAddress, String obfIban,
+                byte[] ivEnergyData, byte[] energy, String obfInitialEnergy)
+            throws SQLException, ClientAlreadyExistsException;
+
+    ClientCredentials readCredentials(String email) throws SQLException, ClientDoesNotExistException;
+
+    String readToken(String email) throws SQLException, ClientDoesNotExistException;
+
+    void updateToken(String email, String hashedToken) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Revokes the signed session tokens of the client issued up to the given time, unless a later revocation is stored.
+     */
+    void revokeSessions(String email, long revokedBefore) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Reads, by email, the revocations of signed session tokens made after the given time, on any webserver.
+     */
+    Map<String, Long> readSessionRevocations(long after) throws SQLException;
+
+    ClientMetadata readMetadata(String email) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Reads the metadata of up to limit clients holding an open session, by email.
+     * These are the clients expected to send requests right after the webserver restarts.
+     */
+    Map<String, ClientMetadata> readMetadataOfOpenSessions(int limit) throws SQLException;
+
+    PersonalInfo readObfuscatedPersonalInfo(String email) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Stores a new address, encrypted with the iv and temporary key of the personal compartment while it is locked.
+     */
+    void updateAddress(String email, RecordEncryption address, String obfAddress)
+            throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    void updatePlan(String email, PlanType plan) throws SQLException, ClientDoesNotExistException;
+
+    StoredEnergyData readEnergyData(String email) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Replaces the energy totals of the client if they are still at the given version.
+     * Returns false, without changing anything, if they were written meanwhile.
+     */
+    boolean compareAndSetEnergyData(String email, int version, byte[] energy, String obfEnergyConsumed,
+                                    String obfEnergyConsumedDaytime, String obfEnergyConsumedNight, String obfEnergyProduced)
+            throws SQLException;
+
+    /**
+     * Re-encrypts every value of a compartment of the client, including its appliances and solar panels for the
+     * energy data, and stores the new temporary key. Concurrent writes to the compartment wait until it is done
+     * and no value is changed if it fails. Does nothing if the client does not exist.
+     */
+    void reEncrypt(String email, CompartmentType compartment, ReEncryption reEncryption)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    List<BillingData> readBillingData() throws SQLException;
+
+    /**
+     * Packs the energy totals of the clients stored with one ciphertext per value into a single record.
+     * Returns the number of packed clients.
+     */
+    int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
@@ -0,0 +1,25 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import java.sql.SQLException;
+
+/**
+ * Wrapped master keys shared by every webserver using the same storage.
+ */
+public interface CompartmentKeyRepository {
+
+    /**
+     * Returns the stored keys, or null if they were not generated yet.
+     */
+    CompartmentKeys read() throws SQLException;
+
+    /**
+     * Stores the keys unless some were stored meanwhile (e.g. by a webserver starting at the same time),
+     * in which case the stored ones are kept and returned by read.
+     */
+    void create(byte[] personalInfoKey, byte[] energyPanelKey) throws SQLException;
+
+    /**
+     * Stores the session key unless one was stored meanwhile, in which case the stored one is kept and returned by read.
+     */
+    void updateSessionKey(byte[] sessionKey) throws SQLException;
+}
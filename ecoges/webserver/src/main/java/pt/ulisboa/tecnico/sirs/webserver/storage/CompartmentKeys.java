@@ -0,0 +1,29 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+/**
+ * Master keys of the data compartments and session key, wrapped with the webserver public key.
+ */
+public class CompartmentKeys {
+    private final byte[] personalInfoKey;
+    private final byte[] energyPanelKey;
+    private final byte[] sessionKey;
+
+    public CompartmentKeys(byte[] personalInfoKey, byte[] energyPanelKey, byte[] sessionKey) {
+        this.personalInfoKey = personalInfoKey;
+        this.energyPanelKey = energyPanelKey;
+        this.sessionKey = sessionKey;
+    }
+
+    public byte[] getPersonalInfoKey() {
+        return personalInfoKey;
+    }
+
+    public byte[] getEnergyPanelKey() {
+        return energyPanelKey;
+    }
+
+    // null until a webserver using signed session tokens generates it
+    public byte[] getSessionKey() {
+        return sessionKey;
+    }
+}
@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ApplianceAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.SolarPanelAlreadyExistsException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+
+/**
+ * Appliances and solar panels of the clients. The energy of an appliance is a record of the energy consumed,
+ * consumed daytime and consumed night, the one of a solar panel a record of the energy produced.
+ */
+public interface DeviceRepository {
+
+    /**
+     * Adds an appliance whose energy record is encrypted with the key its client compartment holds at insertion time.
+     */
+    void addAppliance(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyConsumed,
+                      String obfEnergyConsumedDaytime, String obfEnergyConsumedNight)
+            throws ClientDoesNotExistException, ApplianceAlreadyExistsException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    /**
+     * Adds a solar panel whose energy record is encrypted with the key its client compartment holds at insertion time.
+     */
+    void addSolarPanel(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyProduced)
+            throws ClientDoesNotExistException, SolarPanelAlreadyExistsException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    /**
+     * Returns the obfuscated energy totals of the client along with its appliances and solar panels.
+     * Devices stored before their values were kept obfuscated are shown with hidden values.
+     */
+    EnergyPanel readObfuscatedEnergyPanel(String email) throws SQLException, ClientDoesNotExistException;
+
+    /**
+     * Fills the obfuscated values of the devices stored before they were kept obfuscated.
+     * Returns the number of updated devices.
+     */
+    int backfillObfuscatedValues(Obfuscation obfuscation)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    /**
+     * Packs the energy of the devices stored with one ciphertext per value into a single record.
+     * Returns the number of packed devices.
+     */
+    int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
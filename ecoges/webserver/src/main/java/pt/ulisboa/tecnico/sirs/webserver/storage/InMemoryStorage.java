@@ -0,0 +1,514 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.Appliance;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.CompartmentType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.SolarPanel;
+import pt.ulisboa.tecnico.sirs.webserver.ClientMetadataCache.ClientMetadata;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ApplianceAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.SolarPanelAlreadyExistsException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage kept in the process memory, lost when the webserver exits. Data is only visible to this webserver,
+ * so it must not be used with several webservers or with a backoffice reading the client database.
+ * Every client is guarded by its own lock, which plays the role of the row locks of the database.
+ */
+public class InMemoryStorage implements Storage {
+
+    private final Map<String, StoredClient> clientsByEmail = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClientId = new AtomicInteger(1);
+
+    private final ClientRepository clients = new Clients();
+    private final DeviceRepository devices = new Devices();
+    private final InvoiceRepository invoices = new Invoices();
+    private final CompartmentKeyRepository compartmentKeys = new Keys();
+
+    @Override
+    public ClientRepository clients() {
+        return clients;
+    }
+
+    @Override
+    public DeviceRepository devices() {
+        return devices;
+    }
+
+    @Override
+    public InvoiceRepository invoices() {
+        return invoices;
+    }
+
+    @Override
+    public CompartmentKeyRepository compartmentKeys() {
+        return compartmentKeys;
+    }
+
+    private StoredClient find(String email) throws ClientDoesNotExistException {
+        StoredClient client = clientsByEmail.get(email);
+        if (client == null) {
+            throw new ClientDoesNotExistException(email);
+        }
+        return client;
+    }
+
+    private static String deviceKey(String name, String brand) {
+        return name + "\n" + brand;
+    }
+
+    private static long invoiceKey(int year, int month) {
+        return year * 12L + month;
+    }
+
+    private class Clients implements ClientRepository {
+
+        @Override
+        public void create(String name, String email, String hashedPassword, byte[] salt, PlanType plan,
+                           byte[] ivPersonalData, byte[] address, byte[] iban, String obfAddress, String obfIban,
+                           byte[] ivEnergyData, byte[] energy, String obfInitialEnergy)
+                throws ClientAlreadyExistsException {
+            StoredClient client = new StoredClient(nextClientId.getAndIncrement(), name, email, hashedPassword, salt, plan);
+            client.ivPersonalData = ivPersonalData;
+            client.address = address;
+            client.iban = iban;
+            client.obfAddress = obfAddress;
+            client.obfIban = obfIban;
+            client.ivEnergyData = ivEnergyData;
+            client.energy = energy;
+            client.obfEnergy = new String[] { obfInitialEnergy, obfInitialEnergy, obfInitialEnergy, obfInitialEnergy };
+
+            if (clientsByEmail.putIfAbsent(email, client) != null) {
+                throw new ClientAlreadyExistsException(email);
+            }
+        }
+
+        @Override
+        public ClientCredentials readCredentials(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                return new ClientCredentials(client.name, client.hashedPassword, client.salt, client.sessionsRevokedBefore);
+            }
+        }
+
+        @Override
+        public String readToken(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                return client.token;
+            }
+        }
+
+        @Override
+        public void updateToken(String email, String hashedToken) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                client.token = hashedToken;
+            }
+        }
+
+        @Override
+        public void revokeSessions(String email, long revokedBefore) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                client.sessionsRevokedBefore = Math.max(client.sessionsRevokedBefore, revokedBefore);
+            }
+        }
+
+        @Override
+        public Map<String, Long> readSessionRevocations(long after) {
+            Map<String, Long> revocations = new HashMap<>();
+            for (StoredClient client : clientsByEmail.values()) {
+                synchronized (client) {
+                    if (client.sessionsRevokedBefore > after) {
+                        revocations.put(client.email, client.sessionsRevokedBefore);
+                    }
+                }
+            }
+            return revocations;
+        }
+
+        @Override
+        public ClientMetadata readMetadata(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                return new ClientMetadata(client.id, client.ivPersonalData, client.ivEnergyData,
+                        client.lastTemporaryPersonalKey != null, client.lastTemporaryEnergyKey != null);
+            }
+        }
+
+        @Override
+        public Map<String, ClientMetadata> readMetadataOfOpenSessions(int limit) {
+            Map<String, ClientMetadata> metadata = new LinkedHashMap<>();
+            for (StoredClient client : clientsByEmail.values()) {
+                if (metadata.size() >= limit) break;
+                synchronized (client) {
+                    if (!client.token.isEmpty()) {
+                        metadata.put(client.email, new ClientMetadata(client.id, client.ivPersonalData, client.ivEnergyData,
+                                client.lastTemporaryPersonalKey != null, client.lastTemporaryEnergyKey != null));
+                    }
+                }
+            }
+            return metadata;
+        }
+
+        @Override
+        public PersonalInfo readObfuscatedPersonalInfo(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                return PersonalInfo.newBuilder()
+                        .setName(client.name)
+                        .setEmail(client.email)
+                        .setAddress(client.obfAddress)
+                        .setIBAN(client.obfIban)
+                        .setPlan(client.plan)
+                        .build();
+            }
+        }
+
+        @Override
+        public void updateAddress(String email, RecordEncryption address, String obfAddress)
+                throws ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+                NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                // the client lock keeps key requests from re-encrypting the compartment meanwhile
+                client.address = address.encrypt(client.ivPersonalData, client.lastTemporaryPersonalKey);
+                client.obfAddress = obfAddress;
+            }
+        }
+
+        @Override
+        public void updatePlan(String email, PlanType plan) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                client.plan = plan;
+            }
+        }
+
+        @Override
+        public StoredEnergyData readEnergyData(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                return new StoredEnergyData(client.version, client.ivEnergyData, client.lastTemporaryEnergyKey, client.energy);
+            }
+        }
+
+        @Override
+        public boolean compareAndSetEnergyData(String email, int version, byte[] energy, String obfEnergyConsumed,
+                                               String obfEnergyConsumedDaytime, String obfEnergyConsumedNight, String obfEnergyProduced) {
+            StoredClient client = clientsByEmail.get(email);
+            if (client == null) return false;
+            synchronized (client) {
+                if (client.version != version) {
+                    return false;
+                }
+                client.energy = energy;
+                client.obfEnergy = new String[] { obfEnergyConsumed, obfEnergyConsumedDaytime, obfEnergyConsumedNight, obfEnergyProduced };
+                client.version++;
+                return true;
+            }
+        }
+
+        /**
+         * Every new value is computed before any is replaced, so that a failure leaves the client untouched.
+         */
+        @Override
+        public void reEncrypt(String email, CompartmentType compartment, ReEncryption reEncryption)
+                throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+                NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            StoredClient client = clientsByEmail.get(email);
+            if (client == null) return;
+
+            synchronized (client) {
+                if (compartment.equals(CompartmentType.PERSONAL_DATA)) {
+                    byte[] lastTemporaryKey = client.lastTemporaryPersonalKey;
+                    byte[] newIv = reEncryption.newIv();
+                    byte[] address = reEncryption.reEncrypt(client.address, client.ivPersonalData, newIv, lastTemporaryKey);
+                    byte[] iban = reEncryption.reEncrypt(client.iban, client.ivPersonalData, newIv, lastTemporaryKey);
+                    byte[] newTemporaryKey = reEncryption.newTemporaryKey();
+
+                    client.ivPersonalData = newIv;
+                    client.address = address;
+                    client.iban = iban;
+                    client.lastTemporaryPersonalKey = newTemporaryKey;
+                    return;
+                }
+
+                byte[] lastTemporaryKey = client.lastTemporaryEnergyKey;
+                byte[] newIv = reEncryption.newIv();
+                byte[] energy = reEncryption.reEncrypt(client.energy, client.ivEnergyData, newIv, lastTemporaryKey);
+
+                Map<StoredDevice, StoredDevice> devices = new LinkedHashMap<>();
+                for (StoredDevice device : client.appliances.values()) {
+                    devices.put(device, device.reEncrypt(reEncryption, lastTemporaryKey));
+                }
+                for (StoredDevice device : client.solarPanels.values()) {
+                    devices.put(device, device.reEncrypt(reEncryption, lastTemporaryKey));
+                }
+                byte[] newTemporaryKey = reEncryption.newTemporaryKey();
+
+                client.ivEnergyData = newIv;
+                client.energy = energy;
+                client.appliances.replaceAll((key, device) -> devices.get(device));
+                client.solarPanels.replaceAll((key, device) -> devices.get(device));
+                client.lastTemporaryEnergyKey = newTemporaryKey;
+                client.version++;
+            }
+        }
+
+        @Override
+        public List<BillingData> readBillingData() {
+            List<BillingData> billingData = new ArrayList<>();
+            for (StoredClient client : clientsByEmail.values()) {
+                synchronized (client) {
+                    billingData.add(new BillingData(client.email, client.plan, client.ivEnergyData, client.lastTemporaryEnergyKey,
+                            client.energy));
+                }
+            }
+            return billingData;
+        }
+
+        @Override
+        public int packEnergyRecords(RecordPacking packing) {
+            return 0; // values have always been stored as records
+        }
+    }
+
+    private class Devices implements DeviceRepository {
+
+        @Override
+        public void addAppliance(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyConsumed,
+                                 String obfEnergyConsumedDaytime, String obfEnergyConsumedNight)
+                throws ClientDoesNotExistException, ApplianceAlreadyExistsException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+                NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                // the client lock keeps key requests from re-encrypting the compartment meanwhile
+                StoredDevice appliance = new StoredDevice(name, brand, iv, energy.encrypt(iv, client.lastTemporaryEnergyKey),
+                        new String[] { obfEnergyConsumed, obfEnergyConsumedDaytime, obfEnergyConsumedNight });
+                if (client.appliances.putIfAbsent(deviceKey(name, brand), appliance) != null) {
+                    throw new ApplianceAlreadyExistsException(name, brand);
+                }
+            }
+        }
+
+        @Override
+        public void addSolarPanel(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyProduced)
+                throws ClientDoesNotExistException, SolarPanelAlreadyExistsException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+                NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                StoredDevice solarPanel = new StoredDevice(name, brand, iv, energy.encrypt(iv, client.lastTemporaryEnergyKey),
+                        new String[] { obfEnergyProduced });
+                if (client.solarPanels.putIfAbsent(deviceKey(name, brand), solarPanel) != null) {
+                    throw new SolarPanelAlreadyExistsException(name, brand);
+                }
+            }
+        }
+
+        @Override
+        public EnergyPanel readObfuscatedEnergyPanel(String email) throws ClientDoesNotExistException {
+            StoredClient client = find(email);
+            synchronized (client) {
+                EnergyPanel.Builder energyPanel = EnergyPanel.newBuilder()
+                        .setEnergyConsumed(client.obfEnergy[0])
+                        .setEnergyConsumedDaytime(client.obfEnergy[1])
+                        .setEnergyConsumedNight(client.obfEnergy[2])
+                        .setEnergyProduced(client.obfEnergy[3]);
+
+                for (StoredDevice appliance : client.appliances.values()) {
+                    energyPanel.addAppliances(Appliance.newBuilder()
+                            .setName(appliance.name)
+                            .setBrand(appliance.brand)
+                            .setEnergyConsumed(appliance.obfValues[0])
+                            .setEnergyConsumedDaytime(appliance.obfValues[1])
+                            .setEnergyConsumedNight(appliance.obfValues[2])
+                            .build());
+                }
+                for (StoredDevice solarPanel : client.solarPanels.values()) {
+                    energyPanel.addSolarPanels(SolarPanel.newBuilder()
+                            .setName(solarPanel.name)
+                            .setBrand(solarPanel.brand)
+                            .setEnergyProduced(solarPanel.obfValues[0])
+                            .build());
+                }
+                return energyPanel.build();
+            }
+        }
+
+        @Override
+        public int backfillObfuscatedValues(Obfuscation obfuscation) {
+            return 0; // values have always been stored obfuscated
+        }
+
+        @Override
+        public int packEnergyRecords(RecordPacking packing) {
+            return 0; // values have always been stored as records
+        }
+    }
+
+    private class Invoices implements InvoiceRepository {
+
+        @Override
+        public boolean create(String email, int year, int month, PlanType plan, int taxes, byte[] iv, byte[] energy,
+                              String obfPaymentAmount, String obfEnergyConsumed, String obfEnergyConsumedDaytime, String obfEnergyConsumedNight) {
+            StoredClient client = clientsByEmail.get(email);
+            if (client == null) return false;
+            synchronized (client) {
+                // only the obfuscated values are ever read back
+                InvoiceRecord invoice = new InvoiceRecord(year, month, taxes, plan, obfPaymentAmount, obfEnergyConsumed,
+                        obfEnergyConsumedDaytime, obfEnergyConsumedNight);
+                return client.invoices.putIfAbsent(invoiceKey(year, month), invoice) == null;
+            }
+        }
+
+        @Override
+        public YearMonth readLastMonth() {
+            long last = -1;
+            for (StoredClient client : clientsByEmail.values()) {
+                synchronized (client) {
+                    if (!client.invoices.isEmpty()) {
+                        last = Math.max(last, client.invoices.lastKey());
+                    }
+                }
+            }
+            return last < 0 ? null : YearMonth.of((int) (last / 12), (int) (last % 12) + 1);
+        }
+
+        @Override
+        public List<InvoiceRecord> readObfuscated(String email, int afterYear, int afterMonth, int limit) {
+            List<InvoiceRecord> invoices = new ArrayList<>();
+            StoredClient client = clientsByEmail.get(email);
+            if (client == null) return invoices;
+            synchronized (client) {
+                for (InvoiceRecord invoice : client.invoices.tailMap(invoiceKey(afterYear, afterMonth), false).values()) {
+                    if (invoices.size() == limit) break;
+                    invoices.add(invoice);
+                }
+            }
+            return invoices;
+        }
+
+        @Override
+        public int backfillObfuscatedValues(Obfuscation obfuscation) {
+            return 0; // values have always been stored obfuscated
+        }
+
+        @Override
+        public int packEnergyRecords(RecordPacking packing) {
+            return 0; // values have always been stored as records
+        }
+    }
+
+    private static class Keys implements CompartmentKeyRepository {
+        private CompartmentKeys keys;
+
+        @Override
+        public synchronized CompartmentKeys read() {
+            return keys;
+        }
+
+        @Override
+        public synchronized void create(byte[] personalInfoKey, byte[] energyPanelKey) {
+            if (keys == null) {
+                keys = new CompartmentKeys(personalInfoKey, energyPanelKey, null);
+            }
+        }
+
+        @Override
+        public synchronized void updateSessionKey(byte[] sessionKey) {
+            if (keys.getSessionKey() != null) return;
+            keys = new CompartmentKeys(keys.getPersonalInfoKey(), keys.getEnergyPanelKey(), sessionKey);
+        }
+    }
+
+    /**
+     * Fields are guarded by the lock of the instance.
+     */
+    private static class StoredClient {
+        private final int id;
+        private final String name;
+        private final String email;
+        private final String hashedPassword;
+        private final byte[] salt;
+        private PlanType plan;
+        private String token = "";
+        private long sessionsRevokedBefore = 0;
+        private int version = 0;
+
+        // personal data compartment
+        private byte[] ivPersonalData;
+        private byte[] address;
+        private byte[] iban;
+        private String obfAddress;
+        private String obfIban;
+        private byte[] lastTemporaryPersonalKey;
+
+        // energy data compartment: a record of consumed, consumed daytime, consumed night and produced
+        private byte[] ivEnergyData;
+        private byte[] energy;
+        private String[] obfEnergy;
+        private byte[] lastTemporaryEnergyKey;
+
+        // by name and brand, in insertion order
+        private final Map<String, StoredDevice> appliances = new LinkedHashMap<>();
+        private final Map<String, StoredDevice> solarPanels = new LinkedHashMap<>();
+
+        // by month, oldest first
+        private final TreeMap<Long, InvoiceRecord> invoices = new TreeMap<>();
+
+        StoredClient(int id, String name, String email, String hashedPassword, byte[] salt, PlanType plan) {
+            this.id = id;
+            this.name = name;
+            this.email = email;
+            this.hashedPassword = hashedPassword;
+            this.salt = salt;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Appliance (a record of energy consumed, consumed daytime and consumed night) or solar panel (energy produced).
+     */
+    private static class StoredDevice {
+        private final String name;
+        private final String brand;
+        private final byte[] iv;
+        private final byte[] energy;
+        private final String[] obfValues;
+
+        StoredDevice(String name, String brand, byte[] iv, byte[] energy, String[] obfValues) {
+            this.name = name;
+            this.brand = brand;
+            this.iv = iv;
+            this.energy = energy;
+            this.obfValues = obfValues;
+        }
+
+        StoredDevice reEncrypt(ReEncryption reEncryption, byte[] lastTemporaryKey)
+                throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+                NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+            byte[] newIv = reEncryption.newIv();
+            return new StoredDevice(name, brand, newIv, reEncryption.reEncrypt(energy, iv, newIv, lastTemporaryKey), obfValues);
+        }
+    }
+}
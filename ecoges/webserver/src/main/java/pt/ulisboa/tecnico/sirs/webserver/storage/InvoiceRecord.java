@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+
+/**
+ * Obfuscated invoice as shown to its client. Months are numbered from 0 (January).
+ */
+public class InvoiceRecord {
+    private final int year;
+    private final int month;
+    private final int taxes;
+    private final PlanType plan;
+    private final String paymentAmount;
+    private final String energyConsumed;
+    private final String energyConsumedDaytime;
+    private final String energyConsumedNight;
+
+    public InvoiceRecord(int year, int month, int taxes, PlanType plan, String paymentAmount, String energyConsumed,
+                         String energyConsumedDaytime, String energyConsumedNight) {
+        this.year = year;
+        this.month = month;
+        this.taxes = taxes;
+        this.plan = plan;
+        this.paymentAmount = paymentAmount;
+        this.energyConsumed = energyConsumed;
+        this.energyConsumedDaytime = energyConsumedDaytime;
+        this.energyConsumedNight = energyConsumedNight;
+    }
+
+    public int getYear() {
+        return year;
+    }
+
+    public int getMonth() {
+        return month;
+    }
+
+    public int getTaxes() {
+        return taxes;
+    }
+
+    public PlanType getPlan() {
+        return plan;
+    }
+
+    // obfuscated values are null for invoices stored before they existed and not yet backfilled
+
+    public String getPaymentAmount() {
+        return paymentAmount;
+    }
+
+    public String getEnergyConsumed() {
+        return energyConsumed;
+    }
+
+    public String getEnergyConsumedDaytime() {
+        return energyConsumedDaytime;
+    }
+
+    public String getEnergyConsumedNight() {
+        return energyConsumedNight;
+    }
+}
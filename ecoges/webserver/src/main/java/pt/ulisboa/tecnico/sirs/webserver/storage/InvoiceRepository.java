@@ -0,0 +1,55 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.List;
+
+/**
+ * Monthly invoices of the clients, encrypted with the energy panel master key.
+ * The energy of an invoice is a record of the payment amount, energy consumed, consumed daytime and consumed night.
+ */
+public interface InvoiceRepository {
+
+    /**
+     * Stores the invoice of a client for a month. Returns false if the client already has one for that month,
+     * so that a billing run can be retried.
+     */
+    boolean create(String email, int year, int month, PlanType plan, int taxes, byte[] iv, byte[] energy,
+                   String obfPaymentAmount, String obfEnergyConsumed, String obfEnergyConsumedDaytime, String obfEnergyConsumedNight)
+            throws SQLException;
+
+    /**
+     * Returns the latest month any client was invoiced for, null if no invoice was issued yet.
+     * Months are numbered from 0 by the invoices, from 1 by the YearMonth.
+     */
+    YearMonth readLastMonth() throws SQLException;
+
+    /**
+     * Returns at most limit invoices of the client issued after the given month, oldest first.
+     */
+    List<InvoiceRecord> readObfuscated(String email, int afterYear, int afterMonth, int limit) throws SQLException;
+
+    /**
+     * Fills the obfuscated values of the invoices stored before they were kept obfuscated.
+     * Returns the number of updated invoices.
+     */
+    int backfillObfuscatedValues(Obfuscation obfuscation)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    /**
+     * Packs the values of the invoices stored with one ciphertext per value into a single record.
+     * Returns the number of packed invoices.
+     */
+    int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
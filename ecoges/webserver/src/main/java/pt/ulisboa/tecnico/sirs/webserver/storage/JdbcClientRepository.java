@@ -0,0 +1,498 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.CompartmentType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.database.UnitOfWork;
+import pt.ulisboa.tecnico.sirs.webserver.ClientMetadataCache.ClientMetadata;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientDoesNotExistException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+public class JdbcClientRepository implements ClientRepository {
+
+    // Read-only queries allowed to be answered by a database replica that may lag behind the primary
+    private static final boolean STALE_PERSONAL_INFO_ALLOWED = false; // clients expect to see their updates right away
+
+    private final ShardRouter shards;
+
+    public JdbcClientRepository(ShardRouter shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public void create(String name, String email, String hashedPassword, byte[] salt, PlanType plan,
+                       byte[] ivPersonalData, byte[] address, byte[] iban, String obfAddress, String obfIban,
+                       byte[] ivEnergyData, byte[] energy, String obfInitialEnergy)
+            throws SQLException, ClientAlreadyExistsException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(shards.forClient(email))) {
+            Connection dbConnection = unitOfWork.getConnection();
+            PreparedStatement st;
+            ResultSet rs;
+
+            st = dbConnection.prepareStatement(CREATE_CLIENT, Statement.RETURN_GENERATED_KEYS);
+            st.setString(1, name);
+            st.setString(2, email);
+            st.setString(3, hashedPassword);
+            st.setBytes(4, salt);
+            st.setInt(5, plan.getNumber());
+
+            // the email is unique, there is no need to check if it is already registered
+            try {
+                st.executeUpdate();
+            } catch (SQLException e) {
+                st.close();
+                if (JdbcStorage.isDuplicateKey(e)) {
+                    throw new ClientAlreadyExistsException(email);
+                }
+                throw e;
+            }
+            rs = st.getGeneratedKeys();
+            rs.next();
+            int client_id = rs.getInt(1);
+            st.close();
+
+            // personal data compartment
+            st = dbConnection.prepareStatement(CREATE_CLIENT_PERSONAL_DATA);
+            st.setInt(1, client_id);
+            st.setBytes(2, ivPersonalData);
+            st.setBytes(3, address);
+            st.setBytes(4, iban);
+            st.setString(5, obfAddress);
+            st.setString(6, obfIban);
+            st.executeUpdate();
+            st.close();
+
+            // energy data compartment
+            st = dbConnection.prepareStatement(CREATE_CLIENT_ENERGY_DATA);
+            st.setInt(1, client_id);
+            st.setBytes(2, ivEnergyData);
+            st.setBytes(3, energy);
+            for (int i = 4; i <= 7; i++) {
+                st.setString(i, obfInitialEnergy);
+            }
+            st.executeUpdate();
+            st.close();
+
+            unitOfWork.commit();
+        }
+    }
+
+    @Override
+    public ClientCredentials readCredentials(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_NAME_PASSWORD_SALT);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            ClientCredentials credentials = new ClientCredentials(rs.getString(1), rs.getString(2), rs.getBytes(3), rs.getLong(4));
+            st.close();
+            return credentials;
+        }
+    }
+
+    @Override
+    public String readToken(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_TOKEN);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            String token = rs.getString(1);
+            st.close();
+            return token;
+        }
+    }
+
+    @Override
+    public void updateToken(String email, String hashedToken) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_TOKEN);
+            st.setString(1, hashedToken);
+            st.setString(2, email);
+            int updated = st.executeUpdate();
+            st.close();
+
+            if (updated == 0) {
+                throw new ClientDoesNotExistException(email);
+            }
+        }
+    }
+
+    @Override
+    public void revokeSessions(String email, long revokedBefore) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_SESSIONS_REVOKED_BEFORE);
+            st.setLong(1, revokedBefore);
+            st.setString(2, email);
+            int updated = st.executeUpdate();
+            st.close();
+
+            if (updated == 0) {
+                throw new ClientDoesNotExistException(email);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Long> readSessionRevocations(long after) throws SQLException {
+        Map<String, Long> revocations = new HashMap<>();
+
+        for (ConnectionPool shard : shards.all()) {
+            try (Connection dbConnection = shard.getConnection()) {
+                PreparedStatement st = dbConnection.prepareStatement(READ_SESSIONS_REVOKED_AFTER);
+                st.setLong(1, after);
+                ResultSet rs = st.executeQuery();
+
+                while (rs.next()) {
+                    revocations.put(rs.getString(1), rs.getLong(2));
+                }
+                st.close();
+            }
+        }
+        return revocations;
+    }
+
+    @Override
+    public ClientMetadata readMetadata(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_METADATA);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            ClientMetadata metadata = new ClientMetadata(rs.getInt(1), rs.getBytes(2), rs.getBytes(3), rs.getBoolean(4), rs.getBoolean(5));
+            st.close();
+            return metadata;
+        }
+    }
+
+    @Override
+    public Map<String, ClientMetadata> readMetadataOfOpenSessions(int limit) throws SQLException {
+        Map<String, ClientMetadata> metadata = new LinkedHashMap<>();
+
+        for (ConnectionPool shard : shards.all()) {
+            if (metadata.size() >= limit) break;
+
+            try (Connection dbConnection = shard.getConnection()) {
+                PreparedStatement st = dbConnection.prepareStatement(READ_OPEN_SESSIONS_CLIENT_METADATA);
+                st.setInt(1, limit - metadata.size());
+                ResultSet rs = st.executeQuery();
+
+                while (rs.next()) {
+                    metadata.put(rs.getString(1), new ClientMetadata(rs.getInt(2), rs.getBytes(3), rs.getBytes(4),
+                            rs.getBoolean(5), rs.getBoolean(6)));
+                }
+                st.close();
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public PersonalInfo readObfuscatedPersonalInfo(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getReadConnection(STALE_PERSONAL_INFO_ALLOWED)) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_PERSONAL_INFO);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            PersonalInfo personalInfo = PersonalInfo.newBuilder()
+                    .setName(rs.getString(1))
+                    .setEmail(rs.getString(2))
+                    .setAddress(rs.getString(3))
+                    .setIBAN(rs.getString(4))
+                    .setPlan(PlanType.forNumber(rs.getInt(5)))
+                    .build();
+            st.close();
+            return personalInfo;
+        }
+    }
+
+    @Override
+    public void updateAddress(String email, RecordEncryption address, String obfAddress)
+            throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(shards.forClient(email))) {
+            Connection dbConnection = unitOfWork.getConnection();
+
+            // keeps key requests from re-encrypting the compartment with another iv until the address is stored
+            PreparedStatement st = dbConnection.prepareStatement(LOCK_CLIENT_IV_AND_LAST_TEMPORARY_PERSONAL_KEY);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            byte[] iv = rs.getBytes(1);
+            byte[] lastTemporaryKey = rs.getBytes(2);
+            st.close();
+
+            st = dbConnection.prepareStatement(UPDATE_CLIENT_ADDRESS);
+            st.setBytes(1, address.encrypt(iv, lastTemporaryKey));
+            st.setString(2, obfAddress);
+            st.setString(3, email);
+            st.executeUpdate();
+            st.close();
+
+            unitOfWork.commit();
+        }
+    }
+
+    @Override
+    public void updatePlan(String email, PlanType plan) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_PLAN);
+            st.setInt(1, plan.getNumber());
+            st.setString(2, email);
+            int updated = st.executeUpdate();
+            st.close();
+
+            if (updated == 0) {
+                throw new ClientDoesNotExistException(email);
+            }
+        }
+    }
+
+    @Override
+    public StoredEnergyData readEnergyData(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_VERSIONED_ENERGY_DATA);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+
+            if (!rs.next()) {
+                st.close();
+                throw new ClientDoesNotExistException(email);
+            }
+            StoredEnergyData energyData = new StoredEnergyData(rs.getInt(1), rs.getBytes(2), rs.getBytes(3), rs.getBytes(4));
+            st.close();
+            return energyData;
+        }
+    }
+
+    @Override
+    public boolean compareAndSetEnergyData(String email, int version, byte[] energy, String obfEnergyConsumed,
+                                           String obfEnergyConsumedDaytime, String obfEnergyConsumedNight, String obfEnergyProduced)
+            throws SQLException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_ENERGY);
+            st.setBytes(1, energy);
+
+            st.setString(2, obfEnergyConsumed);
+            st.setString(3, obfEnergyConsumedDaytime);
+            st.setString(4, obfEnergyConsumedNight);
+            st.setString(5, obfEnergyProduced);
+
+            st.setString(6, email);
+            st.setInt(7, version);
+            int updated = st.executeUpdate();
+            st.close();
+
+            return updated != 0;
+        }
+    }
+
+    @Override
+    public void reEncrypt(String email, CompartmentType compartment, ReEncryption reEncryption)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+
+        // run in a transaction due to the long set of operations and the existence of concurrent accesses to the client data
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(shards.forClient(email))) {
+            Connection dbConnection = unitOfWork.getConnection();
+
+            if (compartment.equals(CompartmentType.PERSONAL_DATA)) {
+                reEncryptPersonalData(dbConnection, email, reEncryption);
+            }
+            else {
+                reEncryptEnergyData(dbConnection, email, reEncryption);
+            }
+
+            unitOfWork.commit();
+        }
+    }
+
+    private void reEncryptPersonalData(Connection dbConnection, String email, ReEncryption reEncryption)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        PreparedStatement st;
+        ResultSet rs;
+        byte[] lastTemporaryKey, oldIv, address, iban;
+
+        // keeps other key requests for this compartment waiting until the transaction ends
+        st = dbConnection.prepareStatement(LOCK_CLIENT_LAST_TEMPORARY_PERSONAL_KEY);
+        st.setString(1, email);
+        rs = st.executeQuery();
+        if (!rs.next()) {
+            st.close();
+            return;
+        }
+        lastTemporaryKey = rs.getBytes(1);
+        st.close();
+
+        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA);
+        st.setString(1, email);
+        rs = st.executeQuery();
+        if (!rs.next()) {
+            st.close();
+            return; // must not happen
+        }
+        oldIv = rs.getBytes(1);
+        address = rs.getBytes(2);
+        iban = rs.getBytes(3);
+        st.close();
+
+        byte[] newIv = reEncryption.newIv();
+        st = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_ENCRYPTED_PERSONAL_INFO);
+        st.setBytes(1, newIv);
+        st.setBytes(2, reEncryption.reEncrypt(address, oldIv, newIv, lastTemporaryKey));
+        st.setBytes(3, reEncryption.reEncrypt(iban, oldIv, newIv, lastTemporaryKey));
+        st.setString(4, email);
+        st.execute();
+        st.close();
+
+        st = dbConnection.prepareStatement(UPDATE_CLIENT_TEMPORARY_PERSONAL_KEY);
+        st.setBytes(1, reEncryption.newTemporaryKey());
+        st.setString(2, email);
+        st.execute();
+        st.close();
+    }
+
+    private void reEncryptEnergyData(Connection dbConnection, String email, ReEncryption reEncryption)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        PreparedStatement st, st2;
+        ResultSet rs;
+        byte[] lastTemporaryKey, oldIv, newIv;
+        int clientId;
+
+        // keeps other key requests for this compartment waiting until the transaction ends
+        st = dbConnection.prepareStatement(LOCK_CLIENT_LAST_TEMPORARY_ENERGY_KEY);
+        st.setString(1, email);
+        rs = st.executeQuery();
+        if (!rs.next()) {
+            st.close();
+            return;
+        }
+        lastTemporaryKey = rs.getBytes(1);
+        st.close();
+
+        // client totals
+        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_ENERGY_DATA);
+        st.setString(1, email);
+        rs = st.executeQuery();
+        if (!rs.next()) {
+            st.close();
+            return; // must not happen
+        }
+        oldIv = rs.getBytes(1);
+        clientId = rs.getInt(2);
+        newIv = reEncryption.newIv();
+
+        st2 = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_ENCRYPTED_ENERGY_PANEL);
+        st2.setBytes(1, newIv);
+        st2.setBytes(2, reEncryption.reEncrypt(rs.getBytes(3), oldIv, newIv, lastTemporaryKey));
+        st2.setString(3, email);
+        st.close();
+        st2.execute();
+        st2.close();
+
+        // appliances
+        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_APPLIANCES_ENERGY);
+        st.setInt(1, clientId);
+        rs = st.executeQuery();
+        st2 = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_APPLIANCE_ENERGY);
+        while (rs.next()) {
+            oldIv = rs.getBytes(1);
+            newIv = reEncryption.newIv();
+            st2.setBytes(1, newIv);
+            st2.setBytes(2, reEncryption.reEncrypt(rs.getBytes(3), oldIv, newIv, lastTemporaryKey));
+            st2.setInt(3, rs.getInt(2));
+            st2.addBatch();
+        }
+        st.close();
+        st2.executeBatch();
+        st2.close();
+
+        // solar panels
+        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_SOLAR_PANELS_ENERGY);
+        st.setInt(1, clientId);
+        rs = st.executeQuery();
+        st2 = dbConnection.prepareStatement(UPDATE_CLIENT_IV_AND_SOLAR_PANEL_ENERGY);
+        while (rs.next()) {
+            oldIv = rs.getBytes(1);
+            newIv = reEncryption.newIv();
+            st2.setBytes(1, newIv);
+            st2.setBytes(2, reEncryption.reEncrypt(rs.getBytes(3), oldIv, newIv, lastTemporaryKey));
+            st2.setInt(3, rs.getInt(2));
+            st2.addBatch();
+        }
+        st.close();
+        st2.executeBatch();
+        st2.close();
+
+        st = dbConnection.prepareStatement(UPDATE_CLIENT_TEMPORARY_ENERGY_KEY);
+        st.setBytes(1, reEncryption.newTemporaryKey());
+        st.setString(2, email);
+        st.execute();
+        st.close();
+    }
+
+    @Override
+    public List<BillingData> readBillingData() throws SQLException {
+        List<BillingData> billingData = new ArrayList<>();
+
+        for (ConnectionPool shard : shards.all()) {
+            try (Connection dbConnection = shard.getConnection()) {
+                PreparedStatement st = dbConnection.prepareStatement(READ_ALL_CLIENTS_BILLING_DATA);
+                ResultSet rs = st.executeQuery();
+
+                while (rs.next()) {
+                    billingData.add(new BillingData(rs.getString(1), PlanType.forNumber(rs.getInt(2)), rs.getBytes(3), rs.getBytes(4),
+                            rs.getBytes(5)));
+                }
+                st.close();
+            }
+        }
+        return billingData;
+    }
+
+    @Override
+    public int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        return JdbcStorage.packRecords(shards, READ_CLIENT_ENERGY_DATA_IDS_TO_PACK, READ_CLIENT_ENERGY_DATA_TO_PACK,
+                UPDATE_CLIENT_ENERGY_DATA_PACKED, packing);
+    }
+}
@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+/**
+ * The keys are not owned by any client, so they are only stored in the first shard.
+ */
+public class JdbcCompartmentKeyRepository implements CompartmentKeyRepository {
+
+    private final ShardRouter shards;
+
+    public JdbcCompartmentKeyRepository(ShardRouter shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public CompartmentKeys read() throws SQLException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_COMPARTMENT_KEYS);
+            ResultSet rs = st.executeQuery();
+
+            CompartmentKeys keys = null;
+            if (rs.next()) {
+                keys = new CompartmentKeys(rs.getBytes(1), rs.getBytes(2), rs.getBytes(3));
+            }
+            st.close();
+            return keys;
+        }
+    }
+
+    @Override
+    public void create(byte[] personalInfoKey, byte[] energyPanelKey) throws SQLException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(CREATE_COMPARTMENT_KEYS);
+            st.setBytes(1, personalInfoKey);
+            st.setBytes(2, energyPanelKey);
+            st.executeUpdate();
+            st.close();
+        }
+    }
+
+    @Override
+    public void updateSessionKey(byte[] sessionKey) throws SQLException {
+        try (Connection dbConnection = shards.global().getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_SESSION_KEY);
+            st.setBytes(1, sessionKey);
+            st.executeUpdate();
+            st.close();
+        }
+    }
+}
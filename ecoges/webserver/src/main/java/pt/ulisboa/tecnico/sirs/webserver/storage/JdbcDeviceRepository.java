@@ -0,0 +1,210 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.Appliance;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.SolarPanel;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.database.UnitOfWork;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ApplianceAlreadyExistsException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.ClientDoesNotExistException;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.SolarPanelAlreadyExistsException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+public class JdbcDeviceRepository implements DeviceRepository {
+
+    // the energy panel is read right after the pending energy is written to the primary, which a replica may not have yet
+    private static final boolean STALE_ENERGY_PANEL_ALLOWED = false;
+
+    private final ShardRouter shards;
+
+    public JdbcDeviceRepository(ShardRouter shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public void addAppliance(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyConsumed,
+                             String obfEnergyConsumedDaytime, String obfEnergyConsumedNight)
+            throws ClientDoesNotExistException, ApplianceAlreadyExistsException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(shards.forClient(email))) {
+            Connection dbConnection = unitOfWork.getConnection();
+            byte[] lastTemporaryKey = lockEnergyCompartment(dbConnection, email);
+
+            PreparedStatement st = dbConnection.prepareStatement(CREATE_APPLIANCE);
+            st.setString(1, email);
+            st.setString(2, name);
+            st.setString(3, brand);
+            st.setBytes(4, iv);
+
+            st.setBytes(5, energy.encrypt(iv, lastTemporaryKey));
+
+            st.setString(6, obfEnergyConsumed);
+            st.setString(7, obfEnergyConsumedDaytime);
+            st.setString(8, obfEnergyConsumedNight);
+
+            // (client_id, name, brand) is unique, there is no need to check if the appliance is already registered
+            try {
+                st.executeUpdate();
+            } catch (SQLException e) {
+                if (JdbcStorage.isDuplicateKey(e)) {
+                    throw new ApplianceAlreadyExistsException(name, brand);
+                }
+                throw e;
+            } finally {
+                st.close();
+            }
+            unitOfWork.commit();
+        }
+    }
+
+    @Override
+    public void addSolarPanel(String email, String name, String brand, byte[] iv, RecordEncryption energy, String obfEnergyProduced)
+            throws ClientDoesNotExistException, SolarPanelAlreadyExistsException, SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(shards.forClient(email))) {
+            Connection dbConnection = unitOfWork.getConnection();
+            byte[] lastTemporaryKey = lockEnergyCompartment(dbConnection, email);
+
+            PreparedStatement st = dbConnection.prepareStatement(CREATE_SOLAR_PANEL);
+            st.setString(1, email);
+            st.setString(2, name);
+            st.setString(3, brand);
+            st.setBytes(4, iv);
+
+            st.setBytes(5, energy.encrypt(iv, lastTemporaryKey));
+            st.setString(6, obfEnergyProduced);
+
+            // (client_id, name, brand) is unique, there is no need to check if the solar panel is already registered
+            try {
+                st.executeUpdate();
+            } catch (SQLException e) {
+                if (JdbcStorage.isDuplicateKey(e)) {
+                    throw new SolarPanelAlreadyExistsException(name, brand);
+                }
+                throw e;
+            } finally {
+                st.close();
+            }
+            unitOfWork.commit();
+        }
+    }
+
+    /**
+     * Locks the energy compartment of the client until the transaction ends, so that no key request re-encrypts it
+     * while a device is added, and returns the temporary key it is stored with (null for the master key).
+     */
+    private static byte[] lockEnergyCompartment(Connection dbConnection, String email) throws SQLException, ClientDoesNotExistException {
+        PreparedStatement st = dbConnection.prepareStatement(LOCK_CLIENT_LAST_TEMPORARY_ENERGY_KEY);
+        st.setString(1, email);
+        ResultSet rs = st.executeQuery();
+
+        if (!rs.next()) {
+            st.close();
+            throw new ClientDoesNotExistException(email);
+        }
+        byte[] lastTemporaryKey = rs.getBytes(1);
+        st.close();
+        return lastTemporaryKey;
+    }
+
+    /**
+     * Reads the client row, appliances and solar panels with a single query.
+     */
+    @Override
+    public EnergyPanel readObfuscatedEnergyPanel(String email) throws SQLException, ClientDoesNotExistException {
+        try (Connection dbConnection = shards.forClient(email).getReadConnection(STALE_ENERGY_PANEL_ALLOWED)) {
+            PreparedStatement st;
+            ResultSet rs;
+            EnergyPanel.Builder energyPanel = EnergyPanel.newBuilder();
+            boolean clientFound = false;
+
+            st = dbConnection.prepareStatement(READ_ENERGY_PANEL);
+            st.setString(1, email);
+            st.setString(2, email);
+            st.setString(3, email);
+            rs = st.executeQuery();
+
+            // rows are sorted by kind, so the client row always comes first
+            while (rs.next()) {
+                int kind = rs.getInt(1);
+
+                if (kind == ENERGY_PANEL_CLIENT_ROW) {
+                    clientFound = true;
+                    energyPanel.setEnergyConsumed(rs.getString(4))
+                            .setEnergyConsumedDaytime(rs.getString(5))
+                            .setEnergyConsumedNight(rs.getString(6))
+                            .setEnergyProduced(rs.getString(7));
+                }
+                else if (kind == ENERGY_PANEL_APPLIANCE_ROW) {
+                    energyPanel.addAppliances(Appliance.newBuilder()
+                            .setName(rs.getString(2))
+                            .setBrand(rs.getString(3))
+                            .setEnergyConsumed(obfuscatedOrHidden(rs.getString(4)))
+                            .setEnergyConsumedDaytime(obfuscatedOrHidden(rs.getString(5)))
+                            .setEnergyConsumedNight(obfuscatedOrHidden(rs.getString(6)))
+                            .build());
+                }
+                else {
+                    energyPanel.addSolarPanels(SolarPanel.newBuilder()
+                            .setName(rs.getString(2))
+                            .setBrand(rs.getString(3))
+                            .setEnergyProduced(obfuscatedOrHidden(rs.getString(7)))
+                            .build());
+                }
+            }
+            st.close();
+
+            if (!clientFound) {
+                throw new ClientDoesNotExistException(email);
+            }
+            return energyPanel.build();
+        }
+    }
+
+    // rows not yet backfilled have no obfuscated value
+    private static String obfuscatedOrHidden(String obfuscated) {
+        return obfuscated != null ? obfuscated : "***";
+    }
+
+    @Override
+    public int backfillObfuscatedValues(Obfuscation obfuscation)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // appliances and solar panels are encrypted with the pending temporary key of their client, if any
+        int updated = JdbcStorage.rewriteRows(shards, READ_APPLIANCE_IDS_TO_OBFUSCATE, READ_APPLIANCE_TO_OBFUSCATE,
+                UPDATE_APPLIANCE_OBFUSCATED_ENERGY, (row, update) -> {
+                    String[] obfuscated = obfuscation.obfuscate(row.getBytes(3), row.getBytes(2), row.getBytes(4));
+                    update.setString(1, obfuscated[0]);
+                    update.setString(2, obfuscated[1]);
+                    update.setString(3, obfuscated[2]);
+                    update.setInt(4, row.getInt(1));
+                });
+        updated += JdbcStorage.rewriteRows(shards, READ_SOLAR_PANEL_IDS_TO_OBFUSCATE, READ_SOLAR_PANEL_TO_OBFUSCATE,
+                UPDATE_SOLAR_PANEL_OBFUSCATED_ENERGY, (row, update) -> {
+                    update.setString(1, obfuscation.obfuscate(row.getBytes(3), row.getBytes(2), row.getBytes(4))[0]);
+                    update.setInt(2, row.getInt(1));
+                });
+        return updated;
+    }
+
+    @Override
+    public int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // appliances and solar panels are encrypted with the pending temporary key of their client, if any
+        return JdbcStorage.packRecords(shards, READ_APPLIANCE_IDS_TO_PACK, READ_APPLIANCE_TO_PACK, UPDATE_APPLIANCE_PACKED, packing) +
+                JdbcStorage.packRecords(shards, READ_SOLAR_PANEL_IDS_TO_PACK, READ_SOLAR_PANEL_TO_PACK, UPDATE_SOLAR_PANEL_PACKED, packing);
+    }
+}
@@ -0,0 +1,135 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+public class JdbcInvoiceRepository implements InvoiceRepository {
+
+    // Read-only queries allowed to be answered by a database replica that may lag behind the primary
+    private static final boolean STALE_INVOICES_ALLOWED = true;
+
+    private final ShardRouter shards;
+
+    public JdbcInvoiceRepository(ShardRouter shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public boolean create(String email, int year, int month, PlanType plan, int taxes, byte[] iv, byte[] energy,
+                          String obfPaymentAmount, String obfEnergyConsumed, String obfEnergyConsumedDaytime, String obfEnergyConsumedNight)
+            throws SQLException {
+        try (Connection dbConnection = shards.forClient(email).getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(CREATE_INVOICE);
+            st.setString(1, email);
+            st.setInt(2, year);
+            st.setInt(3, month);
+            st.setInt(4, plan.getNumber());
+            st.setInt(5, taxes);
+            st.setBytes(6, iv);
+
+            st.setBytes(7, energy);
+
+            st.setString(8, obfPaymentAmount);
+            st.setString(9, obfEnergyConsumed);
+            st.setString(10, obfEnergyConsumedDaytime);
+            st.setString(11, obfEnergyConsumedNight);
+
+            // (client_id, year, month) is unique
+            try {
+                st.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                if (JdbcStorage.isDuplicateKey(e)) {
+                    return false;
+                }
+                throw e;
+            } finally {
+                st.close();
+            }
+        }
+    }
+
+    @Override
+    public YearMonth readLastMonth() throws SQLException {
+        YearMonth last = null;
+        for (ConnectionPool shard : shards.all()) {
+            try (Connection dbConnection = shard.getConnection()) {
+                PreparedStatement st = dbConnection.prepareStatement(READ_LAST_INVOICE_MONTH);
+                ResultSet rs = st.executeQuery();
+                if (rs.next()) {
+                    YearMonth month = YearMonth.of(rs.getInt(1), rs.getInt(2) + 1);
+                    if (last == null || month.isAfter(last)) {
+                        last = month;
+                    }
+                }
+                st.close();
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Each page is read with an index range scan, so its cost does not depend on how many invoices came before.
+     */
+    @Override
+    public List<InvoiceRecord> readObfuscated(String email, int afterYear, int afterMonth, int limit) throws SQLException {
+        try (Connection dbConnection = shards.forClient(email).getReadConnection(STALE_INVOICES_ALLOWED)) {
+            List<InvoiceRecord> invoices = new ArrayList<>();
+
+            PreparedStatement st = dbConnection.prepareStatement(READ_INVOICES_PAGE);
+            st.setString(1, email);
+            st.setInt(2, afterYear);
+            st.setInt(3, afterYear);
+            st.setInt(4, afterMonth);
+            st.setInt(5, limit);
+            ResultSet rs = st.executeQuery();
+
+            while (rs.next()) {
+                invoices.add(new InvoiceRecord(rs.getInt(1), rs.getInt(2), rs.getInt(3), PlanType.forNumber(rs.getInt(8)),
+                        rs.getString(4), rs.getString(5), rs.getString(6), rs.getString(7)));
+            }
+            st.close();
+            return invoices;
+        }
+    }
+
+    @Override
+    public int backfillObfuscatedValues(Obfuscation obfuscation)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // invoices are never re-encrypted, they are always under the master key
+        return JdbcStorage.rewriteRows(shards, READ_INVOICE_IDS_TO_OBFUSCATE, READ_INVOICE_TO_OBFUSCATE,
+                UPDATE_INVOICE_OBFUSCATED_ENERGY, (row, update) -> {
+                    String[] obfuscated = obfuscation.obfuscate(row.getBytes(3), row.getBytes(2), null);
+                    for (int i = 0; i < 4; i++) {
+                        update.setString(i + 1, obfuscated[i]);
+                    }
+                    update.setInt(5, row.getInt(1));
+                });
+    }
+
+    @Override
+    public int packEnergyRecords(RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        // invoices are never re-encrypted, the query selects no temporary key
+        return JdbcStorage.packRecords(shards, READ_INVOICE_IDS_TO_PACK, READ_INVOICE_TO_PACK, UPDATE_INVOICE_PACKED, packing);
+    }
+}
@@ -0,0 +1,158 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.database.UnitOfWork;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage on MySQL, with the clients spread over the shards of the router by their email.
+ */
+public class JdbcStorage implements Storage {
+
+    // MySQL error code for an insert violating a unique constraint
+    private static final int ER_DUP_ENTRY = 1062;
+
+    // rows of an older version rewritten at startup in one transaction
+    private static final int REWRITE_BATCH_SIZE = 500;
+
+    private final ShardRouter shards;
+
+    private final JdbcClientRepository clients;
+    private final JdbcDeviceRepository devices;
+    private final JdbcInvoiceRepository invoices;
+    private final JdbcCompartmentKeyRepository compartmentKeys;
+
+    public JdbcStorage(ShardRouter shards) {
+        this.shards = shards;
+        this.clients = new JdbcClientRepository(shards);
+        this.devices = new JdbcDeviceRepository(shards);
+        this.invoices = new JdbcInvoiceRepository(shards);
+        this.compartmentKeys = new JdbcCompartmentKeyRepository(shards);
+    }
+
+    public ShardRouter getShards() {
+        return shards;
+    }
+
+    @Override
+    public ClientRepository clients() {
+        return clients;
+    }
+
+    @Override
+    public DeviceRepository devices() {
+        return devices;
+    }
+
+    @Override
+    public InvoiceRepository invoices() {
+        return invoices;
+    }
+
+    @Override
+    public CompartmentKeyRepository compartmentKeys() {
+        return compartmentKeys;
+    }
+
+    static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == ER_DUP_ENTRY;
+    }
+
+    /**
+     * Sets the parameters of the update of a row rewritten at startup, from the row locked for it.
+     */
+    interface RowRewrite {
+        void rewrite(ResultSet row, PreparedStatement update)
+                throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+                NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+    }
+
+    /**
+     * Packs the rows selected by the given queries, which return their id, iv, temporary key and then their values,
+     * and writes each record with the given update. Returns the number of packed rows.
+     */
+    static int packRecords(ShardRouter shards, String readIds, String readRow, String updateRow, RecordPacking packing)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        return rewriteRows(shards, readIds, readRow, updateRow, (row, update) -> {
+            int values = row.getMetaData().getColumnCount() - 3;
+            byte[][] legacyValues = new byte[values][];
+            for (int i = 0; i < values; i++) {
+                legacyValues[i] = row.getBytes(4 + i);
+            }
+            update.setBytes(1, packing.pack(legacyValues, row.getBytes(2), row.getBytes(3)));
+            update.setInt(2, row.getInt(1));
+        });
+    }
+
+    /**
+     * Rewrites the rows left from an older version in batches, each locked and committed on its own, so that the
+     * servers already running only wait for the rows of one batch. The ids of the rows left are read by readIds, given
+     * the last id of the previous batch and the batch size; readRow locks a row by its id and returns nothing if it
+     * was rewritten meanwhile. A row already rewritten is not selected again, so a restart rewrites nothing.
+     * Returns the number of rewritten rows.
+     */
+    static int rewriteRows(ShardRouter shards, String readIds, String readRow, String updateRow, RowRewrite rowRewrite)
+            throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        int rewritten = 0;
+        for (ConnectionPool shard : shards.all()) {
+            int afterId = 0;
+            List<Integer> ids;
+            while (!(ids = readIds(shard, readIds, afterId)).isEmpty()) {
+                try (UnitOfWork unitOfWork = UnitOfWork.begin(shard)) {
+                    Connection dbConnection = unitOfWork.getConnection();
+
+                    PreparedStatement st = dbConnection.prepareStatement(readRow);
+                    PreparedStatement st2 = dbConnection.prepareStatement(updateRow);
+                    for (int id : ids) {
+                        st.setInt(1, id);
+                        ResultSet rs = st.executeQuery();
+                        if (rs.next()) {
+                            rowRewrite.rewrite(rs, st2);
+                            st2.addBatch();
+                            rewritten++;
+                        }
+                        rs.close();
+                    }
+                    st.close();
+                    st2.executeBatch();
+                    st2.close();
+
+                    unitOfWork.commit();
+                }
+                // the next batch starts after this one, a row found rewritten meanwhile is not read again
+                afterId = ids.get(ids.size() - 1);
+            }
+        }
+        return rewritten;
+    }
+
+    private static List<Integer> readIds(ConnectionPool shard, String readIds, int afterId) throws SQLException {
+        try (Connection dbConnection = shard.getConnection()) {
+            List<Integer> ids = new ArrayList<>();
+            PreparedStatement st = dbConnection.prepareStatement(readIds);
+            st.setInt(1, afterId);
+            st.setInt(2, REWRITE_BATCH_SIZE);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+            st.close();
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the obfuscated values of an encrypted record, used to fill values stored before they were kept obfuscated.
+ */
+public interface Obfuscation {
+
+    /**
+     * Decrypts a record stored with the given iv and temporary key (null when it is encrypted with the master key)
+     * and returns the obfuscated text of each of its values.
+     */
+    String[] obfuscate(byte[] record, byte[] iv, byte[] lastTemporaryKey)
+            throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
@@ -0,0 +1,30 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Moves the data of a compartment to another key. The storage only hands over the stored values,
+ * the keys never leave the webserver.
+ */
+public interface ReEncryption {
+
+    byte[] newIv() throws NoSuchAlgorithmException;
+
+    /**
+     * Decrypts a value stored with the given iv and temporary key (null when it is encrypted with the master key)
+     * and encrypts it again with the new key and iv.
+     */
+    byte[] reEncrypt(byte[] value, byte[] oldIv, byte[] newIv, byte[] lastTemporaryKey)
+            throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+
+    /**
+     * Returns the temporary key to store with the re-encrypted data, null when it is back under the master key.
+     */
+    byte[] newTemporaryKey() throws InvalidKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException;
+}
@@ -0,0 +1,24 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encrypts the energy record of a new device or a new personal value of a client. The iv and key of the compartment
+ * are only known once the storage holds it locked, so that a key request meanwhile cannot leave the value
+ * under an old iv or the master key.
+ */
+public interface RecordEncryption {
+
+    /**
+     * Encrypts the record with the given iv and the temporary key of the compartment
+     * (null when it is encrypted with the master key).
+     */
+    byte[] encrypt(byte[] iv, byte[] lastTemporaryKey)
+            throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
@@ -0,0 +1,23 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Packs the energy values of a row stored with one ciphertext per value into a single encrypted record,
+ * used to convert the rows written before records existed.
+ */
+public interface RecordPacking {
+
+    /**
+     * Decrypts the values stored with the given iv and temporary key (null when they are encrypted with the master key)
+     * and returns them as one record encrypted with the same key and iv.
+     */
+    byte[] pack(byte[][] values, byte[] iv, byte[] lastTemporaryKey)
+            throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+            NoSuchAlgorithmException, BadPaddingException, InvalidKeyException;
+}
@@ -0,0 +1,17 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+/**
+ * Where the webserver keeps its data: a MySQL database ({@link JdbcStorage}) or the process memory
+ * ({@link InMemoryStorage}), the latter for benchmarks and single-node lab deployments.
+ * Values are handed to the storage already encrypted and obfuscated, it never sees a key.
+ */
+public interface Storage {
+
+    ClientRepository clients();
+
+    DeviceRepository devices();
+
+    InvoiceRepository invoices();
+
+    CompartmentKeyRepository compartmentKeys();
+}
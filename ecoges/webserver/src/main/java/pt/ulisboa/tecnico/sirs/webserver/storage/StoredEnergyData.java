@@ -0,0 +1,36 @@
+package pt.ulisboa.tecnico.sirs.webserver.storage;
+
+/**
+ * Encrypted energy totals of a client, with the version they were read at and the temporary key
+ * they are encrypted with (null when encrypted with the master key).
+ * The totals are a single record of the energy consumed, consumed daytime, consumed night and produced.
+ */
+public class StoredEnergyData {
+    private final int version;
+    private final byte[] iv;
+    private final byte[] lastTemporaryKey;
+    private final byte[] energy;
+
+    public StoredEnergyData(int version, byte[] iv, byte[] lastTemporaryKey, byte[] energy) {
+        this.version = version;
+        this.iv = iv;
+        this.lastTemporaryKey = lastTemporaryKey;
+        this.energy = energy;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public byte[] getLastTemporaryKey() {
+        return lastTemporaryKey;
+    }
+
+    public byte[] getEnergy() {
+        return energy;
+    }
+}
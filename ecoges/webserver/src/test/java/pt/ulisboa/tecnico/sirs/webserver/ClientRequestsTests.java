@@ -5,7 +5,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import pt.ulisboa.tecnico.sirs.security.Security;
 import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
+import pt.ulisboa.tecnico.sirs.webserver.storage.InMemoryStorage;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.InvoicePage;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
 
@@ -16,26 +18,18 @@ import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.sql.*;
-
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.CREATE_COMPARTMENT_KEYS_TABLE;
+import java.time.YearMonth;
 
 public class ClientRequestsTests {
 
     private static Webserver webserver;
+    private static InMemoryStorage storage;
 
     private static KeyPair keyPair;
     private static final String KEY_STORE_FILE = "src/main/resources/webserver.keystore";
     private static final String KEY_STORE_PASSWORD = "mypasswebserver";
     private static final String KEY_STORE_ALIAS_WEBSERVER = "webserver";
 
-    // Database
-    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
-    private static final String DATABASE_USER = "ecoges";
-    private static final String DATABASE_PASSWORD = "admin";
-    private static Connection dbConnection = null;
-    private static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
-
     // Data compartments
     private static SecretKey personalInfoKey;
     private static SecretKey energyPanelKey;
@@ -46,10 +40,11 @@ public class ClientRequestsTests {
     private static final String token = "";
 
     @BeforeClass
-    public static void setup() throws ClassNotFoundException, SQLException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+    public static void setup() throws SQLException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
         loadKeysCertificates();
-        setupDatabase();
-        webserver = new Webserver(dbConnection, personalInfoKey, energyPanelKey, keyPair);
+        generateCompartmentKeys();
+        storage = new InMemoryStorage();
+        webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, null);
         webserver.register("name", email, password, "new address", "iban", PlanType.FLAT_RATE.name());
     }
 
@@ -112,42 +107,63 @@ public class ClientRequestsTests {
         Assert.assertEquals(1, energyPanel.getSolarPanelsCount());
     }
 
-    public static void setupDatabase() throws ClassNotFoundException, SQLException {
-        Class.forName(DATABASE_DRIVER);
-        dbConnection = DriverManager.getConnection(DBURL, DATABASE_USER, DATABASE_PASSWORD);
-
-        Statement statement;
-
-        try {
-            boolean reachable = dbConnection.isValid(25);
-            if (!reachable) {
-                throw new SQLException("Unreachable database connection.");
-            }
-
-            statement = dbConnection.createStatement();
-            statement.execute(DROP_INVOICE_TABLE);
-            statement.execute(DROP_SOLAR_PANEL_TABLE);
-            statement.execute(DROP_APPLIANCE_TABLE);
-            statement.execute(DROP_CLIENT_TABLE);
-            statement.execute(DROP_COMPARTMENT_KEYS_TABLE);
-
-            statement = dbConnection.createStatement();
-            statement.execute(CREATE_CLIENT_TABLE);
-            statement.execute(CREATE_APPLIANCE_TABLE);
-            statement.execute(CREATE_SOLAR_PANEL_TABLE);
-            statement.execute(CREATE_INVOICE_TABLE);
-            statement.execute(CREATE_COMPARTMENT_KEYS_TABLE);
-
-            generateCompartmentKeys();
-
-            System.out.println("Database is ready!");
-        } catch (SQLException e) {
-            System.out.println("Could not set up database: "+ e.getMessage());
-            System.exit(1);
-        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | NoSuchPaddingException | InvalidKeyException e) {
-            System.out.println("Could not generate compartment keys: "+ e.getMessage());
-            System.exit(1);
+    @Test
+    public void discardPendingTemporaryKeyTest() throws SQLException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, InvalidSessionTokenException, NoSuchAlgorithmException, ClientDoesNotExistException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+        webserver.checkEnergyPanel(email, token); // client metadata is now cached
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        webserver.reEncryptEnergyDataWithNewKey(keyGen.generateKey(), email);
+
+        Assert.assertTrue(storage.clients().readMetadata(email).hasPendingTemporaryEnergyKey());
+
+        // the pending temporary key must be noticed and discarded
+        webserver.checkEnergyPanel(email, token);
+        Assert.assertFalse(storage.clients().readMetadata(email).hasPendingTemporaryEnergyKey());
+    }
+
+    @Test
+    public void missingClientTest() {
+        // fails like the database does, instead of ignoring the request
+        String missingEmail = "junit2-missing-clientemail";
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updateToken(missingEmail, ""));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updateAddress(missingEmail, (iv, lastTemporaryKey) -> new byte[] { 1 }, "a"));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updatePlan(missingEmail, PlanType.FLAT_RATE));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.devices().addAppliance(missingEmail, "a1", "b1",
+                Security.generateRandom(), (iv, lastTemporaryKey) -> new byte[] { 1 }, "1*", "1*", "1*"));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.devices().addSolarPanel(missingEmail, "s1", "b1",
+                Security.generateRandom(), (iv, lastTemporaryKey) -> new byte[] { 1 }, "1*"));
+    }
+
+    @Test
+    public void checkInvoicesPageTest() throws SQLException, ClientAlreadyExistsException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, InvalidSessionTokenException, ClientDoesNotExistException {
+        String invoicesEmail = "junit2-invoices-clientemail";
+        webserver.register("name", invoicesEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+
+        int[][] issued = { {2022, 10}, {2022, 11}, {2023, 0}, {2023, 1}, {2023, 2} };
+        for (int[] yearMonth : issued) {
+            storage.invoices().create(invoicesEmail, yearMonth[0], yearMonth[1], PlanType.FLAT_RATE, 25, null, null, "1*", "1*", "1*", "1*");
         }
+        // billing resumes after the last invoiced month on restart
+        Assert.assertEquals(YearMonth.of(2023, 3), storage.invoices().readLastMonth());
+
+        InvoicePage page = webserver.checkInvoicesPage(invoicesEmail, token, null, 2);
+        Assert.assertEquals(2, page.getInvoicesCount());
+        Assert.assertEquals(2022, page.getInvoices(0).getYear());
+        Assert.assertFalse(page.getLast());
+
+        page = webserver.checkInvoicesPage(invoicesEmail, token, page.getNext(), 2);
+        Assert.assertEquals(2, page.getInvoicesCount());
+        Assert.assertEquals(2023, page.getInvoices(0).getYear());
+        Assert.assertFalse(page.getLast());
+
+        page = webserver.checkInvoicesPage(invoicesEmail, token, page.getNext(), 2);
+        Assert.assertEquals(1, page.getInvoicesCount());
+        Assert.assertEquals(2, page.getNext().getMonth());
+        Assert.assertTrue(page.getLast());
+
+        // the pages together hold the same invoices as the unpaginated request
+        Assert.assertEquals(5, webserver.checkInvoices(invoicesEmail, token).size());
     }
 
     private static void loadKeysCertificates() throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
@@ -164,44 +180,10 @@ public class ClientRequestsTests {
         System.out.println("Successfully loaded key pairs and certificate from Java Keystore!");
     }
 
-    private static void generateCompartmentKeys() throws NoSuchAlgorithmException, SQLException, IllegalBlockSizeException,
-            NoSuchPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-
-        // Check if keys already exist
-        st = dbConnection.prepareStatement(READ_COMPARTMENT_KEYS);
-        rs = st.executeQuery();
-
-        if (rs.next()){
-            personalInfoKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(1));
-            energyPanelKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(2));
-            st.close();
-            return;
-        }
-        st.close();
-
-        System.out.println("Generating compartment keys...");
-
-
-        // Generate key for personal info compartment
+    private static void generateCompartmentKeys() throws NoSuchAlgorithmException {
         KeyGenerator keyGen = KeyGenerator.getInstance("AES");
         keyGen.init(256);
         personalInfoKey = keyGen.generateKey();
-        byte[] wrappedPersonalInfoKey = Security.wrapKey(keyPair.getPublic(), personalInfoKey);
-
-        // Generate key for energy panel compartment
-        keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(256);
         energyPanelKey = keyGen.generateKey();
-        byte[] wrappedEnergyPanelKey = Security.wrapKey(keyPair.getPublic(), energyPanelKey);
-
-        // Upload keys to database
-        st = dbConnection.prepareStatement(CREATE_COMPARTMENT_KEYS);
-        st.setBytes(1, wrappedPersonalInfoKey);
-        st.setBytes(2, wrappedEnergyPanelKey);
-        st.executeUpdate();
-        st.close();
     }
 }
@@ -3,9 +3,9 @@ package pt.ulisboa.tecnico.sirs.webserver;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
-import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.security.SessionTokens;
 import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
-import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
+import pt.ulisboa.tecnico.sirs.webserver.storage.InMemoryStorage;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
 
 import javax.crypto.*;
@@ -17,24 +17,16 @@ import java.security.cert.CertificateException;
 import java.sql.*;
 import java.util.ArrayList;
 
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
-
 public class ClientSessionTests {
 
     private static Webserver webserver;
+    private static InMemoryStorage storage;
 
     private static KeyPair keyPair;
     private static final String KEY_STORE_FILE = "src/main/resources/webserver.keystore";
     private static final String KEY_STORE_PASSWORD = "mypasswebserver";
     private static final String KEY_STORE_ALIAS_WEBSERVER = "webserver";
 
-    // Database
-    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
-    private static final String DATABASE_USER = "ecoges";
-    private static final String DATABASE_PASSWORD = "admin";
-    private static Connection dbConnection = null;
-    private static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
-
     // Data compartments
     private static SecretKey personalInfoKey;
     private static SecretKey energyPanelKey;
@@ -45,10 +37,11 @@ public class ClientSessionTests {
     private static String token = "";
 
     @BeforeClass
-    public static void setup() throws ClassNotFoundException, SQLException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+    public static void setup() throws SQLException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
         loadKeysCertificates();
-        setupDatabase();
-        webserver = new Webserver(dbConnection, personalInfoKey, energyPanelKey, keyPair);
+        generateCompartmentKeys();
+        storage = new InMemoryStorage();
+        webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, null);
         webserver.register("name", email, password, "address", "iban", PlanType.FLAT_RATE.name());
     }
 
@@ -77,42 +70,28 @@ public class ClientSessionTests {
             webserver.login(email, "wrong password"));
     }
 
-    public static void setupDatabase() throws ClassNotFoundException, SQLException {
-        Class.forName(DATABASE_DRIVER);
-        dbConnection = DriverManager.getConnection(DBURL, DATABASE_USER, DATABASE_PASSWORD);
-
-        Statement statement;
-
-        try {
-            boolean reachable = dbConnection.isValid(25);
-            if (!reachable) {
-                throw new SQLException("Unreachable database connection.");
-            }
-
-            statement = dbConnection.createStatement();
-            statement.execute(DROP_INVOICE_TABLE);
-            statement.execute(DROP_SOLAR_PANEL_TABLE);
-            statement.execute(DROP_APPLIANCE_TABLE);
-            statement.execute(DROP_CLIENT_TABLE);
-            statement.execute(DROP_COMPARTMENT_KEYS_TABLE);
-
-            statement = dbConnection.createStatement();
-            statement.execute(CREATE_CLIENT_TABLE);
-            statement.execute(CREATE_APPLIANCE_TABLE);
-            statement.execute(CREATE_SOLAR_PANEL_TABLE);
-            statement.execute(CREATE_INVOICE_TABLE);
-            statement.execute(CREATE_COMPARTMENT_KEYS_TABLE);
-
-            generateCompartmentKeys();
-
-            System.out.println("Database is ready!");
-        } catch (SQLException e) {
-            System.out.println("Could not set up database: "+ e.getMessage());
-            System.exit(1);
-        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | NoSuchPaddingException | InvalidKeyException e) {
-            System.out.println("Could not generate compartment keys: "+ e.getMessage());
-            System.exit(1);
-        }
+    @Test
+    public void signedTokenLogoutTest() throws Exception {
+        // two webservers sharing the session key
+        SecretKey sessionKey = SessionTokens.generateKey();
+        Webserver first = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, new SessionTokens(sessionKey));
+        Webserver second = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, new SessionTokens(sessionKey));
+
+        String signedToken = first.login(email, password).get(1);
+        second.validateSession(email, signedToken);
+
+        first.logout(email, signedToken);
+        Assert.assertThrows(InvalidSessionTokenException.class, () -> first.validateSession(email, signedToken));
+
+        // the logout is seen by the other webserver on its next sync
+        second.syncSessionRevocations();
+        Assert.assertThrows(InvalidSessionTokenException.class, () -> second.validateSession(email, signedToken));
+
+        // logging in again gives a token valid on both
+        String newToken = second.login(email, password).get(1);
+        first.syncSessionRevocations();
+        first.validateSession(email, newToken);
+        second.validateSession(email, newToken);
     }
 
     private static void loadKeysCertificates() throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
@@ -129,44 +108,10 @@ public class ClientSessionTests {
         System.out.println("Successfully loaded key pairs and certificate from Java Keystore!");
     }
 
-    private static void generateCompartmentKeys() throws NoSuchAlgorithmException, SQLException, IllegalBlockSizeException,
-            NoSuchPaddingException, InvalidKeyException {
-
-        PreparedStatement st;
-        ResultSet rs;
-
-        // Check if keys already exist
-        st = dbConnection.prepareStatement(READ_COMPARTMENT_KEYS);
-        rs = st.executeQuery();
-
-        if (rs.next()){
-            personalInfoKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(1));
-            energyPanelKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(2));
-            st.close();
-            return;
-        }
-        st.close();
-
-        System.out.println("Generating compartment keys...");
-
-
-        // Generate key for personal info compartment
+    private static void generateCompartmentKeys() throws NoSuchAlgorithmException {
         KeyGenerator keyGen = KeyGenerator.getInstance("AES");
         keyGen.init(256);
         personalInfoKey = keyGen.generateKey();
-        byte[] wrappedPersonalInfoKey = Security.wrapKey(keyPair.getPublic(), personalInfoKey);
-
-        // Generate key for energy panel compartment
-        keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(256);
         energyPanelKey = keyGen.generateKey();
-        byte[] wrappedEnergyPanelKey = Security.wrapKey(keyPair.getPublic(), energyPanelKey);
-
-        // Upload keys to database
-        st = dbConnection.prepareStatement(CREATE_COMPARTMENT_KEYS);
-        st.setBytes(1, wrappedPersonalInfoKey);
-        st.setBytes(2, wrappedEnergyPanelKey);
-        st.executeUpdate();
-        st.close();
     }
 }
@@ -0,0 +1,173 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.InvoicePage;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PersonalInfo;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
+import pt.ulisboa.tecnico.sirs.webserver.storage.InMemoryStorage;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.*;
+import java.time.YearMonth;
+import java.util.ArrayList;
+
+/**
+ * Runs the client requests on the in-memory storage, no database is needed.
+ */
+public class InMemoryStorageTests {
+
+    private static Webserver webserver;
+    private static InMemoryStorage storage;
+
+    private static KeyPair keyPair;
+    private static final String KEY_STORE_FILE = "src/main/resources/webserver.keystore";
+    private static final String KEY_STORE_PASSWORD = "mypasswebserver";
+    private static final String KEY_STORE_ALIAS_WEBSERVER = "webserver";
+
+    // Client credentials
+    private static final String email = "junit4-clientemail";
+    private static final String password = "junit4!StrongPassword";
+    private static String token;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(Files.newInputStream(Paths.get(KEY_STORE_FILE)), KEY_STORE_PASSWORD.toCharArray());
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey(KEY_STORE_ALIAS_WEBSERVER, KEY_STORE_PASSWORD.toCharArray());
+        keyPair = new KeyPair(keyStore.getCertificate(KEY_STORE_ALIAS_WEBSERVER).getPublicKey(), privateKey);
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey personalInfoKey = keyGen.generateKey();
+        SecretKey energyPanelKey = keyGen.generateKey();
+
+        storage = new InMemoryStorage();
+        webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, null);
+        webserver.register("name", email, password, "address", "iban", PlanType.FLAT_RATE.name());
+        token = webserver.login(email, password).get(1);
+    }
+
+    @Test
+    public void registerClientAlreadyExistsTest() {
+        Assert.assertThrows(ClientAlreadyExistsException.class, () ->
+                webserver.register("name", email, password, "address", "iban", PlanType.FLAT_RATE.name()));
+    }
+
+    @Test
+    public void loginTest() throws Exception {
+        String sessionEmail = "junit4-session-clientemail";
+        webserver.register("session name", sessionEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+
+        Assert.assertThrows(WrongPasswordException.class, () -> webserver.login(sessionEmail, "wrong password"));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> webserver.login("invalid email", password));
+
+        ArrayList<String> cred = webserver.login(sessionEmail, password);
+        Assert.assertEquals("session name", cred.get(0));
+
+        webserver.logout(sessionEmail, cred.get(1));
+        Assert.assertThrows(InvalidSessionTokenException.class, () -> webserver.checkPersonalInfo(sessionEmail, cred.get(1)));
+    }
+
+    @Test
+    public void updatePersonalInfoTest() throws Exception {
+        String personalEmail = "junit4-personal-clientemail";
+        webserver.register("name", personalEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        String personalToken = webserver.login(personalEmail, password).get(1);
+
+        webserver.updateAddress(personalEmail, "new address", personalToken);
+        webserver.updatePlan(personalEmail, PlanType.BI_HOURLY_RATE.name(), personalToken);
+
+        PersonalInfo personalInfo = webserver.checkPersonalInfo(personalEmail, personalToken);
+        Assert.assertEquals(Webserver.obfuscate("new address"), personalInfo.getAddress());
+        Assert.assertEquals(PlanType.BI_HOURLY_RATE, personalInfo.getPlan());
+    }
+
+    @Test
+    public void energyPanelTest() throws Exception {
+        String energyEmail = "junit4-energy-clientemail";
+        webserver.register("name", energyEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        String energyToken = webserver.login(energyEmail, password).get(1);
+
+        webserver.addApplicance(energyEmail, "a1", "b1", energyToken);
+        webserver.addApplicance(energyEmail, "a1", "b2", energyToken);
+        webserver.addSolarPanel(energyEmail, "s1", "b1", energyToken);
+        Assert.assertThrows(ApplianceAlreadyExistsException.class, () ->
+                webserver.addApplicance(energyEmail, "a1", "b1", energyToken));
+        Assert.assertThrows(SolarPanelAlreadyExistsException.class, () ->
+                webserver.addSolarPanel(energyEmail, "s1", "b1", energyToken));
+
+        // the totals include the energy of the devices just added
+        EnergyPanel energyPanel = webserver.checkEnergyPanel(energyEmail, energyToken);
+        Assert.assertEquals(2, energyPanel.getAppliancesCount());
+        Assert.assertEquals(1, energyPanel.getSolarPanelsCount());
+        Assert.assertNotEquals(Webserver.obfuscate(Float.toString(0)), energyPanel.getEnergyConsumed());
+    }
+
+    @Test
+    public void discardPendingTemporaryKeyTest() throws Exception {
+        String keyEmail = "junit4-key-clientemail";
+        webserver.register("name", keyEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        String keyToken = webserver.login(keyEmail, password).get(1);
+        webserver.addApplicance(keyEmail, "a1", "b1", keyToken);
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        webserver.reEncryptEnergyDataWithNewKey(keyGen.generateKey(), keyEmail);
+        Assert.assertTrue(storage.clients().readMetadata(keyEmail).hasPendingTemporaryEnergyKey());
+
+        // the pending temporary key must be noticed and discarded, and the data still readable with the master key
+        EnergyPanel energyPanel = webserver.checkEnergyPanel(keyEmail, keyToken);
+        Assert.assertFalse(storage.clients().readMetadata(keyEmail).hasPendingTemporaryEnergyKey());
+        Assert.assertNotEquals(Webserver.obfuscate(Float.toString(0)), energyPanel.getEnergyConsumed());
+    }
+
+    @Test
+    public void warmUpClientMetadataCacheTest() throws Exception {
+        String loggedOutEmail = "junit4-warmup-clientemail";
+        webserver.register("name", loggedOutEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        webserver.logout(loggedOutEmail, webserver.login(loggedOutEmail, password).get(1));
+
+        Assert.assertEquals(0, webserver.warmUpClientMetadataCache(0));
+        Assert.assertEquals(1, webserver.warmUpClientMetadataCache(1));
+        Assert.assertTrue(storage.clients().readMetadataOfOpenSessions(Integer.MAX_VALUE).containsKey(email));
+        Assert.assertFalse(storage.clients().readMetadataOfOpenSessions(Integer.MAX_VALUE).containsKey(loggedOutEmail));
+    }
+
+    @Test
+    public void checkInvoicesPageTest() throws Exception {
+        int[][] issued = { {2022, 10}, {2022, 11}, {2023, 0}, {2023, 1}, {2023, 2} };
+        for (int[] yearMonth : issued) {
+            Assert.assertTrue(storage.invoices().create(email, yearMonth[0], yearMonth[1], PlanType.FLAT_RATE, 25,
+                    null, null, "1*", "1*", "1*", "1*"));
+        }
+        // a month is only billed once
+        Assert.assertFalse(storage.invoices().create(email, 2023, 2, PlanType.FLAT_RATE, 25,
+                null, null, "1*", "1*", "1*", "1*"));
+        // billing resumes after the last invoiced month on restart
+        Assert.assertEquals(YearMonth.of(2023, 3), storage.invoices().readLastMonth());
+
+        InvoicePage page = webserver.checkInvoicesPage(email, token, null, 2);
+        Assert.assertEquals(2, page.getInvoicesCount());
+        Assert.assertEquals(2022, page.getInvoices(0).getYear());
+        Assert.assertFalse(page.getLast());
+
+        page = webserver.checkInvoicesPage(email, token, page.getNext(), 2);
+        Assert.assertEquals(2, page.getInvoicesCount());
+        Assert.assertEquals(2023, page.getInvoices(0).getYear());
+        Assert.assertFalse(page.getLast());
+
+        page = webserver.checkInvoicesPage(email, token, page.getNext(), 2);
+        Assert.assertEquals(1, page.getInvoicesCount());
+        Assert.assertEquals(2, page.getNext().getMonth());
+        Assert.assertTrue(page.getLast());
+
+        Assert.assertEquals(5, webserver.checkInvoices(email, token).size());
+    }
+}
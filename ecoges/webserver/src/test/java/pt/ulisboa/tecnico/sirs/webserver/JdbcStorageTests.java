@@ -0,0 +1,390 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.security.RecordCodec;
+import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
+import pt.ulisboa.tecnico.sirs.webserver.storage.JdbcInvoiceRepository;
+import pt.ulisboa.tecnico.sirs.webserver.storage.JdbcStorage;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.CompartmentType;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.EnergyPanel;
+import pt.ulisboa.tecnico.sirs.contracts.grpc.PlanType;
+
+import javax.crypto.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.sql.*;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+/**
+ * Runs the client requests that depend on how the data is stored in MySQL, which must be running on localhost.
+ */
+public class JdbcStorageTests {
+
+    private static Webserver webserver;
+    private static JdbcStorage storage;
+
+    private static KeyPair keyPair;
+    private static final String KEY_STORE_FILE = "src/main/resources/webserver.keystore";
+    private static final String KEY_STORE_PASSWORD = "mypasswebserver";
+    private static final String KEY_STORE_ALIAS_WEBSERVER = "webserver";
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+    private static Connection dbConnection = null;
+    private static ConnectionPool dbPool = null;
+    private static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
+
+    // Data compartments
+    private static SecretKey personalInfoKey;
+    private static SecretKey energyPanelKey;
+
+    // Client credentials
+    private static final String email = "junit6-clientemail";
+    private static final String password = "junit6!StrongPassword";
+    private static final String token = "";
+
+    @BeforeClass
+    public static void setup() throws ClassNotFoundException, SQLException, UnrecoverableKeyException, CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+        loadKeysCertificates();
+        setupDatabase();
+        storage = new JdbcStorage(new ShardRouter(dbPool));
+        webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, null);
+        webserver.register("name", email, password, "address", "iban", PlanType.FLAT_RATE.name());
+    }
+
+    @Test
+    public void missingClientTest() {
+        String missingEmail = "junit6-missing-clientemail";
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updateToken(missingEmail, ""));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updateAddress(missingEmail, (iv, lastTemporaryKey) -> new byte[] { 1 }, "a"));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.clients().updatePlan(missingEmail, PlanType.FLAT_RATE));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.devices().addAppliance(missingEmail, "a1", "b1",
+                Security.generateRandom(), (iv, lastTemporaryKey) -> new byte[] { 1 }, "1*", "1*", "1*"));
+        Assert.assertThrows(ClientDoesNotExistException.class, () -> storage.devices().addSolarPanel(missingEmail, "s1", "b1",
+                Security.generateRandom(), (iv, lastTemporaryKey) -> new byte[] { 1 }, "1*"));
+    }
+
+    @Test
+    public void discardPendingTemporaryKeyTest() throws SQLException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, InvalidSessionTokenException, NoSuchAlgorithmException, ClientDoesNotExistException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+        webserver.checkEnergyPanel(email, token); // client metadata is now cached
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        webserver.reEncryptEnergyDataWithNewKey(keyGen.generateKey(), email);
+
+        // the pending temporary key must be noticed and discarded
+        webserver.checkEnergyPanel(email, token);
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement(READ_CLIENT_LAST_TEMPORARY_ENERGY_KEY);
+            st.setString(1, email);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertNull(rs.getBytes(1));
+            st.close();
+        }
+    }
+
+    @Test
+    public void backfillObfuscatedColumnsTest() throws SQLException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, InvalidSessionTokenException, NoSuchAlgorithmException, ClientDoesNotExistException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, ApplianceAlreadyExistsException, ClientAlreadyExistsException {
+        String backfillEmail = "junit6-backfill-clientemail";
+        webserver.register("name", backfillEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        webserver.addApplicance(backfillEmail, "a1", "b1", token);
+        EnergyPanel energyPanel = webserver.checkEnergyPanel(backfillEmail, token);
+
+        // rows stored before the obfuscated columns existed
+        try (Connection connection = dbPool.getConnection()) {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("UPDATE appliance SET obf_energyConsumed = NULL, obf_energyConsumedDaytime = NULL, obf_energyConsumedNight = NULL");
+            statement.close();
+        }
+
+        Assert.assertTrue(webserver.backfillObfuscatedColumns() > 0);
+        Assert.assertEquals(energyPanel, webserver.checkEnergyPanel(backfillEmail, token));
+        Assert.assertEquals(0, webserver.backfillObfuscatedColumns());
+    }
+
+    @Test
+    public void packEnergyRecordsTest() throws Exception {
+        String packEmail = "junit6-pack-clientemail";
+        webserver.register("name", packEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        webserver.addApplicance(packEmail, "a1", "b1", token);
+
+        // an appliance stored before records existed, with each value encrypted on its own
+        float[] values = { 30.5f, 20.25f, 10.25f };
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement("SELECT a.id, a.iv FROM appliance a JOIN client c ON a.client_id = c.id WHERE c.email = ?");
+            st.setString(1, packEmail);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            int id = rs.getInt(1);
+            byte[] iv = rs.getBytes(2);
+            st.close();
+
+            st = connection.prepareStatement("UPDATE appliance SET energy = NULL, energyConsumed = ?, energyConsumedDaytime = ?, energyConsumedNight = ? WHERE id = ?");
+            for (int i = 0; i < values.length; i++) {
+                // stored as CBC ciphertexts without a version back then
+                byte[] cipherText = Security.encryptData(Float.toString(values[i]).getBytes(), energyPanelKey, iv, Security.CipherMode.CBC);
+                st.setBytes(i + 1, Arrays.copyOfRange(cipherText, 1, cipherText.length));
+            }
+            st.setInt(4, id);
+            st.executeUpdate();
+            st.close();
+
+            Assert.assertTrue(webserver.packEnergyRecords() > 0);
+
+            st = connection.prepareStatement("SELECT iv, energy, energyConsumed FROM appliance WHERE id = ?");
+            st.setInt(1, id);
+            rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertArrayEquals(values, RecordCodec.decrypt(energyPanelKey, rs.getBytes(1), rs.getBytes(2)), 0);
+            Assert.assertNull(rs.getBytes(3));
+            st.close();
+        }
+        Assert.assertEquals(0, webserver.packEnergyRecords());
+    }
+
+    @Test
+    public void concurrentAddApplianceTest() throws Exception {
+        String concurrentEmail = "junit6-concurrent-clientemail";
+        webserver.register("name", concurrentEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+
+        int appliances = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> additions = new ArrayList<>();
+        for (int i = 0; i < appliances; i++) {
+            String name = "a" + i;
+            additions.add(executor.submit(() -> {
+                webserver.addApplicance(concurrentEmail, name, "b1", token);
+                return null;
+            }));
+        }
+        for (Future<?> addition : additions) {
+            addition.get();
+        }
+        executor.shutdown();
+
+        // reading the energy panel writes the energy accumulated for the client
+        webserver.checkEnergyPanel(concurrentEmail, token);
+
+        // no addition is lost: the client total is the sum of its appliances
+        float sum = 0;
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement("SELECT a.iv, a.energy FROM appliance a JOIN client c ON a.client_id = c.id WHERE c.email = ?");
+            st.setString(1, concurrentEmail);
+            ResultSet rs = st.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                sum += RecordCodec.decrypt(energyPanelKey, rs.getBytes(1), rs.getBytes(2))[0];
+                count++;
+            }
+            st.close();
+            Assert.assertEquals(appliances, count);
+        }
+        Assert.assertEquals(sum, readEnergyConsumed(concurrentEmail), 0.01f);
+    }
+
+    @Test
+    public void addApplianceWithTemporaryKeyTest() throws Exception {
+        String temporaryEmail = "junit6-temporary-clientemail";
+        webserver.register("name", temporaryEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        webserver.addApplicance(temporaryEmail, "a1", "b1", token);
+        webserver.checkEnergyPanel(temporaryEmail, token); // client metadata is now cached
+
+        // another webserver replica hands a temporary key to a department
+        Webserver replica = new Webserver(dbPool, personalInfoKey, energyPanelKey, keyPair);
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        replica.reEncryptEnergyDataWithNewKey(keyGen.generateKey(), temporaryEmail);
+
+        // the appliance is encrypted with the temporary key in force, not with the master key of the stale cache
+        webserver.addApplicance(temporaryEmail, "a2", "b1", token);
+        replica.discardTemporaryKey(temporaryEmail, CompartmentType.ENERGY_DATA);
+
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement("SELECT a.iv, a.energy FROM appliance a JOIN client c ON a.client_id = c.id WHERE c.email = ?");
+            st.setString(1, temporaryEmail);
+            ResultSet rs = st.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                RecordCodec.decrypt(energyPanelKey, rs.getBytes(1), rs.getBytes(2));
+                count++;
+            }
+            st.close();
+            Assert.assertEquals(2, count);
+        }
+    }
+
+    @Test
+    public void updateAddressAfterKeyRotationTest() throws Exception {
+        String rotationEmail = "junit6-rotation-clientemail";
+        webserver.register("name", rotationEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+        webserver.updateAddress(rotationEmail, "first address", token);
+
+        // another webserver replica hands a temporary key to a department, which acknowledges it
+        Webserver replica = new Webserver(dbPool, personalInfoKey, energyPanelKey, keyPair);
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        replica.reEncryptPersonalDataWithNewKey(keyGen.generateKey(), rotationEmail);
+        replica.discardTemporaryKey(rotationEmail, CompartmentType.PERSONAL_DATA);
+
+        // the address is encrypted with the iv stored by the replica, not with the one read before
+        webserver.updateAddress(rotationEmail, "second address", token);
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA);
+            st.setString(1, rotationEmail);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals("second address", new String(Security.decryptData(rs.getBytes(2), personalInfoKey, rs.getBytes(1))));
+            Assert.assertEquals("iban", new String(Security.decryptData(rs.getBytes(3), personalInfoKey, rs.getBytes(1))));
+            st.close();
+        }
+    }
+
+    @Test
+    public void readLastMonthTest() throws SQLException, ClientAlreadyExistsException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException {
+        String invoicesEmail = "junit6-invoices-clientemail";
+        webserver.register("name", invoicesEmail, password, "address", "iban", PlanType.FLAT_RATE.name());
+
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement("INSERT INTO invoice(client_id, year, month, plan, taxes, obf_paymentAmount) " +
+                    "VALUES((SELECT id FROM client WHERE email = ?), ?, ?, ?, 25, '1*')");
+            int[][] issued = { {2022, 10}, {2022, 11}, {2023, 0}, {2023, 1}, {2023, 2} };
+            for (int[] yearMonth : issued) {
+                st.setString(1, invoicesEmail);
+                st.setInt(2, yearMonth[0]);
+                st.setInt(3, yearMonth[1]);
+                st.setInt(4, PlanType.FLAT_RATE.getNumber());
+                st.executeUpdate();
+            }
+            st.close();
+        }
+        // billing resumes after the last invoiced month on restart
+        Assert.assertEquals(YearMonth.of(2023, 3), new JdbcInvoiceRepository(new ShardRouter(dbPool)).readLastMonth());
+    }
+
+    private float readEnergyConsumed(String clientEmail) throws SQLException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        try (Connection connection = dbPool.getConnection()) {
+            PreparedStatement st = connection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_ENERGY_DATA);
+            st.setString(1, clientEmail);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            float energyConsumed = RecordCodec.decrypt(energyPanelKey, rs.getBytes(1), rs.getBytes(3))[0];
+            st.close();
+            return energyConsumed;
+        }
+    }
+
+    public static void setupDatabase() throws ClassNotFoundException, SQLException {
+        Class.forName(DATABASE_DRIVER);
+        dbConnection = DriverManager.getConnection(DBURL, DATABASE_USER, DATABASE_PASSWORD);
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 4, 5000, 5);
+
+        Statement statement;
+
+        try {
+            boolean reachable = dbConnection.isValid(25);
+            if (!reachable) {
+                throw new SQLException("Unreachable database connection.");
+            }
+
+            statement = dbConnection.createStatement();
+            statement.execute(DROP_INVOICE_TABLE);
+            statement.execute(DROP_SOLAR_PANEL_TABLE);
+            statement.execute(DROP_APPLIANCE_TABLE);
+            statement.execute(DROP_CLIENT_PERSONAL_DATA_TABLE);
+            statement.execute(DROP_CLIENT_ENERGY_DATA_TABLE);
+            statement.execute(DROP_CLIENT_TABLE);
+            statement.execute(DROP_COMPARTMENT_KEYS_TABLE);
+
+            // the tables are created as the webserver migrates them
+            for (String[] migration : SCHEMA_MIGRATIONS) {
+                for (String sql : migration) {
+                    statement.execute(sql);
+                }
+            }
+
+            generateCompartmentKeys();
+
+            System.out.println("Database is ready!");
+        } catch (SQLException e) {
+            System.out.println("Could not set up database: "+ e.getMessage());
+            System.exit(1);
+        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | NoSuchPaddingException | InvalidKeyException e) {
+            System.out.println("Could not generate compartment keys: "+ e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void loadKeysCertificates() throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+            IOException, UnrecoverableKeyException {
+
+        // Key Store
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(Files.newInputStream(Paths.get(KEY_STORE_FILE)), KEY_STORE_PASSWORD.toCharArray());
+
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey(KEY_STORE_ALIAS_WEBSERVER, KEY_STORE_PASSWORD.toCharArray());
+        PublicKey publicKey = keyStore.getCertificate(KEY_STORE_ALIAS_WEBSERVER).getPublicKey();
+        keyPair = new KeyPair(publicKey, privateKey);
+
+        System.out.println("Successfully loaded key pairs and certificate from Java Keystore!");
+    }
+
+    private static void generateCompartmentKeys() throws NoSuchAlgorithmException, SQLException, IllegalBlockSizeException,
+            NoSuchPaddingException, InvalidKeyException {
+
+        PreparedStatement st;
+        ResultSet rs;
+
+        // Check if keys already exist
+        st = dbConnection.prepareStatement(READ_COMPARTMENT_KEYS);
+        rs = st.executeQuery();
+
+        if (rs.next()){
+            personalInfoKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(1));
+            energyPanelKey = Security.unwrapKey(keyPair.getPrivate(), rs.getBytes(2));
+            st.close();
+            return;
+        }
+        st.close();
+
+        System.out.println("Generating compartment keys...");
+
+
+        // Generate key for personal info compartment
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        personalInfoKey = keyGen.generateKey();
+        byte[] wrappedPersonalInfoKey = Security.wrapKey(keyPair.getPublic(), personalInfoKey);
+
+        // Generate key for energy panel compartment
+        keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        energyPanelKey = keyGen.generateKey();
+        byte[] wrappedEnergyPanelKey = Security.wrapKey(keyPair.getPublic(), energyPanelKey);
+
+        // Upload keys to database
+        st = dbConnection.prepareStatement(CREATE_COMPARTMENT_KEYS);
+        st.setBytes(1, wrappedPersonalInfoKey);
+        st.setBytes(2, wrappedEnergyPanelKey);
+        st.executeUpdate();
+        st.close();
+    }
+}
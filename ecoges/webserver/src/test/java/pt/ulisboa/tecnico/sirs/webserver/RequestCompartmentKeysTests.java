@@ -7,6 +7,8 @@ import pt.ulisboa.tecnico.sirs.rbac.exceptions.InvalidRoleException;
 import pt.ulisboa.tecnico.sirs.rbac.exceptions.PermissionDeniedException;
 import pt.ulisboa.tecnico.sirs.security.Security;
 import pt.ulisboa.tecnico.sirs.webserver.exceptions.*;
+import pt.ulisboa.tecnico.sirs.webserver.storage.InMemoryStorage;
+import pt.ulisboa.tecnico.sirs.webserver.storage.ReEncryption;
 import pt.ulisboa.tecnico.sirs.contracts.grpc.*;
 
 import javax.crypto.*;
@@ -14,7 +16,9 @@ import java.security.*;
 import java.security.cert.CertificateEncodingException;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
@@ -26,13 +30,13 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.sql.*;
-
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
-import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.CREATE_COMPARTMENT_KEYS_TABLE;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RequestCompartmentKeysTests {
 
     private static Webserver webserver;
+    private static InMemoryStorage storage;
     private static Rbac rbac;
 
     private static KeyPair keyPair;
@@ -56,13 +60,6 @@ public class RequestCompartmentKeysTests {
     private static final String BACKOFFICE_KEY_STORE_ALIAS_ACCOUNT_MANAGEMENT = "accountManagement";
     private static final String BACKOFFICE_KEY_STORE_ALIAS_ENERGY_MANAGEMENT = "energyManagement";
 
-    // Database
-    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
-    private static final String DATABASE_USER = "ecoges";
-    private static final String DATABASE_PASSWORD = "admin";
-    private static Connection dbConnection = null;
-    private static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
-
     // Testing purposes
     private static final String WEBSERVER_TEST_KEY_STORE_FILE = "src/test/resources/webserver-tests.keystore";
     private static final String WEBSERVER_TEST_KEY_STORE_PASSWORD = "mypasswebserver-tests";
@@ -75,13 +72,13 @@ public class RequestCompartmentKeysTests {
     private static final String iban = "iban";
 
     @BeforeClass
-    public static void setup() throws CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, IOException, KeyStoreException, SQLException, ClassNotFoundException, InvalidAlgorithmParameterException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, BadPaddingException, InvalidKeyException {
+    public static void setup() throws CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, IOException, KeyStoreException, SQLException, InvalidAlgorithmParameterException, CompartmentKeyException, IllegalBlockSizeException, NoSuchPaddingException, ClientAlreadyExistsException, BadPaddingException, InvalidKeyException {
         loadKeysCertificates();
         loadTestCertificate();
         generateCompartmentKeys();
-        setupDatabase();
 
-        webserver = new Webserver(dbConnection, personalInfoKey, energyPanelKey, keyPair);
+        storage = new InMemoryStorage();
+        webserver = new Webserver(storage, personalInfoKey, energyPanelKey, keyPair, null);
         webserver.register("name", email, password, "address", "iban", PlanType.FLAT_RATE.name());
         rbac = new Rbac("../rbac/src/main/resources/rbac.keystore");
     }
@@ -169,31 +166,57 @@ public class RequestCompartmentKeysTests {
             webserver.getCompartmentKey(data, signature, null, null, null));
     }
 
+    @Test
+    public void reloadTrustedCertificatesTest() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        Path trustStore = Files.createTempFile("webserver", ".truststore");
+        Files.copy(Paths.get("src/main/resources/webserver.truststore"), trustStore, StandardCopyOption.REPLACE_EXISTING);
+        TrustedCertificates trustedCertificates = new TrustedCertificates(trustStore.toString(), KEY_STORE_PASSWORD);
+
+        // read once and reused by the following requests
+        X509Certificate CACertificate = trustedCertificates.getCACertificate();
+        Assert.assertNotNull(trustedCertificates.getRBACCertificate());
+        Files.delete(trustStore);
+        Assert.assertSame(CACertificate, trustedCertificates.getCACertificate());
+
+        // a failed reload keeps the certificates loaded before
+        Assert.assertThrows(IOException.class, trustedCertificates::reload);
+        Assert.assertSame(CACertificate, trustedCertificates.getCACertificate());
+
+        TrustedCertificates missing = new TrustedCertificates("src/main/resources/missing.truststore", KEY_STORE_PASSWORD);
+        Assert.assertThrows(IOException.class, missing::getCACertificate);
+    }
+
     public PersonalInfo getPersonalInfo(String clientEmail, SecretKey temporaryKey) throws SQLException, ClientDoesNotExistException, InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        PersonalInfo personalInfo;
-        PreparedStatement st;
-        ResultSet rs;
-
-        // get personal info
-        st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA);
-        st.setString(1, clientEmail);
-        rs = st.executeQuery();
-
-        if (rs.next()) {
-            byte[] iv = rs.getBytes(1);
-            String address = new String(Security.decryptData(rs.getBytes(2), temporaryKey, iv));
-            String iban = new String(Security.decryptData(rs.getBytes(3), temporaryKey, iv));
-
-            personalInfo = PersonalInfo.newBuilder()
-                    .setAddress(address)
-                    .setIBAN(iban)
-                    .build();
-        } else {
-            st.close();
-            throw new ClientDoesNotExistException(clientEmail);
-        }
-
-        return personalInfo;
+        // get personal info, handed over by a re-encryption that stores the data back as it is
+        byte[] iv = storage.clients().readMetadata(clientEmail).getIvPersonalData();
+        List<String> values = new ArrayList<>();
+        storage.clients().reEncrypt(clientEmail, CompartmentType.PERSONAL_DATA, new ReEncryption() {
+            private byte[] storedTemporaryKey;
+
+            @Override
+            public byte[] newIv() {
+                return iv;
+            }
+
+            @Override
+            public byte[] reEncrypt(byte[] value, byte[] oldIv, byte[] newIv, byte[] lastTemporaryKey)
+                    throws InvalidAlgorithmParameterException, IllegalBlockSizeException, NoSuchPaddingException,
+                    NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+                values.add(new String(Security.decryptData(value, temporaryKey, oldIv)));
+                storedTemporaryKey = lastTemporaryKey;
+                return value;
+            }
+
+            @Override
+            public byte[] newTemporaryKey() {
+                return storedTemporaryKey;
+            }
+        });
+
+        return PersonalInfo.newBuilder()
+                .setAddress(values.get(0))
+                .setIBAN(values.get(1))
+                .build();
     }
 
     public static void loadAMDepartmentCertificate() throws IOException, KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException, CertificateException {
@@ -245,42 +268,4 @@ public class RequestCompartmentKeysTests {
 
         System.out.println("Successfully loaded key pairs and certificate from Java Keystore!");
     }
-
-    public static void setupDatabase() throws ClassNotFoundException, SQLException {
-        Class.forName(DATABASE_DRIVER);
-        dbConnection = DriverManager.getConnection(DBURL, DATABASE_USER, DATABASE_PASSWORD);
-
-        Statement statement;
-
-        try {
-            boolean reachable = dbConnection.isValid(25);
-            if (!reachable) {
-                throw new SQLException("Unreachable database connection.");
-            }
-
-            statement = dbConnection.createStatement();
-            statement.execute(DROP_INVOICE_TABLE);
-            statement.execute(DROP_SOLAR_PANEL_TABLE);
-            statement.execute(DROP_APPLIANCE_TABLE);
-            statement.execute(DROP_CLIENT_TABLE);
-            statement.execute(DROP_COMPARTMENT_KEYS_TABLE);
-
-            statement = dbConnection.createStatement();
-            statement.execute(CREATE_CLIENT_TABLE);
-            statement.execute(CREATE_APPLIANCE_TABLE);
-            statement.execute(CREATE_SOLAR_PANEL_TABLE);
-            statement.execute(CREATE_INVOICE_TABLE);
-            statement.execute(CREATE_COMPARTMENT_KEYS_TABLE);
-
-            generateCompartmentKeys();
-
-            System.out.println("Database is ready!");
-        } catch (SQLException e) {
-            System.out.println("Could not set up database: "+ e.getMessage());
-            System.exit(1);
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Could not generate compartment keys: "+ e.getMessage());
-            System.exit(1);
-        }
-    }
 }
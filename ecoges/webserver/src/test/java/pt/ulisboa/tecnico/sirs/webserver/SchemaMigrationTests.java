@@ -0,0 +1,234 @@
+package pt.ulisboa.tecnico.sirs.webserver;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sirs.database.ConnectionPool;
+import pt.ulisboa.tecnico.sirs.database.SchemaMigrator;
+import pt.ulisboa.tecnico.sirs.database.ShardRouter;
+import pt.ulisboa.tecnico.sirs.security.Security;
+import pt.ulisboa.tecnico.sirs.webserver.storage.CompartmentKeyRepository;
+import pt.ulisboa.tecnico.sirs.webserver.storage.JdbcCompartmentKeyRepository;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.sql.*;
+import java.util.Arrays;
+
+import static pt.ulisboa.tecnico.sirs.webserver.DatabaseQueries.*;
+
+public class SchemaMigrationTests {
+
+    // Database
+    private static final String DBURL = "jdbc:mysql://localhost:3306/clientdb";
+    private static final String DATABASE_USER = "ecoges";
+    private static final String DATABASE_PASSWORD = "admin";
+    private static ConnectionPool dbPool = null;
+
+    private static final String COMPONENT = "junit5-webserver";
+    private static final String CLIENT_EMAIL = "junit5-clientemail";
+    private static final String DELETE_VERSION = "DELETE FROM schema_version WHERE component = '" + COMPONENT + "'";
+
+    // tables as created by the servers from before versioning started
+    private static final String CREATE_LEGACY_COMPARTMENT_KEYS_TABLE =
+            "CREATE TABLE compartment_keys (" +
+                    "id INTEGER NOT NULL AUTO_INCREMENT, " +
+                    "personal_info_key BLOB NOT NULL, " +
+                    "energy_panel_key BLOB NOT NULL, " +
+                    "PRIMARY KEY (id))";
+    private static final String CREATE_LEGACY_CLIENT_TABLE =
+            "CREATE TABLE client (" +
+                    "id INTEGER NOT NULL AUTO_INCREMENT, " +
+                    "name VARCHAR(150) NOT NULL, " +
+                    "email VARCHAR(150) NOT NULL," +
+                    "address BLOB NOT NULL," +
+                    "password VARCHAR(100) NOT NULL," +
+                    "iban BLOB NOT NULL," +
+                    "plan VARCHAR(25) NOT NULL," +
+                    "energyConsumed BLOB, " +
+                    "token VARCHAR(64) DEFAULT ''," +
+                    "salt BLOB," +
+                    "iv_personal_data BLOB," +
+                    "iv_energy_data BLOB," +
+                    "obf_address VARCHAR(150) NOT NULL, " +
+                    "obf_iban VARCHAR(150) NOT NULL, " +
+                    "UNIQUE (email)," +
+                    "PRIMARY KEY (id))";
+    private static final String CREATE_LEGACY_APPLIANCE_TABLE =
+            "CREATE TABLE appliance (" +
+                    "id INTEGER NOT NULL AUTO_INCREMENT, " +
+                    "client_id INTEGER NOT NULL, " +
+                    "name VARCHAR(150) NOT NULL, " +
+                    "brand VARCHAR(150) NOT NULL, " +
+                    "energyConsumed BLOB, " +
+                    "iv BLOB," +
+                    "UNIQUE (client_id, name, brand)," +
+                    "PRIMARY KEY (id), " +
+                    "FOREIGN KEY (client_id) REFERENCES client(id) ON DELETE CASCADE)";
+    private static final String INSERT_LEGACY_COMPARTMENT_KEYS =
+            "INSERT INTO compartment_keys(personal_info_key, energy_panel_key) VALUES('k1', 'k2')";
+
+    @BeforeClass
+    public static void setup() throws SQLException {
+        dbPool = new ConnectionPool(DBURL, DATABASE_USER, DATABASE_PASSWORD, 1, 2, 1000, 5);
+    }
+
+    @AfterClass
+    public static void cleanup() throws SQLException {
+        execute(DELETE_VERSION);
+        dbPool.close();
+    }
+
+    @Test
+    public void migrateLegacySchemaTest() throws SQLException {
+        for (String sql : SCHEMA_LEGACY) {
+            execute(sql);
+        }
+        execute(CREATE_LEGACY_COMPARTMENT_KEYS_TABLE);
+        execute(CREATE_LEGACY_CLIENT_TABLE);
+        execute(CREATE_LEGACY_APPLIANCE_TABLE);
+        execute(INSERT_LEGACY_COMPARTMENT_KEYS);
+
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, SCHEMA_MIGRATIONS, SCHEMA_LEGACY);
+        migrator.readVersion(dbPool); // creates the version table
+        execute(DELETE_VERSION);
+
+        // the legacy tables are replaced by the ones of the latest version
+        Assert.assertEquals(SCHEMA_MIGRATIONS.size(), migrator.migrate(dbPool));
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM compartment_keys"));
+        Assert.assertEquals(0, count("SELECT COUNT(version) FROM client"));
+        Assert.assertEquals(0, count("SELECT COUNT(session_key) FROM compartment_keys"));
+        Assert.assertEquals(0, count("SELECT COUNT(energy) FROM appliance"));
+
+        // a versioned schema keeps its data on restart
+        execute("INSERT INTO compartment_keys(personal_info_key, energy_panel_key) VALUES(x'01', x'02')");
+        Assert.assertEquals(0, migrator.migrate(dbPool));
+        Assert.assertEquals(1, count("SELECT COUNT(*) FROM compartment_keys"));
+    }
+
+    @Test
+    public void createCompartmentKeysOnceTest() throws SQLException {
+        for (String sql : SCHEMA_LEGACY) {
+            execute(sql);
+        }
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, SCHEMA_MIGRATIONS, SCHEMA_LEGACY);
+        migrator.readVersion(dbPool); // creates the version table
+        execute(DELETE_VERSION);
+        migrator.migrate(dbPool);
+
+        // two webservers starting at the same time on an empty database
+        CompartmentKeyRepository compartmentKeys = new JdbcCompartmentKeyRepository(new ShardRouter(dbPool));
+        compartmentKeys.create(new byte[] { 1 }, new byte[] { 2 });
+        compartmentKeys.create(new byte[] { 3 }, new byte[] { 4 });
+
+        Assert.assertEquals(1, count("SELECT COUNT(*) FROM compartment_keys"));
+        Assert.assertArrayEquals(new byte[] { 1 }, compartmentKeys.read().getPersonalInfoKey());
+        Assert.assertArrayEquals(new byte[] { 2 }, compartmentKeys.read().getEnergyPanelKey());
+
+        // the session key is stored once too
+        compartmentKeys.updateSessionKey(new byte[] { 5 });
+        compartmentKeys.updateSessionKey(new byte[] { 6 });
+        Assert.assertArrayEquals(new byte[] { 5 }, compartmentKeys.read().getSessionKey());
+    }
+
+    @Test
+    public void unversionedCipherTextsTest() throws Exception {
+        for (String sql : SCHEMA_LEGACY) {
+            execute(sql);
+        }
+        SchemaMigrator previous = new SchemaMigrator(COMPONENT, SCHEMA_MIGRATIONS.subList(0, 3), SCHEMA_LEGACY);
+        previous.readVersion(dbPool); // creates the version table
+        execute(DELETE_VERSION);
+        previous.migrate(dbPool);
+
+        // personal data encrypted before ciphertexts started with the version of their mode
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey key = keyGen.generateKey();
+        byte[] iv = Security.generateRandom();
+        byte[] address = Security.encryptData("address".getBytes(), key, iv, Security.CipherMode.CBC);
+        byte[] iban = Security.encryptData("iban".getBytes(), key, iv, Security.CipherMode.CBC);
+        byte[] unversionedAddress = Arrays.copyOfRange(address, 1, address.length);
+        byte[] unversionedIban = Arrays.copyOfRange(iban, 1, iban.length);
+
+        execute("INSERT INTO client(name, email, password, plan) VALUES('name', '" + CLIENT_EMAIL + "', 'password', 0)");
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement("INSERT INTO client_personal_data(client_id, iv_personal_data, " +
+                    "address, iban, obf_address, obf_iban) VALUES((SELECT id FROM client WHERE email = ?), ?, ?, ?, 'a', 'i')");
+            st.setString(1, CLIENT_EMAIL);
+            st.setBytes(2, iv);
+            st.setBytes(3, unversionedAddress);
+            st.setBytes(4, unversionedIban);
+            st.executeUpdate();
+            st.close();
+        }
+
+        // the migration leaves the stored ciphertexts as they are, the queries reading them add the version
+        SchemaMigrator migrator = new SchemaMigrator(COMPONENT, SCHEMA_MIGRATIONS, SCHEMA_LEGACY);
+        Assert.assertEquals(SCHEMA_MIGRATIONS.size() - 3, migrator.migrate(dbPool));
+        Assert.assertArrayEquals(unversionedAddress, readBytes("SELECT address FROM client_personal_data"));
+        Assert.assertArrayEquals(unversionedIban, readBytes("SELECT iban FROM client_personal_data"));
+        byte[][] personalData = readPersonalData();
+        Assert.assertEquals("address", new String(Security.decryptData(personalData[0], key, iv)));
+        Assert.assertEquals("iban", new String(Security.decryptData(personalData[1], key, iv)));
+
+        // the next write of the row adds the version to the ciphertext it does not replace
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(UPDATE_CLIENT_ADDRESS);
+            st.setBytes(1, Security.encryptData("new address".getBytes(), key, iv, Security.CipherMode.GCM));
+            st.setString(2, "n");
+            st.setString(3, CLIENT_EMAIL);
+            Assert.assertEquals(1, st.executeUpdate());
+            st.close();
+        }
+        Assert.assertArrayEquals(iban, readBytes("SELECT iban FROM client_personal_data"));
+        Assert.assertEquals(0, count("SELECT COUNT(*) FROM client_personal_data WHERE unversioned_ciphertexts"));
+        personalData = readPersonalData();
+        Assert.assertEquals(Security.GCM_VERSION, personalData[0][0]);
+        Assert.assertEquals("new address", new String(Security.decryptData(personalData[0], key, iv)));
+        Assert.assertEquals("iban", new String(Security.decryptData(personalData[1], key, iv)));
+    }
+
+    private static byte[][] readPersonalData() throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            PreparedStatement st = dbConnection.prepareStatement(READ_CLIENT_IV_AND_ENCRYPTED_PERSONAL_DATA);
+            st.setString(1, CLIENT_EMAIL);
+            ResultSet rs = st.executeQuery();
+            Assert.assertTrue(rs.next());
+            byte[][] personalData = { rs.getBytes(2), rs.getBytes(3) };
+            st.close();
+            return personalData;
+        }
+    }
+
+    private static byte[] readBytes(String sql) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            ResultSet rs = st.executeQuery(sql);
+            Assert.assertTrue(rs.next());
+            byte[] bytes = rs.getBytes(1);
+            st.close();
+            return bytes;
+        }
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            st.execute(sql);
+            st.close();
+        }
+    }
+
+    private static int count(String sql) throws SQLException {
+        try (Connection dbConnection = dbPool.getConnection()) {
+            Statement st = dbConnection.createStatement();
+            ResultSet rs = st.executeQuery(sql);
+            Assert.assertTrue(rs.next());
+            int count = rs.getInt(1);
+            st.close();
+            return count;
+        }
+    }
+}